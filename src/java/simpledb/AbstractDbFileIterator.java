@@ -28,6 +28,16 @@ public abstract class AbstractDbFileIterator implements DbFileIterator {
         next = null;
     }
 
+    /**
+     * @return the tuple read ahead by hasNext() and not returned yet, or
+     *   null.  The iterator forgets it, so the caller must return it next.
+     */
+    protected Tuple takeReadAhead() {
+        Tuple result = next;
+        next = null;
+        return result;
+    }
+
     /** Reads the next tuple from the underlying source.
     @return the next Tuple in the iterator, null if the iteration is finished. */
     protected abstract Tuple readNext() throws DbException, TransactionAbortedException;
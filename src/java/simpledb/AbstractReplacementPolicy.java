@@ -0,0 +1,152 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Helper for implementing ReplacementPolicies.  Handles the hit/miss
+ * counters and serializes the subclass's bookkeeping on a lock, so
+ * subclasses only need to maintain their own bookkeeping.
+ * <p>
+ * Hits never wait for that lock: a hit is counted and queued without
+ * locking, and the queued hits are replayed, in order, by whichever thread
+ * next holds the lock, before it admits or removes a page or chooses a
+ * victim.  Once enough hits are queued a hitting thread replays them
+ * itself, but only if it gets the lock without waiting.
+ * <p>
+ * The queue is a ring of {@link #HIT_BUFFER_SIZE} slots.  A hit claims the
+ * next slot with one compare-and-set; a hit that finds the ring full, or
+ * loses the race for its slot, is counted but not queued.  Hits only refine
+ * the order pages are evicted in, so losing some under contention is
+ * cheaper than letting the queue grow while the lock is held.
+ */
+public abstract class AbstractReplacementPolicy implements ReplacementPolicy {
+
+    /** Most hits queued at once; a power of two. */
+    static final int HIT_BUFFER_SIZE = 256;
+    // queued hits past which a hitting thread tries to replay them
+    private static final int DRAIN_THRESHOLD = 64;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // hit i is queued in slot i % HIT_BUFFER_SIZE; hits before readCount
+    // have been replayed, and hits before writeCount have a slot
+    private final AtomicReferenceArray<PageId> hitBuffer =
+        new AtomicReferenceArray<PageId>(HIT_BUFFER_SIZE);
+    private final AtomicLong writeCount = new AtomicLong();
+    private volatile long readCount = 0; // only changed under the lock
+
+    public void pageHit(PageId pid) {
+        hits.incrementAndGet();
+        long tail = writeCount.get();
+        long queued = tail - readCount;
+        if (queued < HIT_BUFFER_SIZE && writeCount.compareAndSet(tail, tail + 1)) {
+            hitBuffer.lazySet((int) (tail & (HIT_BUFFER_SIZE - 1)), pid);
+            queued++;
+        }
+        if (queued >= DRAIN_THRESHOLD && lock.tryLock()) {
+            try {
+                drainHits();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public void pageMiss(PageId pid) {
+        misses.incrementAndGet();
+        lock.lock();
+        try {
+            drainHits();
+            admitted(pid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void pageAdded(PageId pid) {
+        lock.lock();
+        try {
+            drainHits();
+            admitted(pid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        lock.lock();
+        try {
+            drainHits();
+            removed(pid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public PageId chooseVictim(EvictionFilter filter) {
+        lock.lock();
+        try {
+            drainHits();
+            return victim(filter);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replay the queued hits.  Must be called while holding the lock.  Stops
+     * at a slot that was claimed but not filled in yet; the hits from there
+     * on are replayed next time.
+     */
+    private void drainHits() {
+        long head = readCount;
+        long tail = writeCount.get();
+        for (; head < tail; head++) {
+            int slot = (int) (head & (HIT_BUFFER_SIZE - 1));
+            PageId pid = hitBuffer.get(slot);
+            if (pid == null)
+                break;
+            hitBuffer.lazySet(slot, null);
+            accessed(pid);
+        }
+        readCount = head;
+    }
+
+    /** @return the number of hits queued and not replayed yet */
+    int pendingHits() {
+        return (int) (writeCount.get() - readCount);
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public void resetStats() {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    public String toString() {
+        return getName() + " hits=" + getHitCount() + " misses=" + getMissCount();
+    }
+
+    /** Called when a resident page is requested again; it may not be tracked any more. */
+    protected abstract void accessed(PageId pid);
+
+    /** Called when a page becomes resident; it may already be tracked. */
+    protected abstract void admitted(PageId pid);
+
+    /** Called when a page stops being resident; it may not be tracked. */
+    protected abstract void removed(PageId pid);
+
+    /** Pick a victim among the tracked pages, or return null. */
+    protected abstract PageId victim(EvictionFilter filter);
+}
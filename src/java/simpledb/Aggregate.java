@@ -1,22 +1,87 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
  * min). Note that we only support aggregates over a single column, grouped by a
  * single column.
+ * <p>
+ * The child is read and merged into the aggregate a batch at a time.  If the
+ * child is a {@link Gather}, its inputs are aggregated in two phases: each
+ * worker first aggregates one input into an aggregator of its own, then the
+ * partial aggregates are merged with {@link Aggregator#merge}.
+ * <p>
+ * The groups held in memory are limited by a memory budget.  Once it is
+ * full, rows of groups already in memory are still merged into them, and
+ * rows of new groups are split by a hash of the group field into
+ * {@link #NUM_PARTITIONS} temporary spill files.  After the input ends, each
+ * spilled partition is aggregated in turn the same way, spilling again with
+ * a different hash if it still has too many groups.  When the child is
+ * already sorted on the group field, the groups are instead returned as
+ * soon as a memory-full of them is complete, and nothing is spilled.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends BatchOperator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Memory for groups when no budget is given, in bytes. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16L * 1024 * 1024;
+
+    /** The number of partitions the rows of new groups are split into when they spill. */
+    static final int NUM_PARTITIONS = 16;
+
+    // estimated bytes of one group besides its key: accumulator, count and
+    // hash table entry
+    private static final int GROUP_BYTES = 48;
+
     private DbIterator child;
     private int afield;
     private int gfield;
     private Aggregator.Op aop;
-    private DbIterator aggregateIt;
-    private TupleDesc tupleDesc;
+    private final long memoryBudget;
+    private final boolean sortedOnGroup;
+
+    // hash aggregation: the groups aggregated while reading the child, which
+    // are returned before the spilled partitions, or after them when rows of
+    // a partition may still belong to them (several workers' partial
+    // aggregates may each have spilled a group the others kept)
+    private transient Aggregator main;
+    private transient boolean mainFirst;
+    private transient boolean mainReturned;
+    private transient ArrayDeque<Partition> pending;
+    private transient int spilledPartitions;
+    private transient long spilledBytes;
+
+    // sorted aggregation: the groups since the last ones returned, and the
+    // child batch being read
+    private transient Aggregator current;
+    private transient BatchDbIterator in;
+    private transient TupleBatch inBatch;
+    private transient int inRow;
+
+    // the results being returned
+    private transient DbIterator out;
+
+    /** The rows of a spilled partition, possibly from several workers. */
+    private static class Partition {
+        final List<SpillFile> files;
+        final int level;
+
+        Partition(List<SpillFile> files, int level) {
+            this.files = files;
+            this.level = level;
+        }
+
+        void close() {
+            for (SpillFile f : files)
+                f.close();
+        }
+    }
 
     /**
      * Constructor.
@@ -38,10 +103,37 @@ public class Aggregate extends Operator {
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
 	    // some code goes here
+        this(child, afield, gfield, aop, DEFAULT_MEMORY_BUDGET, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afield
+     *            The column over which we are computing an aggregate.
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     * @param aop
+     *            The aggregation operator to use
+     * @param memoryBudget
+     *            The most bytes of groups to hold in memory; rows of more
+     *            groups are spilled to disk
+     * @param sortedOnGroup
+     *            Whether the child returns its tuples sorted on gfield, so
+     *            that each group is complete once a tuple of another group
+     *            is read
+     */
+    public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop,
+            long memoryBudget, boolean sortedOnGroup) {
         this.child = child;
         this.afield = afield;
         this.gfield = gfield;
         this.aop = aop;
+        this.memoryBudget = memoryBudget;
+        this.sortedOnGroup = sortedOnGroup && gfield != Aggregator.NO_GROUPING;
     }
 
     /**
@@ -93,52 +185,348 @@ public class Aggregate extends Operator {
 	return aop.toString();
     }
 
+    /** @return true if the child is read as sorted on the group field */
+    public boolean isSortedOnGroup() {
+        return sortedOnGroup;
+    }
+
+    /** @return the number of partitions spilled to disk since the aggregate was opened */
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    /** @return the number of bytes spilled to disk since the aggregate was opened */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
     public void open() throws NoSuchElementException, DbException,
 	    TransactionAbortedException {
 	    // some code goes here
         super.open();
+        spilledPartitions = 0;
+        spilledBytes = 0;
+        if (sortedOnGroup) {
+            child.open();
+            startSorted();
+        } else {
+            startHashed();
+        }
+    }
+
+    /** @return the number of groups that fit in the given share of the memory budget */
+    private int maxGroups(long budget) {
+        int keyBytes = gfield == Aggregator.NO_GROUPING ? 0 : child.getTupleDesc().getFieldType(gfield).getLen();
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, budget / (GROUP_BYTES + keyBytes)));
+    }
+
+    private Aggregator newAggregator() {
         Type aType = child.getTupleDesc().getFieldType(afield);
-        Aggregator aggregator = null;
-        if (aType.equals(Type.INT_TYPE)) {
-            if (gfield == Aggregator.NO_GROUPING) {
-                aggregator = new IntegerAggregator(gfield, null, afield, aop);
+        Type gType = gfield == Aggregator.NO_GROUPING ? null : child.getTupleDesc().getFieldType(gfield);
+        if (aType.equals(Type.INT_TYPE))
+            return new IntegerAggregator(gfield, gType, afield, aop);
+        return new StringAggregator(gfield, gType, afield, aop);
+    }
+
+    private void startSorted() {
+        in = BatchAdapter.of(child);
+        inBatch = null;
+        current = newAggregator();
+    }
+
+    /** Aggregate the child into main, spilling the rows of groups that do not fit. */
+    private void startHashed() throws DbException, TransactionAbortedException {
+        pending = new ArrayDeque<Partition>();
+        mainReturned = false;
+        if (child instanceof Gather) {
+            mainFirst = false;
+            main = aggregateInParallel(((Gather) child).getChildren());
+        } else {
+            mainFirst = true;
+            SpillFile[] parts = new SpillFile[NUM_PARTITIONS];
+            main = newAggregator();
+            aggregate(child, main, maxGroups(memoryBudget), parts);
+            for (SpillFile part : parts)
+                queue(part == null ? null : Collections.singletonList(part), 0);
+        }
+    }
+
+    /**
+     * Merge every tuple of in into aggregator, until it has maxGroups
+     * groups; after that, write rows of new groups to parts.
+     */
+    private void aggregate(DbIterator in, Aggregator aggregator, int maxGroups, SpillFile[] parts)
+            throws DbException, TransactionAbortedException {
+        in.open();
+        try {
+            BatchDbIterator batches = BatchAdapter.of(in);
+            TupleBatch batch;
+            while ((batch = batches.nextBatch()) != null) {
+                if (aggregator.numGroups() + batch.size() <= maxGroups) {
+                    aggregator.mergeBatch(batch);
+                    continue;
+                }
+                for (int r = 0; r < batch.size(); r++) {
+                    if (!aggregator.mergeRow(batch, r, aggregator.numGroups() < maxGroups))
+                        spill(batch, r, 0, parts);
+                }
             }
-            else {
-                aggregator = new IntegerAggregator(gfield, child.getTupleDesc().getFieldType(gfield), afield, aop);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void spill(TupleBatch batch, int r, int level, SpillFile[] parts) throws DbException {
+        int i = partition(batch, gfield, r, level);
+        try {
+            if (parts[i] == null)
+                parts[i] = new SpillFile(batch.getTupleDesc());
+            parts[i].add(batch, r);
+        } catch (IOException e) {
+            throw new DbException("could not spill aggregate partition: " + e);
+        }
+    }
+
+    /**
+     * @return the partition of row r at the given partitioning level; each
+     *   level uses a different hash, independent of the aggregators'
+     */
+    private static int partition(TupleBatch batch, int field, int r, int level) {
+        int h = (batch.isIntColumn(field) ? batch.getInt(field, r) : batch.getString(field, r).hashCode())
+                ^ (level + 1) * 0x27D4EB2F;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h >>> 1) % NUM_PARTITIONS;
+    }
+
+    /** Queue the spilled files of one partition to be aggregated, if there are any. */
+    private void queue(List<SpillFile> files, int level) throws DbException {
+        if (files == null || files.isEmpty())
+            return;
+        try {
+            for (SpillFile f : files) {
+                f.finishWriting();
+                spilledBytes += f.bytes();
             }
+        } catch (IOException e) {
+            throw new DbException("could not spill aggregate partition: " + e);
         }
-        else {
-            if (gfield == Aggregator.NO_GROUPING) {
-                aggregator = new StringAggregator(gfield, null, afield, aop);
+        spilledPartitions++;
+        pending.add(new Partition(files, level));
+    }
+
+    /**
+     * Aggregate each of the inputs of a Gather on a worker thread, into an
+     * aggregator of its own, and merge the partial aggregates.  The Gather
+     * itself is never opened: reading its inputs here saves passing every
+     * tuple through its queue, and leaves only the groups to be merged on
+     * this thread.  The merged groups are kept while the spilled partitions
+     * are aggregated, so each worker and the partitions get half of the
+     * memory budget between them.
+     */
+    private Aggregator aggregateInParallel(DbIterator[] lanes)
+            throws DbException, TransactionAbortedException {
+        final int laneGroups = maxGroups(memoryBudget / 2 / Math.max(1, lanes.length));
+        final SpillFile[][] parts = new SpillFile[lanes.length][NUM_PARTITIONS];
+        ArrayList<Future<Aggregator>> partials = new ArrayList<Future<Aggregator>>();
+        for (int i = 0; i < lanes.length; i++) {
+            final DbIterator lane = lanes[i];
+            final SpillFile[] laneParts = parts[i];
+            partials.add(Exchange.getWorkers().submit(new Callable<Aggregator>() {
+                public Aggregator call() throws Exception {
+                    Aggregator partial = newAggregator();
+                    aggregate(lane, partial, laneGroups, laneParts);
+                    return partial;
+                }
+            }));
+        }
+        Aggregator aggregator = null;
+        Throwable error = null;
+        // wait for every worker, even after one fails, so none is still
+        // reading when this returns
+        for (Future<Aggregator> f : partials) {
+            try {
+                Aggregator partial = f.get();
+                if (aggregator == null)
+                    aggregator = partial;
+                else if (error == null)
+                    aggregator.merge(partial);
+            } catch (ExecutionException e) {
+                if (error == null)
+                    error = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (error == null)
+                    error = e;
             }
-            else {
-                aggregator = new StringAggregator(gfield, child.getTupleDesc().getFieldType(gfield), afield, aop);
+        }
+        for (int p = 0; p < NUM_PARTITIONS; p++) {
+            ArrayList<SpillFile> files = new ArrayList<SpillFile>();
+            for (SpillFile[] laneParts : parts) {
+                if (laneParts[p] != null)
+                    files.add(laneParts[p]);
             }
+            if (error == null)
+                queue(files, 0);
+            else
+                new Partition(files, 0).close();
         }
-        child.open();
-        while (child.hasNext()) {
-            aggregator.mergeTupleIntoGroup(child.next());
+        if (error instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) error;
+        if (error instanceof DbException)
+            throw (DbException) error;
+        if (error != null)
+            throw new DbException("parallel aggregation failed: " + error);
+        return aggregator != null ? aggregator : newAggregator();
+    }
+
+    /**
+     * Aggregate the rows of a spilled partition, merging rows of groups
+     * still in memory into main, and spilling rows of groups that do not
+     * fit again at the next level.
+     *
+     * @return the groups of the partition
+     */
+    private Aggregator aggregatePartition(Partition part) throws DbException {
+        Aggregator aggregator = newAggregator();
+        int maxGroups = maxGroups(mainFirst ? memoryBudget : memoryBudget / 2);
+        SpillFile[] parts = new SpillFile[NUM_PARTITIONS];
+        try {
+            for (SpillFile f : part.files) {
+                TupleBatch batch;
+                while ((batch = f.readBatch(TupleBatch.DEFAULT_SIZE)) != null) {
+                    for (int r = 0; r < batch.size(); r++) {
+                        if (main != null && main.mergeRow(batch, r, false))
+                            continue;
+                        if (!aggregator.mergeRow(batch, r, aggregator.numGroups() < maxGroups))
+                            spill(batch, r, part.level + 1, parts);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("could not read aggregate partition: " + e);
+        } finally {
+            part.close();
         }
-        child.close();
-        aggregateIt = aggregator.iterator();
-        aggregateIt.open();
+        for (SpillFile p : parts)
+            queue(p == null ? null : Collections.singletonList(p), part.level + 1);
+        return aggregator;
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate, If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Returns the next batch of result tuples. If there is a group by field,
+     * then the first field is the field by which we are grouping, and the
+     * second field is the result of computing the aggregate, If there is no
+     * group by field, then the result tuple should contain one field
+     * representing the result of the aggregate. Should return null if there
+     * are no more tuples.
      */
-    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
 	    // some code goes here
-	    return aggregateIt.hasNext() ? aggregateIt.next() : null;
+        while (true) {
+            if (out != null) {
+                TupleBatch b = BatchAdapter.of(out).nextBatch();
+                if (b != null)
+                    return b;
+                out.close();
+                out = null;
+            }
+            Aggregator next = sortedOnGroup ? nextSortedGroups() : nextHashedGroups();
+            if (next == null)
+                return null;
+            out = next.iterator();
+            out.open();
+        }
+    }
+
+    /** @return the next groups to return from hash aggregation, or null if there are no more */
+    private Aggregator nextHashedGroups() throws DbException {
+        if (mainFirst && !mainReturned) {
+            mainReturned = true;
+            Aggregator first = main;
+            // main is kept for rewinding only if nothing spilled
+            if (!pending.isEmpty())
+                main = null;
+            return first;
+        }
+        if (!pending.isEmpty())
+            return aggregatePartition(pending.poll());
+        if (!mainReturned) {
+            mainReturned = true;
+            return main;
+        }
+        return null;
+    }
+
+    /**
+     * Read the sorted child until memory is full of groups and a new group
+     * starts, or the child ends.
+     *
+     * @return the complete groups read, or null if there are no more
+     */
+    private Aggregator nextSortedGroups() throws DbException, TransactionAbortedException {
+        int maxGroups = maxGroups(memoryBudget);
+        while (current != null) {
+            if (inBatch == null || inRow >= inBatch.size()) {
+                inBatch = in.nextBatch();
+                inRow = 0;
+                if (inBatch == null) {
+                    Aggregator last = current;
+                    current = null;
+                    return last;
+                }
+                if (current.numGroups() + inBatch.size() <= maxGroups) {
+                    current.mergeBatch(inBatch);
+                    inRow = inBatch.size();
+                    continue;
+                }
+            }
+            for (; inRow < inBatch.size(); inRow++) {
+                if (!current.mergeRow(inBatch, inRow, current.numGroups() < maxGroups)) {
+                    // the input is sorted, so no later row belongs to these groups
+                    Aggregator done = current;
+                    current = newAggregator();
+                    return done;
+                }
+            }
+        }
+        return null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
 	    // some code goes here
-        aggregateIt.rewind();
+        super.rewind();
+        closeOutput();
+        if (sortedOnGroup) {
+            child.rewind();
+            startSorted();
+        } else if (main != null && pending.isEmpty() && spilledPartitions == 0) {
+            // everything is still in memory
+            mainReturned = false;
+        } else {
+            dropPartitions();
+            spilledPartitions = 0;
+            spilledBytes = 0;
+            startHashed();
+        }
+    }
+
+    private void closeOutput() {
+        if (out != null)
+            out.close();
+        out = null;
+    }
+
+    /** Delete every spill file not yet aggregated. */
+    private void dropPartitions() {
+        if (pending == null)
+            return;
+        for (Partition part : pending)
+            part.close();
+        pending.clear();
     }
 
     /**
@@ -161,7 +549,14 @@ public class Aggregate extends Operator {
     public void close() {
 	    // some code goes here
         super.close();
-        aggregateIt.close();
+        closeOutput();
+        dropPartitions();
+        main = null;
+        current = null;
+        inBatch = null;
+        if (sortedOnGroup && in != null)
+            child.close();
+        in = null;
     }
 
     @Override
@@ -76,6 +76,42 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge every row of a batch into the aggregate, as mergeTupleIntoGroup
+     * does for a tuple, without creating a Tuple per row.
+     *
+     * @param batch rows containing an aggregate field and a group-by field
+     */
+    public void mergeBatch(TupleBatch batch);
+
+    /**
+     * Merge row r of a batch into the aggregate, if its group is already
+     * in the aggregate or addGroup is true.
+     *
+     * @param batch rows containing an aggregate field and a group-by field
+     * @param r the row to merge
+     * @param addGroup whether a new group may be created for the row
+     * @return false if the row's group is new and addGroup is false, in
+     *   which case nothing is merged
+     */
+    public boolean mergeRow(TupleBatch batch, int r, boolean addGroup);
+
+    /** @return the number of groups in the aggregate */
+    public int numGroups();
+
+    /**
+     * Merge the groups of another aggregator into this one, as if every
+     * tuple merged into other had been merged into this aggregator.  Lets
+     * several threads each aggregate part of the input into an aggregator
+     * of their own, and combine the partial results at the end.
+     *
+     * @param other an aggregator of the same class, built with the same
+     *   arguments; it is not changed
+     * @throws IllegalArgumentException if other cannot be merged into this
+     *   aggregator
+     */
+    public void merge(Aggregator other);
+
     /**
      * Create a DbIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
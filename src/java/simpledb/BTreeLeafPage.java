@@ -200,7 +200,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @see #BTreeLeafPage
 	 * @return A byte array corresponding to the bytes of this page.
 	 */
-	public byte[] getPageData() {
+	public synchronized byte[] getPageData() {
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -289,7 +289,7 @@ public class BTreeLeafPage extends BTreePage {
 	 *         already empty.
 	 * @param t The tuple to delete
 	 */
-	public void deleteTuple(Tuple t) throws DbException {
+	public synchronized void deleteTuple(Tuple t) throws DbException {
 		RecordId rid = t.getRecordId();
 		if(rid == null)
 			throw new DbException("tried to delete tuple with null rid");
@@ -309,7 +309,7 @@ public class BTreeLeafPage extends BTreePage {
 	 *         is mismatch.
 	 * @param t The tuple to add.
 	 */
-	public void insertTuple(Tuple t) throws DbException {
+	public synchronized void insertTuple(Tuple t) throws DbException {
 		if (!t.getTupleDesc().equals(td))
 			throw new DbException("type mismatch, in addTuple");
 
@@ -402,7 +402,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param id - the new left sibling id
 	 * @throws DbException if the id is not valid
 	 */
-	public void setLeftSiblingId(BTreePageId id) throws DbException {
+	public synchronized void setLeftSiblingId(BTreePageId id) throws DbException {
 		if(id == null) {
 			leftSibling = 0;
 		}
@@ -422,7 +422,7 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param id - the new right sibling id
 	 * @throws DbException if the id is not valid
 	 */
-	public void setRightSiblingId(BTreePageId id) throws DbException {
+	public synchronized void setRightSiblingId(BTreePageId id) throws DbException {
 		if(id == null) {
 			rightSibling = 0;
 		}
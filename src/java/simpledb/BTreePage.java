@@ -97,7 +97,7 @@ public abstract class BTreePage implements Page {
 	 * @param id - the id of the parent of this page
 	 * @throws DbException if the id is not valid
 	 */
-	public void setParentId(BTreePageId id) throws DbException {
+	public synchronized void setParentId(BTreePageId id) throws DbException {
 		if(id == null) {
 			throw new DbException("parent id must not be null");
 		}
@@ -0,0 +1,177 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import simpledb.Predicate.Op;
+
+/**
+ * Helper class that implements the DbFileIterator for search tuples on a
+ * B+ Tree File
+ */
+class BTreeSearchIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+	PagePrefetcher.Scan readAhead;
+
+	TransactionId tid;
+	BTreeFile f;
+	IndexPredicate ipred;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on
+	 */
+	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+	}
+
+	/**
+	 * Open this iterator by getting an iterator on the first leaf page applicable
+	 * for the given predicate operation
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		BTreePageId root = rootPtr.getRootId();
+		if(searchesByKey()) {
+			start(f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField()));
+		}
+		else {
+			start(f.findLeafPage(tid, root, Permissions.READ_ONLY, null));
+		}
+	}
+
+	/** @return true if the search starts at the leaf page for the predicate's value */
+	private boolean searchesByKey() {
+		return ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
+				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ;
+	}
+
+	/** Start iterating at the first tuple of leaf page p. */
+	private void start(BTreeLeafPage p) {
+		curp = p;
+		it = curp.iterator();
+		// only scans that run to the last leaf read ahead; a bounded scan
+		// could end on any leaf
+		readAhead = null;
+		if(ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
+			readAhead = Database.getBufferPool().getPrefetcher().newScan();
+			readAhead.leafRead(curp);
+		}
+	}
+
+	/**
+	 * Move this open iterator to the tuples matching a new predicate.  If
+	 * the first match is on the leaf page the iterator is on, or on the
+	 * page to its right, the search starts there instead of at the root, so
+	 * a series of probes with increasing values reads each leaf page about
+	 * once.
+	 *
+	 * @param ipred - the predicate to filter on
+	 */
+	void seek(IndexPredicate ipred) throws DbException, TransactionAbortedException {
+		this.ipred = ipred;
+		close();
+		if(curp != null && searchesByKey()) {
+			Field v = ipred.getField();
+			BTreeLeafPage p = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+					curp.getId(), Permissions.READ_ONLY);
+			Field last = lastKey(p);
+			if(last != null && firstKey(p).compare(Op.LESS_THAN, v)
+					&& last.compare(Op.GREATER_THAN_OR_EQ, v)) {
+				// every page to the left holds smaller keys than v
+				start(p);
+				return;
+			}
+			BTreePageId nextp = p.getRightSiblingId();
+			if(last != null && last.compare(Op.LESS_THAN, v) && nextp != null) {
+				BTreeLeafPage next = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+						nextp, Permissions.READ_ONLY);
+				Field nextLast = lastKey(next);
+				if(nextLast != null && nextLast.compare(Op.GREATER_THAN_OR_EQ, v)) {
+					start(next);
+					return;
+				}
+			}
+		}
+		open();
+	}
+
+	private Field firstKey(BTreeLeafPage p) {
+		Iterator<Tuple> keys = p.iterator();
+		return keys.hasNext() ? keys.next().getField(f.keyField()) : null;
+	}
+
+	private Field lastKey(BTreeLeafPage p) {
+		Iterator<Tuple> keys = p.reverseIterator();
+		return keys.hasNext() ? keys.next().getField(f.keyField()) : null;
+	}
+
+	/**
+	 * Read the next tuple either from the current page if it has more tuples matching
+	 * the predicate or from the next page by following the right sibling pointer.
+	 * 
+	 * @return the next tuple matching the predicate, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException,
+	NoSuchElementException {
+		while (it != null) {
+
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+					return t;
+				}
+				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
+					// if the predicate was not satisfied and the operation is less than, we have
+					// hit the end
+					return null;
+				}
+				else if(ipred.getOp() == Op.EQUALS && 
+						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+					// if the tuple is now greater than the field passed in and the operation
+					// is equals, we have reached the end
+					return null;
+				}
+			}
+
+			BTreePageId nextp = curp.getRightSiblingId();
+			// if there are no more pages to the right, end the iteration
+			if(nextp == null) {
+				return null;
+			}
+			else {
+				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+						nextp, Permissions.READ_ONLY);
+				if(readAhead != null)
+					readAhead.leafRead(curp);
+				it = curp.iterator();
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * rewind this iterator back to the beginning of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+	}
+}
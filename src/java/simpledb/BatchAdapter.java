@@ -0,0 +1,66 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * BatchAdapter reads a tuple-at-a-time DbIterator in batches.  Every call is
+ * passed on to the wrapped iterator; nextBatch collects tuples from it with
+ * next.
+ */
+public class BatchAdapter implements BatchDbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final DbIterator child;
+
+    /**
+     * @param child the iterator to read in batches
+     */
+    public BatchAdapter(DbIterator child) {
+        this.child = child;
+    }
+
+    /**
+     * @return it if it reads batches natively, or else an adapter over it.
+     *   Opening or closing the result opens or closes it.
+     */
+    public static BatchDbIterator of(DbIterator it) {
+        if (it instanceof BatchDbIterator)
+            return (BatchDbIterator) it;
+        return new BatchAdapter(it);
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!child.hasNext())
+            return null;
+        TupleBatch batch = new TupleBatch(child.getTupleDesc());
+        while (!batch.isFull() && child.hasNext())
+            batch.addTuple(child.next());
+        return batch;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        return child.hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        return child.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+    }
+}
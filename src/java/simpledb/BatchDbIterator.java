@@ -0,0 +1,26 @@
+package simpledb;
+
+/**
+ * BatchDbIterator is a DbIterator that can also return its tuples a batch at
+ * a time.  Operators that process batches natively implement it, so a
+ * pipeline of them passes columnar {@link TupleBatch}es from one operator to
+ * the next instead of making a call per tuple.  {@link BatchAdapter} reads
+ * any other DbIterator in batches.
+ * <p>
+ * A consumer may mix calls to next and nextBatch; each tuple is returned
+ * once either way.
+ */
+public interface BatchDbIterator extends DbIterator {
+
+  /**
+   * Returns the next batch of tuples.  The batch is never empty, and
+   * typically holds around {@link TupleBatch#DEFAULT_SIZE} tuples.  The
+   * caller owns the batch: the iterator does not use it again, so the caller
+   * may change it.
+   *
+   * @return the next batch, or null if there are no more tuples.
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+
+}
@@ -0,0 +1,88 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Abstract class for operators that process tuples a batch at a time.
+ * Subclasses implement <code>fetchNextBatch</code>; BatchOperator returns
+ * the rows of those batches through <code>next</code> and
+ * <code>hasNext</code> for tuple-at-a-time consumers.
+ */
+public abstract class BatchOperator extends Operator implements BatchDbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    // batch that next() is returning tuples from, and the next row in it
+    private transient TupleBatch buffered = null;
+    private transient int pos = 0;
+
+    /**
+     * Returns the next batch of tuples, or null if the iteration is
+     * finished.  BatchOperator uses this method to implement
+     * <code>nextBatch</code>, <code>next</code> and <code>hasNext</code>.
+     * An empty batch is skipped.
+     *
+     * @return the next batch, which the caller owns, or null if the
+     *         iteration is finished.
+     */
+    protected abstract TupleBatch fetchNextBatch() throws DbException,
+            TransactionAbortedException;
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!isOpen())
+            throw new IllegalStateException("Operator not yet open");
+        if (buffered != null && pos < buffered.size()) {
+            // hand over the rows next() has not returned yet
+            TupleBatch rest = buffered;
+            rest.removeFirst(pos);
+            buffered = null;
+            return rest;
+        }
+        buffered = null;
+        TupleBatch batch;
+        do {
+            batch = fetchNextBatch();
+        } while (batch != null && batch.size() == 0);
+        return batch;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (!isOpen())
+            throw new IllegalStateException("Operator not yet open");
+        while (buffered == null || pos >= buffered.size()) {
+            buffered = fetchNextBatch();
+            pos = 0;
+            if (buffered == null)
+                return false;
+        }
+        return true;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return buffered.getTuple(pos++);
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        return hasNext() ? next() : null;
+    }
+
+    /**
+     * Resets the iterator to the start.  Subclasses that override this
+     * should call super.rewind() to drop the buffered batch.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        buffered = null;
+    }
+
+    /**
+     * Closes this iterator.  If overridden by a subclass, they should call
+     * super.close().
+     */
+    public void close() {
+        super.close();
+        buffered = null;
+    }
+}
@@ -0,0 +1,303 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The BlockNestedLoopsJoin operator joins two relations on any predicate by
+ * reading the outer relation a block at a time: it fills a number of pages'
+ * worth of outer tuples, then scans the inner relation once and joins every
+ * inner tuple with the whole block.  The inner relation is rewound once per
+ * block rather than once per outer tuple, as in Join.
+ * <p>
+ * For an equality predicate the block is indexed with a chained hash table
+ * over its join column, so each inner tuple is compared only with the outer
+ * tuples in its bucket; other predicates compare it with every tuple of the
+ * block.
+ */
+public class BlockNestedLoopsJoin extends BatchOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of pages of outer tuples in a block when none is given. */
+    public static final int DEFAULT_BLOCK_PAGES = 32;
+
+    private JoinPredicate p;
+    private DbIterator child1, child2;
+    private final int blockPages;
+
+    private transient BatchDbIterator outer;
+    private transient BatchDbIterator inner;
+    private transient TupleBatch outerBatch;
+    private transient int outerRow;
+    private transient boolean outerDone;
+
+    // the block of outer rows, and for equality its hash table: heads[bucket]
+    // is the first row of the bucket and chain[row] the next row in the same
+    // bucket, or -1
+    private transient TupleBatch block;
+    private transient int[] heads;
+    private transient int[] chain;
+    private transient int blocks;
+
+    // the inner row being joined with the block, and the next candidate row
+    // of the block
+    private transient TupleBatch innerBatch;
+    private transient int innerRow;
+    private transient int match;
+    private transient boolean matching;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public BlockNestedLoopsJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_BLOCK_PAGES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param blockPages
+     *            The number of pages of outer tuples to join with each scan
+     *            of the inner relation
+     */
+    public BlockNestedLoopsJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            int blockPages) {
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.blockPages = Math.max(1, blockPages);
+    }
+
+    /**
+     * @return the number of outer tuples of schema td that fit in blockPages
+     *   pages
+     */
+    public static int blockRows(TupleDesc td, int blockPages) {
+        long rows = (long) blockPages * BufferPool.getPageSize() / td.getSize();
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE / 2, rows));
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    /** @return the number of blocks joined since the operator was opened or rewound */
+    public int getBlocks() {
+        return blocks;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        child1.open();
+        child2.open();
+        outer = BatchAdapter.of(child1);
+        inner = BatchAdapter.of(child2);
+        start();
+    }
+
+    private void start() {
+        outerBatch = null;
+        outerDone = false;
+        block = null;
+        blocks = 0;
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        child2.close();
+        outer = null;
+        inner = null;
+        outerBatch = null;
+        block = null;
+        heads = null;
+        chain = null;
+        innerBatch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        child1.rewind();
+        child2.rewind();
+        start();
+    }
+
+    /**
+     * Fill the block with the next outer rows, rewinding the inner relation
+     * if it has been read already.
+     *
+     * @return false if there are no outer rows left
+     */
+    private boolean nextBlock() throws DbException, TransactionAbortedException {
+        int maxRows = blockRows(child1.getTupleDesc(), blockPages);
+        block = new TupleBatch(child1.getTupleDesc(), Math.min(maxRows, TupleBatch.DEFAULT_SIZE));
+        while (block.size() < maxRows && !outerDone) {
+            if (outerBatch == null || outerRow >= outerBatch.size()) {
+                outerBatch = outer.nextBatch();
+                outerRow = 0;
+                outerDone = outerBatch == null;
+                continue;
+            }
+            block.addRow(outerBatch, outerRow++);
+        }
+        if (block.size() == 0) {
+            block = null;
+            return false;
+        }
+        if (blocks > 0)
+            child2.rewind();
+        blocks++;
+        if (p.getOperator() == Predicate.Op.EQUALS)
+            buildTable();
+        innerBatch = null;
+        matching = false;
+        return true;
+    }
+
+    /** Build the hash table over the rows of the block. */
+    private void buildTable() {
+        int buckets = Integer.highestOneBit(block.size() * 2);
+        heads = new int[buckets];
+        Arrays.fill(heads, -1);
+        chain = new int[block.size()];
+        // insert from the last row so that each chain is in row order
+        int f1 = p.getField1();
+        for (int r = block.size() - 1; r >= 0; r--) {
+            int b = hash(block, f1, r) & (buckets - 1);
+            chain[r] = heads[b];
+            heads[b] = r;
+        }
+    }
+
+    private static int hash(TupleBatch batch, int field, int r) {
+        int h = (batch.isIntColumn(field) ? batch.getInt(field, r)
+                : batch.getString(field, r).hashCode()) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** @return true if row r of the block and the current inner row satisfy the predicate */
+    private boolean matches(int r) {
+        int f1 = p.getField1(), f2 = p.getField2();
+        Predicate.Op op = p.getOperator();
+        int c;
+        if (block.isIntColumn(f1)) {
+            c = Integer.compare(block.getInt(f1, r), innerBatch.getInt(f2, innerRow));
+        } else if (op == Predicate.Op.LIKE) {
+            return block.getField(f1, r).compare(op, innerBatch.getField(f2, innerRow));
+        } else {
+            c = block.getString(f1, r).compareTo(innerBatch.getString(f2, innerRow));
+        }
+        switch (op) {
+        case EQUALS:
+            return c == 0;
+        case NOT_EQUALS:
+            return c != 0;
+        case LESS_THAN:
+            return c < 0;
+        case LESS_THAN_OR_EQ:
+            return c <= 0;
+        case GREATER_THAN:
+            return c > 0;
+        case GREATER_THAN_OR_EQ:
+            return c >= 0;
+        default:
+            return c == 0; // LIKE on ints
+        }
+    }
+
+    /**
+     * Returns the next batch of tuples generated by the join, or null if
+     * there are no more tuples.  Tuples come a block of outer tuples at a
+     * time, in the order of the inner relation within a block.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        boolean equality = p.getOperator() == Predicate.Op.EQUALS;
+        TupleBatch out = new TupleBatch(getTupleDesc());
+        while (!out.isFull()) {
+            if (block == null && !nextBlock())
+                break;
+            if (innerBatch == null || innerRow >= innerBatch.size()) {
+                innerBatch = inner.nextBatch();
+                innerRow = 0;
+                matching = false;
+                if (innerBatch == null) {
+                    block = null; // the inner relation is used up for this block
+                    continue;
+                }
+            }
+            if (!matching) {
+                match = equality
+                        ? heads[hash(innerBatch, p.getField2(), innerRow) & (heads.length - 1)]
+                        : 0;
+                matching = true;
+            }
+            if (equality) {
+                while (match >= 0 && !out.isFull()) {
+                    if (matches(match))
+                        out.addJoinedRow(block, match, innerBatch, innerRow);
+                    match = chain[match];
+                }
+                if (match >= 0)
+                    continue;
+            } else {
+                while (match < block.size() && !out.isFull()) {
+                    if (matches(match))
+                        out.addJoinedRow(block, match, innerBatch, innerRow);
+                    match++;
+                }
+                if (match < block.size())
+                    continue;
+            }
+            innerRow++;
+            matching = false;
+        }
+        return out.size() == 0 ? null : out;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -0,0 +1,40 @@
+package simpledb;
+
+/**
+ * Broadcast runs its children on worker threads and sends every tuple to
+ * each of several ports.  It lets each worker of a parallel hash join join
+ * its share of one input with the whole of a smaller input.
+ */
+public class Broadcast extends ExchangePort {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int port;
+    private final int ports;
+
+    private Broadcast(ExchangeHub hub, int port, int ports) {
+        super(hub, port);
+        this.port = port;
+        this.ports = ports;
+    }
+
+    /**
+     * Broadcast the tuples of children.
+     *
+     * @param children the subtrees to run in parallel; they must have the
+     *   same schema
+     * @param ports the number of ports
+     * @return the ports, each of which returns every tuple
+     */
+    public static Broadcast[] split(DbIterator[] children, int ports) {
+        ExchangeHub hub = new ExchangeHub(ExchangeHub.Mode.BROADCAST, 0, children, ports);
+        Broadcast[] out = new Broadcast[ports];
+        for (int i = 0; i < ports; i++)
+            out[i] = new Broadcast(hub, i, ports);
+        return out;
+    }
+
+    public String getName() {
+        return "broadcast(" + (port + 1) + "/" + ports + ")";
+    }
+}
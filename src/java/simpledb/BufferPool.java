@@ -3,12 +3,17 @@ package simpledb;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Random;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 
 import java.util.HashMap;
 
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -17,7 +22,37 @@ import java.util.concurrent.ConcurrentHashMap;
  * <p>
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
- * locks to read/write the page.
+ * locks to read/write the page.  Locks are kept by a {@link LockManager} and
+ * held until the transaction completes (strict two-phase locking).
+ * <p>
+ * <u> Latching note: </u>
+ * <p>
+ * Lookups of resident pages never block.  Changes to the set of resident
+ * pages (admitting, evicting and discarding) are serialized on a small
+ * frame latch that is never held across disk reads or writes.  Concurrent
+ * misses on the same page are coalesced: the first thread reads the page
+ * and the others wait for that read.  Writes of a page are serialized on one of a
+ * fixed set of striped page latches.
+ * <p>
+ * Sequential scans read ahead through the pool's {@link PagePrefetcher},
+ * which may use up to a quarter of the pool, and a {@link PageCleaner}
+ * writes dirty pages in the background to keep some frames clean.
+ * <p>
+ * <u> Write-ahead logging note: </u>
+ * <p>
+ * The pool is NO-FORCE and STEAL.  A commit logs the changes to the
+ * transaction's pages and forces only the log; the pages stay dirty in the
+ * pool.  When every page is dirty, eviction writes one, committed or not,
+ * after logging its changes and forcing the log up to the page's LSN, the
+ * LSN of its last logged change, and then evicts it.  No page lock is
+ * needed, so pages another transaction is changing can be written too: the
+ * page's latch and its monitor, under which every change to a page is made,
+ * are held from logging its changes until it is written, so the image
+ * written is the one logged.  The write and the force of the log happen
+ * outside the frame latch.  Aborting first takes the transaction's pages
+ * out of the pool, writing the last logged image of any holding changes
+ * committed since the page was written, and then rolls the written changes
+ * back from the log.
  * 
  * @Threadsafe, all fields are final
  */
@@ -32,18 +67,72 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    private final Random random = new Random();
-    final int numPages;   // number of pages -- currently, not enforced
+    /** Number of striped latches used to serialize page writes. */
+    private static final int PAGE_LATCHES = 64;
+
+    final int numPages;   // maximum number of resident pages, counting reads in flight
     final ConcurrentHashMap<PageId,Page> pages; // hash table storing current pages in memory
+    // page LSNs of the resident pages with logged changes not yet written
+    private final ConcurrentHashMap<PageId,Long> pageLSNs = new ConcurrentHashMap<PageId,Long>();
+    // dirty pages being written by eviction
+    private final Set<PageId> stealing = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<PageId,FutureTask<Page>> loading; // reads in flight, one per page
+    private final ReplacementPolicy policy;
+    private final LockManager lockManager = new LockManager();
+    private final PagePrefetcher prefetcher;
+    private final PageCleaner cleaner;
+
+    private final Object frameLatch = new Object(); // guards admission and eviction
+    private final Object[] pageLatches;
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, evicting the
+     * least recently used page when it is full.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new LRUReplacementPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and uses the
+     * given policy to choose which page to evict when it is full.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the replacement policy; must not be shared with another
+     *     BufferPool.
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
         this.numPages = numPages;
         this.pages = new ConcurrentHashMap<PageId, Page>();
+        this.loading = new ConcurrentHashMap<PageId, FutureTask<Page>>();
+        this.policy = policy;
+        this.pageLatches = new Object[PAGE_LATCHES];
+        for (int i = 0; i < PAGE_LATCHES; i++)
+            pageLatches[i] = new Object();
+        this.prefetcher = new PagePrefetcher(this, Math.max(1, numPages / 4));
+        this.cleaner = new PageCleaner(this);
+    }
+
+    /** @return the replacement policy of this pool, including its hit/miss counters */
+    public ReplacementPolicy getReplacementPolicy() {
+        return policy;
+    }
+
+    /** @return the read-ahead thread of this pool, including its counters */
+    public PagePrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /** @return the background writer of this pool, including its counters */
+    public PageCleaner getCleaner() {
+        return cleaner;
+    }
+
+    /** @return the lock table of this pool */
+    public LockManager getLockManager() {
+        return lockManager;
     }
     
     public static int getPageSize() {
@@ -74,31 +163,220 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
+     * @throws DeadlockException if waiting for the lock would deadlock; the
+     *     transaction must then abort
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
-        // XXX Yuan points out that HashMap is not synchronized, so this is buggy.
-        // XXX TODO(ghuo): do we really know enough to implement NO STEAL here?
-        //     won't we still evict pages?
-        Page p;
-        synchronized(this) {
-            if (pages == null) {
-                System.out.println("NUll!");
+        if (tid != null)
+            lockManager.acquireLock(tid, pid, perm);
+        return fetchPage(pid, false);
+    }
+
+    /**
+     * Read a page into the pool ahead of use, without locking it.  Used by
+     * the {@link PagePrefetcher}; does not count as a hit or miss.  Only a
+     * clean page is evicted to make room, and if every page is dirty the
+     * read is dropped rather than write one.
+     *
+     * @return the resident page, or null if the read was dropped
+     */
+    Page prefetchPage(PageId pid) throws DbException {
+        return fetchPage(pid, true);
+    }
+
+    private Page fetchPage(PageId pid, boolean prefetch) throws DbException {
+        Page p = pages.get(pid);
+        if (p != null) {
+            if (!prefetch)
+                pageHit(pid);
+            return p;
+        }
+
+        FutureTask<Page> load;
+        boolean mine = false;
+        while (true) {
+            PageId victim;
+            synchronized (frameLatch) {
+                p = pages.get(pid);
+                if (p != null) {
+                    if (!prefetch)
+                        pageHit(pid);
+                    return p;
+                }
+                load = loading.get(pid);
+                if (load != null)
+                    break;
+                if (prefetch && !reserveCleanFrame()) {
+                    prefetcher.requestDropped();
+                    return null;
+                }
+                victim = reserveFrame();
+                if (victim == null) {
+                    load = new FutureTask<Page>(new PageReader(pid));
+                    loading.put(pid, load);
+                    mine = true;
+                    if (prefetch)
+                        prefetcher.pageLoaded(pid);
+                    break;
+                }
             }
-        	p = pages.get(pid); 
-            if(p == null) {
-                if(pages.size() >= numPages) {
-                    evictPage();
+            stealPage(victim);
+        }
+
+        if (!mine) {
+            p = awaitRead(load);
+            if (!prefetch)
+                prefetcher.pageUsed(pid);
+            return p;
+        }
+
+        load.run(); // read outside of the frame latch
+        try {
+            p = awaitRead(load);
+        } finally {
+            synchronized (frameLatch) {
+                if (p != null) {
+                    // an insert or delete may have installed a newer copy meanwhile
+                    Page cur = pages.get(pid);
+                    if (cur != null) {
+                        p = cur;
+                    } else if (prefetch) {
+                        pages.put(pid, p);
+                        policy.pageAdded(pid);
+                    } else {
+                        pages.put(pid, p);
+                        policy.pageMiss(pid);
+                    }
+                } else if (prefetch) {
+                    prefetcher.pageRemoved(pid);
                 }
-                
-                p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                pages.put(pid, p);
+                loading.remove(pid);
             }
         }
-        
         return p;
     }
 
+    private void pageHit(PageId pid) {
+        policy.pageHit(pid);
+        prefetcher.pageUsed(pid);
+    }
+
+    /** Reads a page from its DbFile on behalf of getPage. */
+    private static class PageReader implements Callable<Page> {
+        private final PageId pid;
+
+        PageReader(PageId pid) {
+            this.pid = pid;
+        }
+
+        public Page call() {
+            return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        }
+    }
+
+    /** Waits for a page read started by getPage and rethrows its failure. */
+    private Page awaitRead(FutureTask<Page> load) throws DbException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return load.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new DbException("could not read page: " + cause);
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Makes room for one more page by evicting clean pages.  Must be called
+     * while holding the frame latch.
+     *
+     * @return null once a frame is free; otherwise a dirty page that the
+     *     caller must write and evict with {@link #stealPage} outside the
+     *     frame latch before trying again
+     */
+    private PageId reserveFrame() throws DbException {
+        while (!reserveCleanFrame()) {
+            PageId pid = chooseSteal();
+            if (pid != null)
+                return pid;
+            if (stealing.isEmpty())
+                throw new DbException("no buffer pool slot can be evicted");
+            // another thread is writing a page; wait for it to be evictable
+            try {
+                frameLatch.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted waiting for a buffer pool slot");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Makes room for one more page by evicting clean pages only.  Must be
+     * called while holding the frame latch.
+     *
+     * @return false if the pool is full of dirty pages
+     */
+    private boolean reserveCleanFrame() {
+        while (pages.size() + loading.size() >= numPages) {
+            PageId pid = policy.chooseVictim(cleanPages);
+            if (pid == null)
+                return false;
+            evictPage(pid);
+        }
+        return true;
+    }
+
+    /**
+     * Installs a page that an insert or delete returned as dirty, replacing
+     * any resident copy.
+     */
+    private void cachePage(Page p) throws DbException {
+        PageId pid = p.getId();
+        cleaner.wake();
+        synchronized (latchFor(pid)) {
+            // not while the page is being logged and written
+            if (pages.replace(pid, p) != null)
+                return;
+        }
+        while (true) {
+            PageId victim;
+            synchronized (frameLatch) {
+                if (pages.containsKey(pid)) {
+                    //replace old page with new one in case the file returns a new copy of the page
+                    pages.put(pid, p);
+                    return;
+                }
+                // put page in pool
+                victim = reserveFrame();
+                if (victim == null) {
+                    pages.put(pid, p);
+                    policy.pageAdded(pid);
+                    return;
+                }
+            }
+            stealPage(victim);
+        }
+    }
+
+    private Object latchFor(PageId pid) {
+        return pageLatches[(pid.hashCode() & 0x7fffffff) % PAGE_LATCHES];
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -109,8 +387,7 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public  void releasePage(TransactionId tid, PageId pid) {
-        // some code goes here
-        // not necessary for lab1|lab2|lab3
+        lockManager.releaseLock(tid, pid);
     }
 
     /**
@@ -119,28 +396,112 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      */
     public void transactionComplete(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2|lab3
+        transactionComplete(tid, true);
+    }
+
+    /**
+     * Return true if the on-disk image of the specified page may be out of
+     * date or about to change: the page is locked for writing, or it is
+     * resident and dirty.  Used by scans that read the file directly.
+     */
+    public boolean isBeingWritten(PageId pid) {
+        if (lockManager.isLockedExclusive(pid))
+            return true;
+        Page p = pages.get(pid);
+        return p != null && p.isDirty() != null;
+    }
+
+    /**
+     * Return a snapshot of the resident pages of the specified table, by
+     * page number.  Takes no locks: the pages may still be changed by the
+     * transactions that lock them, and leave the pool at any time.
+     *
+     * @param tableId the table whose pages to return
+     */
+    public Map<Integer,Page> getCachedPages(int tableId) {
+        HashMap<Integer,Page> cached = new HashMap<Integer,Page>();
+        for (Map.Entry<PageId,Page> e : pages.entrySet()) {
+            if (e.getKey().getTableId() == tableId)
+                cached.put(e.getKey().pageNumber(), e.getValue());
+        }
+        return cached;
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        // some code goes here
-        // not necessary for lab1|lab2|lab3
-        return false;
+        return lockManager.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p>
+     * On commit the changes to the pages dirtied by tid are logged, and the
+     * log is forced with a COMMIT record unless tid has already committed
+     * through {@link Transaction}; the pages are not written.  On abort the
+     * pages dirtied by tid are taken out of the pool, and then the changes
+     * that reached the disk are rolled back from the log.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2|lab3
+        try {
+            LogFile log = Database.getLogFile();
+            if (commit) {
+                logPages(tid);
+                if (log.isActive(tid))
+                    log.logCommit(tid);
+            } else {
+                // first, so that nothing writes tid's changes while the
+                // log rolls the pages back on disk
+                for (PageId pid : pagesDirtiedBy(tid)) {
+                    rollBackPage(pid);
+                    DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                    if (file instanceof HeapFile)
+                        ((HeapFile) file).pageRolledBack(pid.pageNumber());
+                }
+                if (log.isActive(tid))
+                    log.logAbort(tid);
+            }
+        } finally {
+            lockManager.releaseAllLocks(tid);
+        }
+    }
+
+    /**
+     * Take a page of an aborting transaction out of the pool, dropping its
+     * unlogged changes, so that the page is left dirty on behalf of no
+     * transaction.  A page whose last logged image is not on disk, as it
+     * holds changes committed since the page was written, has that image
+     * written first.
+     */
+    private void rollBackPage(PageId pid) throws IOException {
+        synchronized (latchFor(pid)) {
+            Page p = pages.get(pid);
+            if (p == null)
+                return;
+            Long lsn = pageLSNs.get(pid);
+            if (lsn != null) {
+                Database.getLogFile().force(lsn);
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p.getBeforeImage());
+                Database.getLogFile().pageWritten(pid);
+                pageLSNs.remove(pid);
+            }
+        }
+        // the frame latch is taken before page latches
+        discardPage(pid);
+    }
+
+    /** @return the resident pages whose last dirtier is tid */
+    private ArrayList<PageId> pagesDirtiedBy(TransactionId tid) {
+        ArrayList<PageId> dirtied = new ArrayList<PageId>();
+        for (Page p : pages.values()) {
+            if (tid.equals(p.isDirty()))
+                dirtied.add(p.getId());
+        }
+        return dirtied;
     }
 
     /**
@@ -167,27 +528,10 @@ public class BufferPool {
 
         ArrayList<Page> dirtypages = file.insertTuple(tid, t);
 
-        synchronized(this) {
-            for (Page p : dirtypages){
-                p.markDirty(true, tid);
-                
-                //System.out.println("ADDING TUPLE TO PAGE " + p.getId().pageno() + " WITH HASH CODE " + p.getId().hashCode());
-                
-                // if page in pool already, done.
-                if(pages.get(p.getId()) != null) {
-                    //replace old page with new one in case addTuple returns a new copy of the page
-                    pages.put(p.getId(), p);
-                }
-                else {
-                    
-                    // put page in pool
-                    if(pages.size() >= numPages)
-                        evictPage();
-                    pages.put(p.getId(), p);
-                }
-            }
+        for (Page p : dirtypages){
+            p.markDirty(true, tid);
+            cachePage(p);
         }
-        // some code goes here
     }
 
     /**
@@ -208,38 +552,21 @@ public class BufferPool {
         DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
         ArrayList<Page> dirtypages = file.deleteTuple(tid, t);
 
-        synchronized(this) {
-        	for (Page p : dirtypages){
-        		p.markDirty(true, tid);
-                    
-        		// if page in pool already, done.
-        		if(pages.get(p.getId()) != null) {
-        			//replace old page with new one in case deleteTuple returns a new copy of the page
-        			pages.put(p.getId(), p);
-                }
-        		else {
-                        
-        			// put page in pool
-        			if(pages.size() >= numPages)
-        				evictPage();
-                    pages.put(p.getId(), p);
-                }	
-        	}   
-        }    
-        // some code goes here
+        for (Page p : dirtypages){
+            p.markDirty(true, tid);
+            cachePage(p);
+        }
     }
 
     /**
-     * Flush all dirty pages to disk.
-     * NB: Be careful using this routine -- it writes dirty data to disk so will
-     *     break simpledb if running in NO STEAL mode.
+     * Flush all dirty pages to disk, logging their changes first.  Pages of
+     * transactions still running are written too, as eviction may write
+     * them (STEAL).
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         Iterator<PageId> i = pages.keySet().iterator();
         while(i.hasNext())
             flushPage(i.next());
-        // some code goes here
-
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -250,68 +577,174 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
-        Page p = pages.get(pid);
-        if (p != null) {
-            pages.remove(pid);
+    public void discardPage(PageId pid) {
+        synchronized (frameLatch) {
+            pageLSNs.remove(pid);
+            if (pages.remove(pid) != null) {
+                policy.pageRemoved(pid);
+                prefetcher.pageRemoved(pid);
+            }
         }
-        // some code goes here
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk, after logging its changes since they
+     * were last logged and forcing the log up to its page LSN (write-ahead
+     * logging).  The page's monitor is held throughout, so that the page
+     * does not change between being logged and written, even if another
+     * thread holds its lock.
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
-        Page p = pages.get(pid);
-        if (p == null)
-            return; //not in buffer pool -- doesn't need to be flushed
-        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        file.writePage(p);
-        p.markDirty(false, null);
-        // </strip>
-        // some code goes here
+    private void flushPage(PageId pid) throws IOException {
+        synchronized (latchFor(pid)) {
+            Page p = pages.get(pid);
+            if (p == null)
+                return;
+            synchronized (p) {
+                logWrite(pid);
+                Long lsn = pageLSNs.get(pid);
+                if (lsn == null)
+                    return; //clean -- doesn't need to be flushed
+                Database.getLogFile().force(lsn);
+                writePage(pid);
+            }
+        }
+    }
+
+    /**
+     * Log the changes to a dirty page since they were last logged, making
+     * its current image the base of the next changes logged for it.
+     */
+    private void logWrite(PageId pid) throws IOException {
+        synchronized (latchFor(pid)) {
+            Page p = pages.get(pid);
+            if (p == null || p.isDirty() == null)
+                return;
+            long lsn = Database.getLogFile().logWrite(p.isDirty(), p.getBeforeImage(), p);
+            if (lsn != 0)
+                pageLSNs.put(pid, lsn);
+            p.setBeforeImage();
+        }
+    }
+
+    /**
+     * Write a page whose changes are logged, and mark it clean.
+     *
+     * @return false if the page is not resident or is clean
+     */
+    private boolean writePage(PageId pid) throws IOException {
+        synchronized (latchFor(pid)) {
+            Page p = pages.get(pid);
+            if (p == null || p.isDirty() == null)
+                return false;
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            file.writePage(p);
+            Database.getLogFile().pageWritten(pid);
+            pageLSNs.remove(pid);
+            p.markDirty(false, null);
+            return true;
+        }
+    }
+
+    /**
+     * Log the changes to the pages of the specified transaction, without
+     * writing the pages.  The force of the log for the transaction's COMMIT
+     * record makes them durable.
+     */
+    public void logPages(TransactionId tid) throws IOException {
+        for (PageId pid : pagesDirtiedBy(tid))
+            logWrite(pid);
     }
 
     /** Write all pages of the specified transaction to disk.
+     * Their changes are logged first, with one force of the log for all of
+     * them; tid holds their write locks, so they cannot change meanwhile.
+     */
+    public void flushPages(TransactionId tid) throws IOException {
+        writePages(pagesDirtiedBy(tid));
+    }
+
+    /**
+     * Write pages to disk in the given order.  Their changes are logged
+     * first, with one force of the log up to the largest of their page LSNs.
+     *
+     * @return the number of pages written
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2|lab3
+    int writePages(List<PageId> pids) throws IOException {
+        long lsn = 0;
+        for (PageId pid : pids) {
+            logWrite(pid);
+            Long pageLSN = pageLSNs.get(pid);
+            if (pageLSN != null)
+                lsn = Math.max(lsn, pageLSN);
+        }
+        if (lsn != 0)
+            Database.getLogFile().force(lsn);
+        int n = 0;
+        for (PageId pid : pids) {
+            if (writePage(pid))
+                n++;
+        }
+        return n;
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Discards a clean page from the buffer pool.  Must be called while
+     * holding the frame latch.
      */
-    private synchronized  void evictPage() throws DbException {
-        Object pids[] = pages.keySet().toArray();
-        PageId pid = (PageId) pids[random.nextInt(pids.length)];
+    private void evictPage(PageId pid) {
+        pages.remove(pid);
+        policy.pageRemoved(pid);
+        prefetcher.pageRemoved(pid);
+    }
+
+    /**
+     * Chooses a dirty page to write so that it can be evicted (STEAL).  Any
+     * page not already being written may be chosen, whoever locks it.  Must
+     * be called while holding the frame latch.
+     *
+     * @return the page, or null if every page is being written
+     */
+    private PageId chooseSteal() {
+        PageId pid = policy.chooseVictim(stealable);
+        if (pid != null)
+            stealing.add(pid);
+        return pid;
+    }
+
+    /**
+     * Writes a page chosen by {@link #chooseSteal} once its log records are
+     * on disk, and evicts it unless it was dirtied again meanwhile.  Must
+     * not be called while holding the frame latch.
+     */
+    private void stealPage(PageId pid) throws DbException {
+        cleaner.pageStolen();
         try {
-            Page p = pages.get(pid);
-            if (p.isDirty() != null) { //if this is dirty, remove first non-dirty
-                boolean gotNew = false;
-                for (PageId pg : pages.keySet()) {
-                    if (pages.get(pg).isDirty() == null) {
-                        pid = pg;
-                        gotNew = true;
-                        break;
-                    }
-                }
-                if (!gotNew) {
-                    throw new DbException("All buffer pool slots contain dirty pages;  COMMIT or ROLLBACK to continue.");
-                }
-            }
-            //XXX: The above code makes sure page is not dirty. 
-            //Assuming we have FORCE, Why do we flush it to disk?
-            //Answer: yes we don't need this if we have FORCE, but we do need it if we don't.
-            //it doesn't hurt to keep it here.            
             flushPage(pid);
         } catch (IOException e) {
-            throw new DbException("could not evict page");
+            throw new DbException("could not write page " + pid + ": " + e.getMessage());
+        } finally {
+            synchronized (frameLatch) {
+                stealing.remove(pid);
+                Page p = pages.get(pid);
+                if (p != null && p.isDirty() == null)
+                    evictPage(pid);
+                frameLatch.notifyAll();
+            }
         }
-        pages.remove(pid);
-        // some code goes here
     }
 
+    private final ReplacementPolicy.EvictionFilter stealable = new ReplacementPolicy.EvictionFilter() {
+        public boolean canEvict(PageId candidate) {
+            return pages.containsKey(candidate) && !stealing.contains(candidate);
+        }
+    };
+
+    private final ReplacementPolicy.EvictionFilter cleanPages = new ReplacementPolicy.EvictionFilter() {
+        public boolean canEvict(PageId candidate) {
+            Page p = pages.get(candidate);
+            return p != null && p.isDirty() == null;
+        }
+    };
+
 }
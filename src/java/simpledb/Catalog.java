@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
@@ -126,8 +127,9 @@ public class Catalog {
         return id2name.get(id);
     }
     
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog, closing their files */
     public void clear() {
+        closeFiles();
         id2table.clear();
         id2tupledesc.clear();
         name2id.clear();
@@ -135,6 +137,22 @@ public class Catalog {
         pkey.clear();
     }
     
+    /**
+     * Close the open file handles of every table in the catalog.  Tables
+     * stay in the catalog and reopen their files when they are next used.
+     */
+    public void closeFiles() {
+        for (DbFile file : id2table.values()) {
+            if (file instanceof Closeable) {
+                try {
+                    ((Closeable) file).close();
+                } catch (IOException e) {
+                    // Ignore failures closing the file
+                }
+            }
+        }
+    }
+    
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
      * @param catalogFile
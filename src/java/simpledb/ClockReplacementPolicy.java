@@ -0,0 +1,74 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * CLOCK (second-chance) replacement.  Resident pages sit in a circular array
+ * of frames, each with a reference bit that is set on every access.  The
+ * clock hand sweeps the frames, clearing set bits and stopping at the first
+ * evictable frame whose bit is already clear.
+ */
+public class ClockReplacementPolicy extends AbstractReplacementPolicy {
+
+    private final ArrayList<PageId> frames = new ArrayList<PageId>();
+    private final ArrayList<Boolean> referenced = new ArrayList<Boolean>();
+    private final HashMap<PageId, Integer> frameOf = new HashMap<PageId, Integer>();
+    private final ArrayList<Integer> freeFrames = new ArrayList<Integer>();
+    private int hand = 0;
+
+    protected void accessed(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null)
+            referenced.set(frame, true);
+    }
+
+    protected void admitted(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame == null) {
+            if (freeFrames.isEmpty()) {
+                frame = frames.size();
+                frames.add(pid);
+                referenced.add(true);
+            } else {
+                frame = freeFrames.remove(freeFrames.size() - 1);
+                frames.set(frame, pid);
+            }
+            frameOf.put(pid, frame);
+        }
+        referenced.set(frame, true);
+    }
+
+    protected void removed(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null) {
+            frames.set(frame, null);
+            referenced.set(frame, false);
+            freeFrames.add(frame);
+        }
+    }
+
+    protected PageId victim(EvictionFilter filter) {
+        int n = frames.size();
+        // two full sweeps are enough to clear every reference bit once and
+        // then find a clear one, unless nothing is evictable
+        for (int i = 0; i < 2 * n; i++) {
+            int frame = hand;
+            hand = (hand + 1) % n;
+            PageId pid = frames.get(frame);
+            if (pid == null)
+                continue;
+            if (referenced.get(frame)) {
+                referenced.set(frame, false);
+                continue;
+            }
+            if (filter.canEvict(pid))
+                return pid;
+        }
+        return null;
+    }
+
+    public String getName() {
+        return "CLOCK";
+    }
+}
@@ -0,0 +1,85 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * DbFileChannel keeps a single FileChannel open on the file backing a
+ * DbFile, and reads and writes pages with positional I/O so that no seek,
+ * stream or file open is needed per page.  Positional reads and writes may
+ * run concurrently from several threads.
+ * <p>
+ * The channel is opened lazily and reopened if it was closed, either by
+ * {@link #close} or because a thread was interrupted during I/O.
+ */
+class DbFileChannel {
+
+    private final File f;
+    private volatile FileChannel channel;
+
+    DbFileChannel(File f) {
+        this.f = f;
+    }
+
+    /** @return the open channel, opening it if necessary */
+    FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch != null && ch.isOpen())
+            return ch;
+        synchronized (this) {
+            if (channel == null || !channel.isOpen())
+                channel = new RandomAccessFile(f, "rw").getChannel();
+            return channel;
+        }
+    }
+
+    /**
+     * Read buf.length bytes starting at the given file offset.
+     * @throws EOFException if the file ends before buf is full
+     */
+    void read(byte[] buf, long position) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        FileChannel ch = channel();
+        while (bb.hasRemaining()) {
+            int n = ch.read(bb, position + bb.position());
+            if (n < 0)
+                throw new EOFException("read past end of " + f);
+        }
+    }
+
+    /** Write all of data starting at the given file offset. */
+    void write(byte[] data, long position) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        FileChannel ch = channel();
+        while (bb.hasRemaining())
+            ch.write(bb, position + bb.position());
+    }
+
+    /**
+     * Map a region of the file read-only.  The mapping stays valid after
+     * the channel is closed.
+     */
+    MappedByteBuffer map(long position, long size) throws IOException {
+        return channel().map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    /** Force the writes made so far to disk. */
+    void force() throws IOException {
+        channel().force(true);
+    }
+
+    /** @return the current size of the file in bytes */
+    long size() throws IOException {
+        return channel().size();
+    }
+
+    /** Close the channel; it is reopened by the next read or write. */
+    synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
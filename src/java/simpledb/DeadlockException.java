@@ -1,9 +1,11 @@
 package simpledb;
 
-import java.lang.Exception;
-
-/** Exception that is thrown when a deadlock occurs. */
-public class DeadlockException extends Exception {
+/**
+ * Exception that is thrown when a deadlock occurs.  The transaction that
+ * receives it has been chosen as the victim and must abort, so it is a
+ * TransactionAbortedException.
+ */
+public class DeadlockException extends TransactionAbortedException {
     private static final long serialVersionUID = 1L;
 
     public DeadlockException() {
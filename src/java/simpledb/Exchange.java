@@ -0,0 +1,43 @@
+package simpledb;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Exchange is the base class of the operators that move tuples between
+ * threads during parallel query execution.  Each exchange runs its input
+ * subtrees on worker threads, and hands their batches to the thread reading
+ * the exchange through bounded queues.
+ * <p>
+ * Workers come from one shared pool of daemon threads.  The pool grows as
+ * needed rather than having a fixed size, so that a worker blocked on a full
+ * queue of one exchange never keeps the subtree that would drain it from
+ * running.
+ */
+public abstract class Exchange extends BatchOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of batches an exchange queues per output before its producers wait. */
+    public static final int QUEUE_BATCHES = 4;
+
+    private static final ExecutorService workers = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                private int n = 0;
+
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "exchange-worker-" + n++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /** @return the pool that runs the input subtrees of exchanges */
+    static ExecutorService getWorkers() {
+        return workers;
+    }
+
+    /** @return a short name for the exchange, shown in query plans */
+    public abstract String getName();
+}
@@ -0,0 +1,266 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * ExchangeHub runs the inputs of an exchange on worker threads and routes
+ * their batches to one or more outputs, each read by an {@link ExchangePort}.
+ * A batch goes to one output (gather), is split between the outputs by a
+ * hash of a field (repartition), or is copied to every output (broadcast).
+ * <p>
+ * The inputs start when the first port opens and stop once every port has
+ * closed.  Batches for an output whose port has not opened yet wait in its
+ * queue; batches for an output whose port has closed are dropped, so a
+ * consumer that stops early never stalls the others.  Every input ends by
+ * putting an end marker in every queue, even when it fails, so a reader
+ * blocked on its queue always wakes up to see the end or the failure.
+ */
+class ExchangeHub {
+
+    /** How batches are routed to the outputs. */
+    enum Mode {
+        GATHER, REPARTITION, BROADCAST
+    }
+
+    // end of one input, in every queue
+    private static final TupleBatch END = new TupleBatch(new TupleDesc(new Type[0]), 1);
+
+    private static final int NEW = 0, OPEN = 1, CLOSED = 2;
+
+    private final Mode mode;
+    private final int field;
+    private DbIterator[] inputs;
+    private final List<BlockingQueue<TupleBatch>> queues;
+    private final AtomicIntegerArray state;
+
+    private int closedPorts = 0;
+    private Future<?>[] tasks;
+    private boolean stopping;
+    private volatile boolean cancelled;
+    private volatile Throwable error;
+
+    /**
+     * @param mode how batches are routed
+     * @param field the field to hash on in REPARTITION mode
+     * @param inputs the subtrees to run, one per worker
+     * @param outputs the number of outputs
+     */
+    ExchangeHub(Mode mode, int field, DbIterator[] inputs, int outputs) {
+        this.mode = mode;
+        this.field = field;
+        this.inputs = inputs;
+        queues = new ArrayList<BlockingQueue<TupleBatch>>(outputs);
+        for (int i = 0; i < outputs; i++)
+            queues.add(new ArrayBlockingQueue<TupleBatch>(Exchange.QUEUE_BATCHES + inputs.length));
+        state = new AtomicIntegerArray(outputs);
+    }
+
+    DbIterator[] getInputs() {
+        return inputs;
+    }
+
+    synchronized void setInputs(DbIterator[] inputs) {
+        if (tasks != null)
+            throw new IllegalStateException("exchange is running");
+        this.inputs = inputs;
+    }
+
+    int numInputs() {
+        return inputs.length;
+    }
+
+    int numOutputs() {
+        return queues.size();
+    }
+
+    /** Start the inputs if they are not running, and open output i. */
+    synchronized void open(int i) throws DbException {
+        while (stopping) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (tasks == null) {
+            cancelled = false;
+            error = null;
+            tasks = new Future<?>[inputs.length];
+            for (int j = 0; j < inputs.length; j++) {
+                final DbIterator in = inputs[j];
+                tasks[j] = Exchange.getWorkers().submit(new Runnable() {
+                    public void run() {
+                        produce(in);
+                    }
+                });
+            }
+        }
+        if (state.get(i) == CLOSED)
+            throw new DbException("an output of an exchange cannot be reopened until every output has closed");
+        state.set(i, OPEN);
+    }
+
+    /**
+     * Close output i.  Closing the last output stops the inputs and waits
+     * for their workers to finish; until then an early close only drops the
+     * batches for i, since the ports still to open need the inputs running.
+     */
+    void close(int i) {
+        Future<?>[] running;
+        synchronized (this) {
+            if (state.get(i) != OPEN)
+                return;
+            state.set(i, CLOSED);
+            // wakes the inputs waiting for room in the queue
+            queues.get(i).clear();
+            if (++closedPorts < queues.size())
+                return;
+            running = tasks;
+            cancelled = true;
+            stopping = true;
+        }
+        for (Future<?> t : running) {
+            try {
+                t.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                // produce catches everything
+            }
+        }
+        synchronized (this) {
+            for (int j = 0; j < queues.size(); j++) {
+                queues.get(j).clear();
+                state.set(j, NEW);
+            }
+            tasks = null;
+            closedPorts = 0;
+            stopping = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Take the next batch for output i.
+     *
+     * @return the next batch, or the end marker of one input
+     */
+    TupleBatch take(int i) throws DbException, TransactionAbortedException {
+        checkError();
+        try {
+            TupleBatch b = queues.get(i).take();
+            // a failed input stops the others; its end marker wakes us
+            checkError();
+            return b;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while reading an exchange");
+        }
+    }
+
+    /** @return true if b marks the end of an input */
+    static boolean isEnd(TupleBatch b) {
+        return b == END;
+    }
+
+    /** Rethrow the failure of any input. */
+    private void checkError() throws DbException, TransactionAbortedException {
+        Throwable e = error;
+        if (e == null)
+            return;
+        if (e instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) e;
+        if (e instanceof DbException)
+            throw (DbException) e;
+        throw new DbException("exchange worker failed: " + e);
+    }
+
+    /** Run one input to the end, routing its batches. */
+    private void produce(DbIterator in) {
+        try {
+            if (cancelled)
+                return;
+            in.open();
+            BatchDbIterator batches = BatchAdapter.of(in);
+            TupleBatch b;
+            while (!cancelled && (b = batches.nextBatch()) != null)
+                route(b);
+        } catch (Throwable e) {
+            if (error == null)
+                error = e;
+            cancelled = true;
+        } finally {
+            in.close();
+            for (int i = 0; i < queues.size(); i++)
+                put(i, END);
+        }
+    }
+
+    private void route(TupleBatch b) {
+        switch (mode) {
+        case GATHER:
+            put(0, b);
+            break;
+        case BROADCAST:
+            // consumers may change their batch, so each gets its own, and b
+            // itself goes last
+            for (int i = 1; i < queues.size(); i++) {
+                TupleBatch copy = new TupleBatch(b.getTupleDesc(), b.size());
+                for (int r = 0; r < b.size(); r++)
+                    copy.addRow(b, r);
+                put(i, copy);
+            }
+            put(0, b);
+            break;
+        case REPARTITION:
+            TupleBatch[] parts = new TupleBatch[queues.size()];
+            for (int r = 0; r < b.size(); r++) {
+                int i = partition(b, field, r, queues.size());
+                if (parts[i] == null)
+                    parts[i] = new TupleBatch(b.getTupleDesc());
+                parts[i].addRow(b, r);
+            }
+            for (int i = 0; i < parts.length; i++) {
+                if (parts[i] != null)
+                    put(i, parts[i]);
+            }
+            break;
+        }
+    }
+
+    /** @return the output of row r when repartitioning on field into n outputs */
+    static int partition(TupleBatch b, int field, int r, int n) {
+        // a different hash from the one operators use for their hash tables,
+        // so that the rows of one output still spread over all buckets
+        int h = b.isIntColumn(field) ? b.getInt(field, r) : b.getString(field, r).hashCode();
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (int) (((h & 0xFFFFFFFFL) * n) >>> 32);
+    }
+
+    /**
+     * Queue b for output i, waiting while the queue is full.  Batches for a
+     * closed output are dropped, and so are batches of rows once the
+     * exchange is stopped; an end marker still goes to every open output.
+     * Closing an output clears its queue, which wakes a waiting put; a put
+     * that raced with the close adds at most one batch per input to the
+     * cleared queue, which has room for them.
+     */
+    private void put(int i, TupleBatch b) {
+        if (state.get(i) == CLOSED || (cancelled && b != END))
+            return;
+        try {
+            queues.get(i).put(b);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
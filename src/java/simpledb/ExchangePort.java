@@ -0,0 +1,81 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * ExchangePort is the operator that reads one output of an exchange.  Its
+ * children are the input subtrees of the exchange, which run on worker
+ * threads while the port is open; ports that share an exchange have the same
+ * children.
+ * <p>
+ * Rewinding a port restarts the whole exchange, so only a port that is the
+ * single output of its exchange can be rewound.  A parallel plan is rewound
+ * by rewinding the {@link Gather} at its top: that closes and reopens the
+ * subtrees below it, which restarts the exchanges inside them.
+ */
+public abstract class ExchangePort extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient ExchangeHub hub;
+    private final int output;
+    private transient int ended;
+
+    /**
+     * @param hub the exchange
+     * @param output the output of the exchange this port reads
+     */
+    ExchangePort(ExchangeHub hub, int output) {
+        this.hub = hub;
+        this.output = output;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return hub.getInputs()[0].getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        ended = 0;
+        hub.open(output);
+    }
+
+    public void close() {
+        super.close();
+        hub.close(output);
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (hub.numOutputs() > 1)
+            throw new DbException("a port of an exchange with several outputs cannot be rewound alone");
+        super.rewind();
+        hub.close(output);
+        ended = 0;
+        hub.open(output);
+    }
+
+    /**
+     * Returns the next batch from the exchange, or null once every input
+     * has ended.
+     */
+    protected TupleBatch fetchNextBatch() throws DbException, TransactionAbortedException {
+        while (ended < hub.numInputs()) {
+            TupleBatch b = hub.take(output);
+            if (!ExchangeHub.isEnd(b))
+                return b;
+            ended++;
+        }
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return hub.getInputs();
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        hub.setInputs(children);
+    }
+}
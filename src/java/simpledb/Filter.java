@@ -3,15 +3,17 @@ package simpledb;
 import java.util.*;
 
 /**
- * Filter is an operator that implements a relational select.
+ * Filter is an operator that implements a relational select.  It filters a
+ * batch of tuples at a time.
  */
-public class Filter extends Operator {
+public class Filter extends BatchOperator {
 
     private static final long serialVersionUID = 1L;
 
     private Predicate p;
 
     private DbIterator child;
+    private transient int[] sel;
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -53,25 +55,30 @@ public class Filter extends Operator {
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
+        super.rewind();
         child.rewind();
     }
 
     /**
-     * AbstractDbIterator.readNext implementation. Iterates over tuples from the
-     * child operator, applying the predicate to them and returning those that
-     * pass the predicate (i.e. for which the Predicate.filter() returns true.)
+     * BatchOperator.fetchNextBatch implementation. Reads batches from the
+     * child operator and keeps the tuples that pass the predicate (i.e. for
+     * which the Predicate.filter() returns true.)
      * 
-     * @return The next tuple that passes the filter, or null if there are no
-     *         more tuples
+     * @return The next batch of tuples that pass the filter, or null if
+     *         there are no more tuples
      * @see Predicate#filter
      */
-    protected Tuple fetchNext() throws NoSuchElementException,
+    protected TupleBatch fetchNextBatch() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        // some code goes here
-        while (child.hasNext()) {
-            Tuple tuple = child.next();
-            if (p.filter(tuple)) {
-                return tuple;
+        BatchDbIterator in = BatchAdapter.of(child);
+        TupleBatch batch;
+        while ((batch = in.nextBatch()) != null) {
+            if (sel == null || sel.length < batch.size())
+                sel = new int[Math.max(batch.size(), TupleBatch.DEFAULT_SIZE)];
+            int n = p.filter(batch, sel);
+            if (n > 0) {
+                batch.retain(sel, n);
+                return batch;
             }
         }
         return null;
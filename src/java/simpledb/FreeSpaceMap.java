@@ -0,0 +1,58 @@
+package simpledb;
+
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile may have an empty slot,
+ * so that an insert can go straight to such a page instead of reading the
+ * file from page 0.  It is kept in memory only and is rebuilt from the page
+ * headers the first time it is needed.
+ * <p>
+ * The map is a hint.  A page marked as having room may have filled up since
+ * (the caller checks under the page lock and calls {@link #markFull}); a
+ * page is only marked full after it was seen full, and is marked again when
+ * a tuple is deleted from it or a change to it is rolled back.
+ */
+class FreeSpaceMap {
+
+    private final BitSet hasRoom = new BitSet();
+    private boolean built = false;
+
+    /** @return true once the map has been filled in by {@link #build} */
+    synchronized boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * Fill in the map from the number of empty slots on each page.
+     *
+     * @param emptySlots the number of empty slots on each page of the file
+     */
+    synchronized void build(int[] emptySlots) {
+        hasRoom.clear();
+        for (int i = 0; i < emptySlots.length; i++) {
+            if (emptySlots[i] > 0)
+                hasRoom.set(i);
+        }
+        built = true;
+    }
+
+    /**
+     * @return the first page at or after from that may have an empty slot,
+     *   or -1 if there is none
+     */
+    synchronized int nextFreePage(int from) {
+        return hasRoom.nextSetBit(from);
+    }
+
+    /** Record that pageNo may have an empty slot. */
+    synchronized void markFree(int pageNo) {
+        if (built)
+            hasRoom.set(pageNo);
+    }
+
+    /** Record that pageNo has no empty slot. */
+    synchronized void markFull(int pageNo) {
+        hasRoom.clear(pageNo);
+    }
+}
@@ -0,0 +1,23 @@
+package simpledb;
+
+/**
+ * Gather runs its children on worker threads and returns the union of their
+ * tuples, in whatever order they arrive.  It is the top of the parallel part
+ * of a plan, where every child computes one share of the result.
+ */
+public class Gather extends ExchangePort {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param children the subtrees to run in parallel; they must have the
+     *   same schema
+     */
+    public Gather(DbIterator[] children) {
+        super(new ExchangeHub(ExchangeHub.Mode.GATHER, 0, children, 1), 0);
+    }
+
+    public String getName() {
+        return "gather(" + getChildren().length + ")";
+    }
+}
@@ -1,18 +1,85 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin is a hybrid hash join.  It reads the inner (right) relation
+ * into one batch and builds a chained hash table over its join column, kept
+ * in int arrays; the outer relation is then probed a batch at a time.
+ * <p>
+ * If the inner relation outgrows the memory budget, both relations are
+ * split by a hash of the join column into {@link #NUM_PARTITIONS}
+ * partitions.  The first partition of the inner relation stays in memory
+ * (unless it outgrows the budget too) and is joined while the outer
+ * relation is read; the other partitions are written to temporary spill
+ * files and joined one pair at a time afterwards.  A partition that still
+ * does not fit is partitioned again with a different hash, up to
+ * {@link #MAX_LEVEL} times; after that (a heavily skewed key) it is joined
+ * a memory-sized block of inner rows at a time.
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends BatchOperator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Memory for the inner relation when no budget is given, in bytes. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16L * 1024 * 1024;
+
+    /** The number of partitions a relation is split into when it is spilled. */
+    static final int NUM_PARTITIONS = 16;
+
+    /** The most times a partition is partitioned again. */
+    static final int MAX_LEVEL = 3;
+
     private JoinPredicate p;
     private DbIterator child1, child2;
-    private Map<Field, List<Tuple>> hash2;
-    private Tuple t1;
+    private final long memoryBudget;
+
+    // in-memory inner rows and hash table: heads[bucket] is the first row of
+    // the bucket and chain[row] the next row in the same bucket, or -1
+    private transient TupleBatch build;
+    private transient int[] heads;
+    private transient int[] chain;
+
+    // probe state: the outer row being joined and the next candidate inner row
+    private transient TupleBatch probe;
+    private transient int probeRow;
+    private transient int match;
+    private transient boolean matching;
+
+    // partitioned execution.  While the outer relation is read, buildParts
+    // and probeParts hold the spilled partitions (buildParts[0] is null while
+    // the first partition is in memory).  Then each pair is joined in turn,
+    // reading outer rows from probeFile.
+    private transient boolean partitioned;
+    private transient SpillFile[] buildParts;
+    private transient SpillFile[] probeParts;
+    private transient boolean outerDone;
+    private transient ArrayDeque<Partition> pending;
+    private transient Partition current;
+    private transient SpillFile probeFile;
+    private transient int spilledPartitions;
+    private transient long spilledBytes;
+
+    /** A pair of spilled partitions still to be joined. */
+    private static class Partition {
+        final SpillFile build;
+        final SpillFile probe;
+        final int level;
+
+        Partition(SpillFile build, SpillFile probe, int level) {
+            this.build = build;
+            this.probe = probe;
+            this.level = level;
+        }
+
+        void close() {
+            build.close();
+            probe.close();
+        }
+    }
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -28,11 +95,28 @@ public class HashEquiJoin extends Operator {
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2){
         // some code goes here
         //Alternations: added exception
+        this(p, child1, child2, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param memoryBudget
+     *            The most bytes of inner tuples to hold in memory; more are
+     *            spilled to disk
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            long memoryBudget) {
         this.p = p;
         this.child1 = child1;
         this.child2 = child2;
-        hash2 = new HashMap<>();
-        t1 = null;
+        this.memoryBudget = memoryBudget;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -56,6 +140,16 @@ public class HashEquiJoin extends Operator {
         // some code goes here
         return child2.getTupleDesc().getFieldName(p.getField2());
     }
+
+    /** @return the number of partitions spilled to disk since the join was opened */
+    public int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    /** @return the number of bytes spilled to disk since the join was opened */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
     
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
@@ -63,44 +157,307 @@ public class HashEquiJoin extends Operator {
         super.open();
         child1.open();
         child2.open();
+        spilledPartitions = 0;
+        spilledBytes = 0;
         createHashIndex();
     }
 
+    /** @return the number of inner rows that fit in the memory budget */
+    private int maxBuildRows() {
+        long rows = memoryBudget / child2.getTupleDesc().getSize();
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE / 2, rows));
+    }
+
     private void createHashIndex() throws DbException, TransactionAbortedException {
-        while (child2.hasNext()) {
-            Tuple t2 = child2.next();
-            Field key = t2.getField(p.getField2());
-            List<Tuple> tupleList = hash2.getOrDefault(key, new ArrayList<>());
-            tupleList.add(t2);
-            hash2.put(key, tupleList);
+        build = new TupleBatch(child2.getTupleDesc());
+        BatchDbIterator in = BatchAdapter.of(child2);
+        TupleBatch batch;
+        try {
+            while ((batch = in.nextBatch()) != null) {
+                for (int r = 0; r < batch.size(); r++) {
+                    if (buildParts == null) {
+                        build.addRow(batch, r);
+                        if (build.size() > maxBuildRows())
+                            startPartitioning();
+                    } else {
+                        addBuildRow(batch, r);
+                    }
+                }
+            }
+            partitioned = buildParts != null;
+            if (partitioned) {
+                probeParts = new SpillFile[NUM_PARTITIONS];
+                for (int i = 0; i < NUM_PARTITIONS; i++) {
+                    if (buildParts[i] == null)
+                        continue;
+                    buildParts[i].finishWriting();
+                    spilledBytes += buildParts[i].bytes();
+                    spilledPartitions++;
+                    probeParts[i] = new SpillFile(child1.getTupleDesc());
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("could not spill join partition: " + e);
+        }
+        if (build != null)
+            buildTable();
+        outerDone = false;
+        probe = null;
+    }
+
+    /** Split the inner rows read so far into partitions. */
+    private void startPartitioning() throws IOException {
+        buildParts = new SpillFile[NUM_PARTITIONS];
+        TupleBatch rows = build;
+        build = new TupleBatch(rows.getTupleDesc());
+        for (int r = 0; r < rows.size(); r++)
+            addBuildRow(rows, r);
+    }
+
+    /** Add an inner row to its partition while the inner relation is read. */
+    private void addBuildRow(TupleBatch batch, int r) throws IOException {
+        int part = partition(batch, p.getField2(), r, 0);
+        if (part == 0 && build != null) {
+            build.addRow(batch, r);
+            if (build.size() > maxBuildRows()) {
+                // the first partition does not fit either
+                buildParts[0] = new SpillFile(build.getTupleDesc());
+                buildParts[0].addAll(build);
+                build = null;
+            }
+            return;
+        }
+        if (buildParts[part] == null)
+            buildParts[part] = new SpillFile(batch.getTupleDesc());
+        buildParts[part].add(batch, r);
+    }
+
+    /** Build the hash table over the rows of build. */
+    private void buildTable() {
+        int buckets = Integer.highestOneBit(Math.max(1, build.size()) * 2);
+        heads = new int[buckets];
+        Arrays.fill(heads, -1);
+        chain = new int[build.size()];
+        // insert from the last row so that each chain is in row order
+        int f2 = p.getField2();
+        for (int r = build.size() - 1; r >= 0; r--) {
+            int b = hash(build, f2, r) & (buckets - 1);
+            chain[r] = heads[b];
+            heads[b] = r;
         }
-        child2.rewind();
     }
 
+    private static int keyHash(TupleBatch batch, int field, int r) {
+        return batch.isIntColumn(field) ? batch.getInt(field, r) : batch.getString(field, r).hashCode();
+    }
+
+    private static int hash(TupleBatch batch, int field, int r) {
+        int h = keyHash(batch, field, r) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the partition of row r at the given partitioning level; each
+     *   level uses a different hash, independent of the hash table's
+     */
+    private static int partition(TupleBatch batch, int field, int r, int level) {
+        int h = keyHash(batch, field, r) ^ (level + 1) * 0x27D4EB2F;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h >>> 1) % NUM_PARTITIONS;
+    }
+
+    private static boolean keysEqual(TupleBatch b1, int f1, int r1, TupleBatch b2, int f2, int r2) {
+        if (b1.isIntColumn(f1))
+            return b1.getInt(f1, r1) == b2.getInt(f2, r2);
+        return b1.getString(f1, r1).equals(b2.getString(f2, r2));
+    }
+
+    /**
+     * @return the next batch of outer rows to probe the hash table with, or
+     *   null when the current outer input is used up
+     */
+    private TupleBatch nextProbeBatch() throws DbException, TransactionAbortedException, IOException {
+        if (probeFile != null)
+            return probeFile.readBatch(TupleBatch.DEFAULT_SIZE);
+        if (outerDone)
+            return null;
+        BatchDbIterator in = BatchAdapter.of(child1);
+        TupleBatch batch;
+        while ((batch = in.nextBatch()) != null) {
+            if (buildParts == null)
+                return batch;
+            // keep the rows of the first partition if it is in memory, and
+            // spill the rest to their partitions
+            int f1 = p.getField1();
+            int[] keep = new int[batch.size()];
+            int n = 0;
+            for (int r = 0; r < batch.size(); r++) {
+                int part = partition(batch, f1, r, 0);
+                if (part == 0 && build != null)
+                    keep[n++] = r;
+                else if (probeParts[part] != null)
+                    probeParts[part].add(batch, r);
+            }
+            if (n > 0) {
+                batch.retain(keep, n);
+                return batch;
+            }
+        }
+        outerDone = true;
+        if (buildParts != null) {
+            pending = new ArrayDeque<Partition>();
+            for (int i = 0; i < NUM_PARTITIONS; i++)
+                queue(buildParts[i], probeParts[i], 0);
+            buildParts = null;
+            probeParts = null;
+        }
+        return null;
+    }
+
+    /** Queue a spilled pair of partitions to be joined, or drop it if either is empty. */
+    private void queue(SpillFile buildPart, SpillFile probePart, int level) throws IOException {
+        if (buildPart == null)
+            return;
+        if (probePart == null || probePart.rows() == 0 || buildPart.rows() == 0) {
+            buildPart.close();
+            if (probePart != null)
+                probePart.close();
+            return;
+        }
+        probePart.finishWriting();
+        if (level == 0)
+            spilledBytes += probePart.bytes();
+        pending.add(new Partition(buildPart, probePart, level));
+    }
+
+    /**
+     * Load the inner rows of the next spilled partition (or the next block
+     * of an oversized one) into the hash table, and read outer rows from
+     * its outer partition.
+     *
+     * @return false if there are no more partitions to join
+     */
+    private boolean nextPartition() throws IOException {
+        int maxRows = maxBuildRows();
+        while (true) {
+            if (current != null) {
+                // joining an oversized partition a block at a time
+                build = current.build.readBatch(maxRows);
+                if (build != null) {
+                    buildTable();
+                    probeFile = current.probe;
+                    probeFile.rewind();
+                    return true;
+                }
+                current.close();
+                current = null;
+            }
+            probeFile = null;
+            if (pending == null || pending.isEmpty())
+                return false;
+            Partition next = pending.poll();
+            if (next.build.rows() > maxRows && next.level < MAX_LEVEL) {
+                repartition(next);
+                continue;
+            }
+            current = next;
+        }
+    }
+
+    /** Split a pair of spilled partitions again, with the next level's hash. */
+    private void repartition(Partition part) throws IOException {
+        int level = part.level + 1;
+        SpillFile[] builds = split(part.build, p.getField2(), level);
+        SpillFile[] probes = split(part.probe, p.getField1(), level);
+        boolean skewed = false;
+        for (int i = 0; i < NUM_PARTITIONS; i++) {
+            if (builds[i] == null)
+                continue;
+            spilledPartitions++;
+            spilledBytes += builds[i].bytes() + (probes[i] == null ? 0 : probes[i].bytes());
+            // a key too frequent to split goes straight to block joins
+            skewed = builds[i].rows() == part.build.rows();
+            queue(builds[i], probes[i], skewed ? MAX_LEVEL : level);
+        }
+        part.close();
+    }
+
+    private SpillFile[] split(SpillFile in, int field, int level) throws IOException {
+        SpillFile[] parts = new SpillFile[NUM_PARTITIONS];
+        in.rewind();
+        TupleBatch batch;
+        while ((batch = in.readBatch(TupleBatch.DEFAULT_SIZE)) != null) {
+            for (int r = 0; r < batch.size(); r++) {
+                int i = partition(batch, field, r, level);
+                if (parts[i] == null)
+                    parts[i] = new SpillFile(in.getTupleDesc());
+                parts[i].add(batch, r);
+            }
+        }
+        for (SpillFile part : parts) {
+            if (part != null)
+                part.finishWriting();
+        }
+        return parts;
+    }
+
+    /** Delete every spill file and forget the partitions. */
+    private void dropPartitions() {
+        for (SpillFile[] parts : new SpillFile[][] { buildParts, probeParts }) {
+            if (parts == null)
+                continue;
+            for (SpillFile f : parts) {
+                if (f != null)
+                    f.close();
+            }
+        }
+        buildParts = null;
+        probeParts = null;
+        if (pending != null) {
+            for (Partition part : pending)
+                part.close();
+        }
+        pending = null;
+        if (current != null)
+            current.close();
+        current = null;
+        probeFile = null;
+    }
 
     public void close() {
         // some code goes here
         super.close();
         child1.close();
         child2.close();
-        hash2.clear();
-        t1 = null;
-        listIt = null;
+        dropPartitions();
+        build = null;
+        heads = null;
+        chain = null;
+        probe = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
+        super.rewind();
         child1.rewind();
         child2.rewind();
+        probe = null;
+        if (partitioned) {
+            dropPartitions();
+            createHashIndex();
+        }
+        outerDone = false;
     }
 
-    transient Iterator<Tuple> listIt = null;
-
     /**
-     * Returns the next tuple generated by the join, or null if there are no
-     * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * Returns the next batch of tuples generated by the join, or null if
+     * there are no more tuples. Logically, these are the next tuples in r1
+     * cross r2 that satisfy the join predicate, in the order of r1 and then
+     * of r2.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -111,50 +468,45 @@ public class HashEquiJoin extends Operator {
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
      * 
-     * @return The next matching tuple.
+     * @return The next batch of matching tuples.
      * @see JoinPredicate#filter
      */
-    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
         // some code goes here
-        while (t1 != null || child1.hasNext()) {
-            if (t1 == null) {
-                t1 = child1.next();
-            }
-            Field key = t1.getField(p.getField1());
-            if (hash2.containsKey(key)) {
-                if (listIt != null) {
-                    if (listIt.hasNext()) {
-                        return join(t1, listIt.next());
-                    }
-                    else {
-                        t1 = null;
-                        listIt = null;
+        if (!partitioned && build.size() == 0)
+            return null;
+        int f1 = p.getField1(), f2 = p.getField2();
+        TupleBatch out = new TupleBatch(getTupleDesc());
+        try {
+            while (!out.isFull()) {
+                if (probe == null || probeRow >= probe.size()) {
+                    probe = nextProbeBatch();
+                    probeRow = 0;
+                    matching = false;
+                    if (probe == null) {
+                        if (!nextPartition())
+                            break;
+                        continue;
                     }
                 }
-                else {
-                    listIt = hash2.get(key).iterator();
-                    return join(t1, listIt.next());
+                if (!matching) {
+                    match = heads[hash(probe, f1, probeRow) & (heads.length - 1)];
+                    matching = true;
+                }
+                while (match >= 0 && !out.isFull()) {
+                    if (keysEqual(probe, f1, probeRow, build, f2, match))
+                        out.addJoinedRow(probe, probeRow, build, match);
+                    match = chain[match];
+                }
+                if (match < 0) {
+                    probeRow++;
+                    matching = false;
                 }
             }
-            else {
-                t1 = null;
-                listIt = null;
-            }
-        }
-        return null;
-    }
-
-    private Tuple join(Tuple outer, Tuple inner) {
-        Tuple res = new Tuple(getTupleDesc());
-        int idx = 0;
-        Iterator<Field> fields1 = outer.fields(), fields2 = inner.fields();
-        while (fields1.hasNext()) {
-            res.setField(idx++, fields1.next());
-        }
-        while (fields2.hasNext()) {
-            res.setField(idx++, fields2.next());
+        } catch (IOException e) {
+            throw new DbException("could not read join partition: " + e);
         }
-        return res;
+        return out.size() == 0 ? null : out;
     }
 
     @Override
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.MappedByteBuffer;
 import java.util.*;
 
 /**
@@ -13,11 +14,16 @@ import java.util.*;
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
  */
-public class HeapFile implements DbFile {
+public class HeapFile implements DbFile, Closeable, Flushable {
 
     private final File f;
     private final TupleDesc td;
     private final int tableid ;
+    private final DbFileChannel channel;
+    private volatile boolean mappedScans = false;
+
+    private final FreeSpaceMap freeSpace = new FreeSpaceMap();
+
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -29,6 +35,7 @@ public class HeapFile implements DbFile {
         this.f = f;
         this.tableid = f.getAbsoluteFile().hashCode();
         this.td = td;
+        this.channel = new DbFileChannel(f);
     }
 
     /**
@@ -65,55 +72,76 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         HeapPageId id = (HeapPageId) pid;
-        BufferedInputStream bis = null;
-
+        byte pageBuf[] = new byte[BufferPool.getPageSize()];
         try {
-            bis = new BufferedInputStream(new FileInputStream(f));
-            byte pageBuf[] = new byte[BufferPool.getPageSize()];
-            if (bis.skip(id.pageNumber() * BufferPool.getPageSize()) != id
-                    .pageNumber() * BufferPool.getPageSize()) {
-                throw new IllegalArgumentException(
-                        "Unable to seek to correct place in heapfile");
-            }
-            int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-            if (retval == -1) {
-                throw new IllegalArgumentException("Read past end of table");
-            }
-            if (retval < BufferPool.getPageSize()) {
-                throw new IllegalArgumentException("Unable to read "
-                        + BufferPool.getPageSize() + " bytes from heapfile");
-            }
-            Debug.log(1, "HeapFile.readPage: read page %d", id.pageNumber());
-            HeapPage p = new HeapPage(id, pageBuf);
-            return p;
+            channel.read(pageBuf, (long) id.pageNumber() * BufferPool.getPageSize());
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("Read past end of table");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        Debug.log(1, "HeapFile.readPage: read page %d", id.pageNumber());
+        try {
+            return new HeapPage(id, pageBuf);
         } catch (IOException e) {
             throw new RuntimeException(e);
-        } finally {
-            // Close the file on success or error
-            try {
-                if (bis != null)
-                    bis.close();
-            } catch (IOException ioe) {
-                // Ignore failures closing the file
-            }
         }
     }
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
-        try {
-            PageId pid = page.getId();
-            RandomAccessFile randomAccessFile = new RandomAccessFile(f, "rw");
-            int offSet = pid.pageNumber() * BufferPool.getPageSize();
-            randomAccessFile.seek(offSet);
-            randomAccessFile.write(page.getPageData());
-            randomAccessFile.close();
-        }
-        catch (Exception e) {
-            e.printStackTrace();
-        }
+        PageId pid = page.getId();
+        channel.write(page.getPageData(), (long) pid.pageNumber() * BufferPool.getPageSize());
+    }
+
+    /**
+     * Forces the pages written to this file to disk.
+     */
+    public void flush() throws IOException {
+        channel.force();
+    }
+
+    /**
+     * Closes the channel this file uses for page I/O.  The channel is
+     * reopened if the file is used again.
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Enables or disables memory-mapped scans.  In this mode iterators map
+     * the data file read-only and decode tuples directly from the mapping,
+     * without copying pages into the BufferPool.  A page that is locked for
+     * writing or dirty in the BufferPool is still read through the
+     * BufferPool, so scans see the same data either way.  Mapped pages are
+     * read without taking page locks, so this mode is meant for large tables
+     * that are not being updated.
+     *
+     * @param mapped true to scan through a memory mapping
+     */
+    public void setMappedScans(boolean mapped) {
+        this.mappedScans = mapped;
+    }
+
+    /** @return true if iterators over this file scan a memory mapping */
+    public boolean isMappedScans() {
+        return mappedScans;
+    }
+
+    /**
+     * Map up to numPages pages of this file, starting at firstPage.  The
+     * mapping is cut short at the end of the file.
+     *
+     * @return the mapping, or null if firstPage is past the end of the file
+     */
+    MappedByteBuffer mapPages(int firstPage, int numPages) throws IOException {
+        long pageSize = BufferPool.getPageSize();
+        long start = firstPage * pageSize;
+        long end = Math.min(channel.size(), start + numPages * pageSize);
+        if (end - start < pageSize)
+            return null;
+        return channel.map(start, (end - start) / pageSize * pageSize);
     }
 
     /**
@@ -128,35 +156,99 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-        // some code goes here
-        // not necessary for lab1|lab2
         ArrayList<Page> modifiedPages = new ArrayList<>();
-        HeapPage page = null;
-        int pageNo = 0;
-        while (pageNo < numPages()) {
+        BufferPool bufferPool = Database.getBufferPool();
+        if (!freeSpace.isBuilt())
+            buildFreeSpaceMap();
+        int from = 0;
+        while (true) {
+            int pageNo = freeSpace.nextFreePage(from);
+            if (pageNo < 0 || pageNo >= numPages()) {
+                pageNo = allocatePage();
+                from = 0;
+            } else {
+                from = pageNo + 1;
+            }
             PageId tempPid = new HeapPageId(tableid, pageNo);
-            HeapPage tempPage = (HeapPage) Database.getBufferPool().getPage(tid, tempPid, Permissions.READ_WRITE);
-            if (tempPage.getNumEmptySlots() > 0) {
-                page = tempPage;
-                break;
+            // look with a shared lock first, so full pages are not
+            // locked exclusively for the rest of the transaction
+            boolean heldBefore = bufferPool.holdsLock(tid, tempPid);
+            HeapPage tempPage = (HeapPage) bufferPool.getPage(tid, tempPid, Permissions.READ_ONLY);
+            if (tempPage.getNumEmptySlots() == 0) {
+                freeSpace.markFull(pageNo);
+                if (!heldBefore)
+                    bufferPool.releasePage(tid, tempPid);
+                continue;
+            }
+            HeapPage page = (HeapPage) bufferPool.getPage(tid, tempPid, Permissions.READ_WRITE);
+            if (page.getNumEmptySlots() == 0) {
+                freeSpace.markFull(pageNo); // filled up while we upgraded the lock
+                continue;
             }
-            pageNo++;
-        }
-        if (page != null) {
             page.insertTuple(t);
             page.markDirty(true, tid);
+            if (page.getNumEmptySlots() == 0)
+                freeSpace.markFull(pageNo);
             modifiedPages.add(page);
+            return modifiedPages;
         }
-        else {
-            HeapPageId newPid = new HeapPageId(tableid, pageNo);
-            page = new HeapPage(newPid, HeapPage.createEmptyPageData());
-            writePage(page);
-            page = (HeapPage) Database.getBufferPool().getPage(tid, newPid, Permissions.READ_WRITE);
-            page.insertTuple(t);
-            page.markDirty(true, tid);
-            modifiedPages.add(page);
+    }
+
+    /**
+     * Fill in the free-space map from the page headers.  Resident pages are
+     * counted as they are in the BufferPool; the rest have only their
+     * header read from disk.  The map holds nothing that is not on disk or
+     * in the BufferPool, so a HeapFile opened on the same file, e.g. after
+     * a restart, rebuilds the same map.
+     */
+    private void buildFreeSpaceMap() throws IOException {
+        BufferPool bufferPool = Database.getBufferPool();
+        synchronized (this) {
+            if (freeSpace.isBuilt())
+                return;
+            int numSlots = HeapPage.numSlots(td);
+            byte[] header = new byte[HeapPage.headerSize(td)];
+            int[] emptySlots = new int[numPages()];
+            Map<Integer,Page> cached = bufferPool.getCachedPages(tableid);
+            for (int pageNo = 0; pageNo < emptySlots.length; pageNo++) {
+                Page resident = cached.get(pageNo);
+                if (resident != null) {
+                    emptySlots[pageNo] = ((HeapPage) resident).getNumEmptySlots();
+                    continue;
+                }
+                channel.read(header, (long) pageNo * BufferPool.getPageSize());
+                int used = 0;
+                for (byte b : header)
+                    used += Integer.bitCount(b & 0xff);
+                emptySlots[pageNo] = numSlots - used;
+            }
+            freeSpace.build(emptySlots);
         }
-        return modifiedPages;
+    }
+
+    /**
+     * Add an empty page to the end of the file for inserts, unless the
+     * free-space map already knows of a page with room.  Only the one new
+     * page is written, so every page in the file is a page of the table.
+     *
+     * @return the number of a page that may have an empty slot
+     */
+    private synchronized int allocatePage() throws IOException {
+        int numPages = numPages();
+        int free = freeSpace.nextFreePage(0);
+        if (free >= 0 && free < numPages)
+            return free; // another transaction freed or added a page
+        writePage(new HeapPage(new HeapPageId(tableid, numPages), HeapPage.createEmptyPageData()));
+        freeSpace.markFree(numPages);
+        return numPages;
+    }
+
+    /**
+     * Note that the changes to a page were rolled back, so it may have
+     * empty slots again.
+     */
+    void pageRolledBack(int pageNo) {
+        freeSpace.markFree(pageNo);
     }
 
     // see DbFile.java for javadocs
@@ -170,65 +262,28 @@ public class HeapFile implements DbFile {
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
         page.deleteTuple(t);
         page.markDirty(true, tid);
+        freeSpace.markFree(pid.pageNumber());
         modifiedPages.add(page);
         return modifiedPages;
     }
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
-        return new HeapFileIterator(this, tid);
-    }
-
-}
-
-/**
- * Helper class that implements the Java Iterator for tuples on a HeapFile
- */
-class HeapFileIterator extends AbstractDbFileIterator {
-
-    Iterator<Tuple> it = null;
-    int curpgno = 0;
-
-    TransactionId tid;
-    HeapFile hf;
-
-    public HeapFileIterator(HeapFile hf, TransactionId tid) {
-        this.hf = hf;
-        this.tid = tid;
-    }
-
-    public void open() throws DbException, TransactionAbortedException {
-        curpgno = -1;
+        return new HeapFileIterator(this, tid, 0, 1);
     }
 
-    @Override
-    protected Tuple readNext() throws TransactionAbortedException, DbException {
-        if (it != null && !it.hasNext())
-            it = null;
-
-        while (it == null && curpgno < hf.numPages() - 1) {
-            curpgno++;
-            HeapPageId curpid = new HeapPageId(hf.getId(), curpgno);
-            HeapPage curp = (HeapPage) Database.getBufferPool().getPage(tid,
-                    curpid, Permissions.READ_ONLY);
-            it = curp.iterator();
-            if (!it.hasNext())
-                it = null;
-        }
-
-        if (it == null)
-            return null;
-        return it.next();
-    }
-
-    public void rewind() throws DbException, TransactionAbortedException {
-        close();
-        open();
+    /**
+     * Returns an iterator over one of parts equal ranges of the pages of
+     * this file, so that parts scans can read the file in parallel.  The
+     * ranges are fixed when the iterator is opened.
+     *
+     * @param part the range to scan, from 0 to parts - 1
+     * @param parts the number of ranges
+     */
+    public DbFileIterator iterator(TransactionId tid, int part, int parts) {
+        if (part < 0 || part >= parts)
+            throw new IllegalArgumentException("part " + part + " of " + parts);
+        return new HeapFileIterator(this, tid, part, parts);
     }
 
-    public void close() {
-        super.close();
-        it = null;
-        curpgno = Integer.MAX_VALUE;
-    }
 }
@@ -0,0 +1,196 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Helper class that implements the Java Iterator for tuples on a HeapFile
+ */
+class HeapFileIterator extends AbstractDbFileIterator {
+
+    /** Pages covered by one mapping of the file in mapped scan mode. */
+    private static final int MAP_CHUNK_PAGES = 1 << 14;
+
+    Iterator<Tuple> it = null;
+    int curpgno = 0;
+    // the pages scanned are [firstPage, endPage)
+    private final int part, parts;
+    private int firstPage, endPage;
+
+    TransactionId tid;
+    HeapFile hf;
+
+    // mapped scan state; map covers pages [mapFirstPage, mapFirstPage + mapPages)
+    private MappedByteBuffer map = null;
+    private int mapFirstPage = 0;
+    private int mapPages = 0;
+    private int[] fieldOffsets = null;
+
+    private PagePrefetcher.Scan readAhead;
+
+    public HeapFileIterator(HeapFile hf, TransactionId tid) {
+        this(hf, tid, 0, 1);
+    }
+
+    /** An iterator over range part of parts equal ranges of the pages of hf. */
+    HeapFileIterator(HeapFile hf, TransactionId tid, int part, int parts) {
+        this.hf = hf;
+        this.tid = tid;
+        this.part = part;
+        this.parts = parts;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        int n = hf.numPages();
+        firstPage = (int) ((long) n * part / parts);
+        endPage = parts == 1 ? Integer.MAX_VALUE : (int) ((long) n * (part + 1) / parts);
+        curpgno = firstPage - 1;
+        readAhead = Database.getBufferPool().getPrefetcher().newScan();
+    }
+
+    @Override
+    protected Tuple readNext() throws TransactionAbortedException, DbException {
+        if (it != null && !it.hasNext())
+            it = null;
+
+        while (it == null && curpgno < lastPage()) {
+            curpgno++;
+            HeapPageId curpid = new HeapPageId(hf.getId(), curpgno);
+            int base = hf.isMappedScans() ? mappedOffset(curpid) : -1;
+            if (base >= 0)
+                it = new MappedHeapPageIterator(map, base, curpid, hf.getTupleDesc(), fieldOffsets());
+            if (it == null) {
+                readAhead.pageRead(curpid, Math.min(endPage, hf.numPages()));
+                HeapPage curp = (HeapPage) Database.getBufferPool().getPage(tid,
+                        curpid, Permissions.READ_ONLY);
+                it = curp.iterator();
+            }
+            if (!it.hasNext())
+                it = null;
+        }
+
+        if (it == null)
+            return null;
+        return it.next();
+    }
+
+    /**
+     * Read the rest of the current page and following whole pages into a
+     * batch, until it holds {@link TupleBatch#DEFAULT_SIZE} tuples or the
+     * file ends.  Whole pages, mapped or read through the BufferPool, are
+     * decoded straight into the batch columns, creating no Tuple or Field
+     * per row.
+     *
+     * @param td the schema of the batch, with the field types of the file
+     * @return the batch, or null if there are no more tuples
+     */
+    TupleBatch nextBatch(TupleDesc td) throws DbException, TransactionAbortedException {
+        TupleBatch batch = new TupleBatch(td);
+        Tuple ahead = takeReadAhead();
+        if (ahead != null)
+            batch.addTuple(ahead);
+        while (it != null && it.hasNext())
+            batch.addTuple(it.next());
+        it = null;
+
+        while (!batch.isFull() && curpgno < lastPage()) {
+            curpgno++;
+            HeapPageId curpid = new HeapPageId(hf.getId(), curpgno);
+            int base = hf.isMappedScans() ? mappedOffset(curpid) : -1;
+            if (base >= 0) {
+                addMappedPage(batch, base, curpid);
+                continue;
+            }
+            readAhead.pageRead(curpid, Math.min(endPage, hf.numPages()));
+            HeapPage curp = (HeapPage) Database.getBufferPool().getPage(tid,
+                    curpid, Permissions.READ_ONLY);
+            addPage(batch, curp);
+        }
+        return batch.size() == 0 ? null : batch;
+    }
+
+    /** Append the tuples of p to batch, reading each field from the page. */
+    private static void addPage(TupleBatch batch, HeapPage p) {
+        int numFields = batch.getTupleDesc().numFields();
+        synchronized (p) {
+            for (int slot = 0; slot < p.numSlots; slot++) {
+                if (!p.isSlotUsed(slot))
+                    continue;
+                int r = batch.addEmptyRow();
+                for (int c = 0; c < numFields; c++) {
+                    if (batch.isIntColumn(c))
+                        batch.setInt(c, r, p.getInt(slot, c));
+                    else
+                        batch.setString(c, r, p.getString(slot, c));
+                }
+                batch.setRecordId(r, p.getId(), slot);
+            }
+        }
+    }
+
+    /** Append the tuples of the mapped page at base to batch. */
+    private void addMappedPage(TupleBatch batch, int base, HeapPageId pid) {
+        TupleDesc td = hf.getTupleDesc();
+        int numSlots = HeapPage.numSlots(td);
+        int tuplesStart = base + HeapPage.headerSize(td);
+        for (int slot = 0; slot < numSlots; slot++) {
+            if ((map.get(base + slot / 8) & (1 << (slot % 8))) != 0)
+                batch.addSerialized(map, tuplesStart + slot * td.getSize(), pid, slot);
+        }
+    }
+
+    /**
+     * @return the last page to scan; a whole-file scan also reads pages
+     *   appended while it runs
+     */
+    private int lastPage() {
+        return Math.min(endPage, hf.numPages()) - 1;
+    }
+
+    /**
+     * @return the offset in the file mapping of the page, mapping the part
+     *   of the file around it if needed, or -1 if the page must be read
+     *   through the BufferPool
+     */
+    private int mappedOffset(HeapPageId pid) throws DbException {
+        if (Database.getBufferPool().isBeingWritten(pid))
+            return -1;
+        int pgno = pid.pageNumber();
+        if (map == null || pgno < mapFirstPage || pgno >= mapFirstPage + mapPages) {
+            try {
+                map = hf.mapPages(pgno, MAP_CHUNK_PAGES);
+            } catch (IOException e) {
+                throw new DbException("could not map " + hf.getFile() + ": " + e);
+            }
+            if (map == null)
+                return -1;
+            mapFirstPage = pgno;
+            mapPages = map.capacity() / BufferPool.getPageSize();
+        }
+        return (pgno - mapFirstPage) * BufferPool.getPageSize();
+    }
+
+    /** @return the offset of each field within a tuple */
+    private int[] fieldOffsets() {
+        if (fieldOffsets == null) {
+            TupleDesc td = hf.getTupleDesc();
+            fieldOffsets = new int[td.numFields()];
+            for (int i = 1; i < fieldOffsets.length; i++)
+                fieldOffsets[i] = fieldOffsets[i - 1] + td.getFieldType(i - 1).getLen();
+        }
+        return fieldOffsets;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        super.close();
+        it = null;
+        map = null;
+        curpgno = Integer.MAX_VALUE;
+    }
+}
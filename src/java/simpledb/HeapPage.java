@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -15,9 +16,19 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
     final int numSlots;
+    final int headerSize;
+    final int tupleSize;
+
+    /*
+     * The page is kept in its serialized form.  Tuples handed out by the
+     * iterator decode their fields from it on demand, so the array is copied
+     * before the first change after it has been shared with them (or kept as
+     * the before image).
+     */
+    private byte[] data;
+    private ByteBuffer view;
+    private boolean shared;
 
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
@@ -36,6 +47,9 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The page takes ownership of data, which the caller must not modify
+     * afterwards.  Tuples are not decoded until they are requested.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -44,34 +58,33 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
+        if (data.length < BufferPool.getPageSize())
+            throw new IOException("page data too short: " + data.length + " bytes");
+
+        // the data as read is the before image; it is shared until the page
+        // is first changed
+        this.data = data;
+        this.shared = true;
+        this.oldData = data;
     }
 
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
     private int getNumTuples() {        
+        return numSlots(td);
+    }
+
+    /**
+     * @return the number of tuple slots on a HeapPage of a table with the
+     *   given schema
+     */
+    static int numSlots(TupleDesc td) {
         int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
         int tuplesPerPage = (BufferPool.getPageSize()*8) / bitsPerTupleIncludingHeader; //round down
         return tuplesPerPage;
-
     }
 
     /**
@@ -79,13 +92,19 @@ public class HeapPage implements Page {
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
     private int getHeaderSize() {        
-        
-        int tuplesPerPage = getNumTuples();
+        return headerSize(td);
+    }
+
+    /**
+     * @return the number of header bytes on a HeapPage of a table with the
+     *   given schema
+     */
+    static int headerSize(TupleDesc td) {
+        int tuplesPerPage = numSlots(td);
         int hb = (tuplesPerPage / 8);
         if (hb * 8 < tuplesPerPage) hb++;
 
         return hb;
-                 
     }
     
     /** Return a view of this page before it was modified
@@ -106,52 +125,49 @@ public class HeapPage implements Page {
         return null;
     }
     
+    /**
+     * Make the current contents the before image.  No copy is made until
+     * the page is next changed.
+     */
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = share();
         }
     }
 
     /**
-     * @return the PageId associated with this page.
+     * @return the current page image, which from now on is left unchanged:
+     *   the next change is made to a copy
      */
-    public HeapPageId getId() {
-        return pid;
+    private synchronized byte[] share() {
+        shared = true;
+        return data;
     }
 
-    /**
-     * Suck up tuples from the source file.
-     */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    /** @return a view of the current page image for lazily decoded tuples */
+    private synchronized ByteBuffer sharedView() {
+        shared = true;
+        if (view == null)
+            view = ByteBuffer.wrap(data);
+        return view;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+    /** @return the page image, copied first if it has been shared */
+    private byte[] writable() {
+        if (shared) {
+            data = data.clone();
+            view = null;
+            shared = false;
         }
+        return data;
+    }
 
-        return t;
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return pid;
     }
 
     /**
@@ -165,65 +181,8 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+    public synchronized byte[] getPageData() {
+        return data.clone();
     }
 
     /**
@@ -259,9 +218,13 @@ public class HeapPage implements Page {
         if (tupleNo < 0 || !isSlotUsed(tupleNo)) {
             throw new DbException("Slot already empty!");
         }
-        tuples[tupleNo] = null;
+        synchronized (this) {
+            byte[] d = writable();
+            int off = tupleOffset(tupleNo);
+            Arrays.fill(d, off, off + tupleSize, (byte) 0);
+            markSlotUsed(tupleNo, false);
+        }
         t.setRecordId(new RecordId(pid, -1));
-        markSlotUsed(tupleNo, false);
     }
 
     /**
@@ -278,19 +241,37 @@ public class HeapPage implements Page {
         if (!td.equals(tupleDesc)) {
             throw new DbException("TupleDesc Mismatch!");
         }
-        if (getNumEmptySlots() > 0) {
+        byte[] image = serialize(t);
+        synchronized (this) {
             for (int i = 0; i < numSlots; i++) {
                 if (!isSlotUsed(i)) {
-                    tuples[i] = t;
+                    System.arraycopy(image, 0, writable(), tupleOffset(i), tupleSize);
                     markSlotUsed(i, true);
                     t.setRecordId(new RecordId(pid, i));
-                    break;
+                    return;
                 }
             }
         }
-        else {
-            throw new DbException("Page already full!");
+        throw new DbException("Page already full!");
+    }
+
+    /** @return the on-page form of t */
+    private byte[] serialize(Tuple t) throws DbException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++)
+                t.getField(j).serialize(dos);
+            dos.flush();
+        } catch (IOException e) {
+            throw new DbException("could not serialize tuple: " + e);
         }
+        return baos.toByteArray();
+    }
+
+    /** @return the position of slot i in the page image */
+    private int tupleOffset(int i) {
+        return headerSize + i * tupleSize;
     }
 
     /**
@@ -320,21 +301,24 @@ public class HeapPage implements Page {
     /**
      * Returns the number of empty slots on this page.
      */
-    public int getNumEmptySlots() {
-        int cnt = 0;
-        for(int i=0; i<numSlots; i++)
-            if(!isSlotUsed(i))
-                cnt++;
-        return cnt;
+    public synchronized int getNumEmptySlots() {
+        int used = 0;
+        for (int i = 0; i < headerSize; i++)
+            used += Integer.bitCount(data[i] & 0xff);
+        return numSlots - used;
     }
 
     /**
      * Returns true if associated slot on this page is filled.
      */
-    public boolean isSlotUsed(int i) {
+    public synchronized boolean isSlotUsed(int i) {
+        return isSlotUsed(data, i);
+    }
+
+    private static boolean isSlotUsed(byte[] image, int i) {
         int headerbit = i % 8;
         int headerbyte = (i - headerbit) / 8;
-        return (header[headerbyte] & (1 << headerbit)) != 0;
+        return (image[headerbyte] & (1 << headerbit)) != 0;
     }
 
     /**
@@ -343,6 +327,7 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1|lab2
+        byte[] header = writable();
         int headerBit = i % 8, headerByte = i / 8;
         if (value) {
             header[headerByte] |= (1 << headerBit);
@@ -355,74 +340,111 @@ public class HeapPage implements Page {
     /**
      * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
      * (note that this iterator shouldn't return tuples in empty slots!)
+     * <p>
+     * The iterator reflects the page as it was when the iterator was
+     * created, and its tuples decode their fields only when asked.
      */
     public Iterator<Tuple> iterator() {
-        return new HeapPageIterator(this);
+        return new HeapPageIterator(this, sharedView());
+    }
+
+    /**
+     * Returns a field of the tuple in slot i, decoded straight from the page.
+     *
+     * @throws NoSuchElementException if the slot does not exist or is empty
+     */
+    public synchronized Field getField(int i, int field) throws NoSuchElementException {
+        if (i < 0 || i >= numSlots || !isSlotUsed(i))
+            throw new NoSuchElementException("no tuple in slot " + i);
+        return td.getFieldType(field).parse(sharedView(), tupleOffset(i) + td.getFieldOffset(field));
     }
 
     // protected method used by the iterator to get the ith tuple
     // out of this page
     Tuple getTuple(int i) throws NoSuchElementException {
 
-        if (i >= tuples.length)
+        if (i < 0 || i >= numSlots)
             throw new NoSuchElementException();
 
-        try {
-            if(!isSlotUsed(i)) {
-                Debug.log(1, "HeapPage.getTuple: slot %d in %d:%d is not used", i, pid.getTableId(), pid.pageNumber());
-                return null;
-            }
+        ByteBuffer image = sharedView();
+        if (!isSlotUsed(image.array(), i)) {
+            Debug.log(1, "HeapPage.getTuple: slot %d in %d:%d is not used", i, pid.getTableId(), pid.pageNumber());
+            return null;
+        }
+        return makeTuple(image, i);
+    }
+
+    /**
+     * Returns INT_TYPE field col of the tuple in slot i, read straight from
+     * the page without creating a Tuple or Field.  The slot must be used.
+     */
+    public synchronized int getInt(int i, int col) {
+        return readInt(tupleOffset(i) + td.getFieldOffset(col));
+    }
 
-            Debug.log(1, "HeapPage.getTuple: returning tuple %d", i);
-            return tuples[i];
+    /**
+     * Returns STRING_TYPE field col of the tuple in slot i, read straight
+     * from the page without creating a Tuple or Field.  The slot must be
+     * used.
+     */
+    public synchronized String getString(int i, int col) {
+        int off = tupleOffset(i) + td.getFieldOffset(col);
+        int len = Math.max(0, Math.min(Type.STRING_LEN, readInt(off)));
+        return new String(data, off + 4, len);
+    }
 
-        } catch (ArrayIndexOutOfBoundsException e) {
-            throw new NoSuchElementException();
-        }
+    /** @return the int serialized at off in the page image */
+    private int readInt(int off) {
+        return ((data[off] & 0xff) << 24) | ((data[off + 1] & 0xff) << 16)
+            | ((data[off + 2] & 0xff) << 8) | (data[off + 3] & 0xff);
+    }
+
+    /** @return a lazily decoded tuple for slot i of a shared page image */
+    Tuple makeTuple(ByteBuffer image, int i) {
+        Tuple t = new Tuple(td, image, tupleOffset(i));
+        t.setRecordId(new RecordId(pid, i));
+        return t;
     }
 }
 
 /**
  * Helper class that implements the Java Iterator for tuples on a HeapPage.
+ * Walks the slot bitmap of a snapshot of the page image.
  */
 class HeapPageIterator implements Iterator<Tuple> {
-    int curTuple = 0;
-    Tuple nextToReturn = null;
-    HeapPage p;
+    final HeapPage p;
+    final ByteBuffer image;
+    final byte[] header;
+    int curTuple = -1;
 
-    public HeapPageIterator(HeapPage p) {
+    public HeapPageIterator(HeapPage p, ByteBuffer image) {
         this.p = p;
+        this.image = image;
+        this.header = image.array();
+        advance();
     }
 
-    public boolean hasNext() {
-        if (nextToReturn != null)
-            return true;
-
-        try {
-            while (true) {
-                nextToReturn = p.getTuple(curTuple++);
-                if(nextToReturn != null)
-                    return true;
-            }
-        } catch(NoSuchElementException e) {
-            return false;
+    private void advance() {
+        curTuple++;
+        while (curTuple < p.numSlots && (header[curTuple >> 3] & (1 << (curTuple & 7))) == 0) {
+            // skip a whole empty header byte at once
+            if ((curTuple & 7) == 0 && header[curTuple >> 3] == 0)
+                curTuple += 8;
+            else
+                curTuple++;
         }
     }
 
+    public boolean hasNext() {
+        return curTuple < p.numSlots;
+    }
+
     public Tuple next() {
-        Tuple next = nextToReturn;
-
-        if (next == null) {
-            if (hasNext()) {
-                next = nextToReturn;
-                nextToReturn = null;
-                return next;
-            } else
-                throw new NoSuchElementException();
-        } else {
-            nextToReturn = null;
-            return next;
-        }
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = p.makeTuple(image, curTuple);
+        advance();
+        return t;
     }
 
     public void remove() {
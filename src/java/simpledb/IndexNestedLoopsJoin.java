@@ -0,0 +1,214 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopsJoin operator joins each outer tuple with the inner
+ * tuples found by probing a B+ tree, instead of scanning the whole inner
+ * input once per outer tuple as Join does.  The inner child must be a
+ * SeqScan of a BTreeFile keyed on the inner join field, optionally under
+ * Filters; the scan itself is never run, and the filters are applied to the
+ * probed tuples.
+ * <p>
+ * Every probe after the first continues from the leaf page the previous one
+ * ended on when it can (see {@code BTreeSearchIterator.seek}), so an outer
+ * input sorted on its join field reads each inner leaf page about once.
+ */
+public class IndexNestedLoopsJoin extends BatchOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate p;
+    private DbIterator child1, child2;
+
+    private transient BatchDbIterator outer;
+    private transient TupleBatch outerBatch;
+    private transient int outerRow;
+    private transient BTreeSearchIterator probe;
+    private transient boolean probing;
+    private transient List<Predicate> innerFilters;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; one of =, &lt;,
+     *            &lt;=, &gt; and &gt;=
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join; a SeqScan,
+     *            possibly under Filters, of a BTreeFile keyed on the join
+     *            field
+     */
+    public IndexNestedLoopsJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (!canProbe(p.getOperator()))
+            throw new IllegalArgumentException("cannot probe an index on " + p.getOperator());
+        if (!canProbe(child2, p.getField2()))
+            throw new IllegalArgumentException("inner child is not a scan of a B+ tree keyed on the join field");
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+    }
+
+    /** @return true if an index probe can evaluate the predicate op */
+    public static boolean canProbe(Predicate.Op op) {
+        return SortMergeJoin.canMerge(op);
+    }
+
+    /**
+     * @return true if inner is a SeqScan, possibly under Filters, of a
+     *   BTreeFile whose key is field
+     */
+    public static boolean canProbe(DbIterator inner, int field) {
+        while (inner instanceof Filter)
+            inner = ((Filter) inner).getChildren()[0];
+        if (!(inner instanceof SeqScan))
+            return false;
+        DbFile file = Database.getCatalog().getDatabaseFile(((SeqScan) inner).getTableId());
+        return file instanceof BTreeFile && ((BTreeFile) file).keyField() == field;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        child1.open();
+        outer = BatchAdapter.of(child1);
+        innerFilters = new ArrayList<Predicate>();
+        DbIterator inner = child2;
+        while (inner instanceof Filter) {
+            innerFilters.add(((Filter) inner).getPredicate());
+            inner = ((Filter) inner).getChildren()[0];
+        }
+        outerBatch = null;
+        probing = false;
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        if (probe != null)
+            probe.close();
+        probe = null;
+        outer = null;
+        outerBatch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        child1.rewind();
+        outerBatch = null;
+        probing = false;
+    }
+
+    /**
+     * The operator of the index predicate on the inner key that matches
+     * outer op, for a join predicate outer op inner.
+     */
+    private static Predicate.Op indexOp(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
+    /** Start probing the index with the current outer row. */
+    private void startProbe() throws DbException, TransactionAbortedException {
+        IndexPredicate ipred = new IndexPredicate(indexOp(p.getOperator()),
+                outerBatch.getField(p.getField1(), outerRow));
+        if (probe == null) {
+            DbIterator inner = child2;
+            while (inner instanceof Filter)
+                inner = ((Filter) inner).getChildren()[0];
+            SeqScan scan = (SeqScan) inner;
+            BTreeFile file = (BTreeFile) Database.getCatalog().getDatabaseFile(scan.getTableId());
+            probe = file.searchIterator(scan.getTransactionId(), ipred);
+            probe.open();
+        } else {
+            probe.seek(ipred);
+        }
+    }
+
+    private boolean passesFilters(Tuple t) {
+        for (Predicate f : innerFilters) {
+            if (!f.filter(t))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next batch of tuples generated by the join, or null if
+     * there are no more tuples.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch out = new TupleBatch(getTupleDesc());
+        while (!out.isFull()) {
+            if (!probing) {
+                if (outerBatch != null)
+                    outerRow++;
+                while (outerBatch == null || outerRow >= outerBatch.size()) {
+                    outerBatch = outer.nextBatch();
+                    outerRow = 0;
+                    if (outerBatch == null)
+                        return out.size() == 0 ? null : out;
+                }
+                startProbe();
+                probing = true;
+            }
+            if (!probe.hasNext()) {
+                probing = false;
+                continue;
+            }
+            Tuple t = probe.next();
+            if (passesFilters(t))
+                out.addJoinedRow(outerBatch, outerRow, t);
+        }
+        return out;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
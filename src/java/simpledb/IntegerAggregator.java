@@ -4,20 +4,37 @@ import java.util.*;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * Groups are numbered in the order they are first seen, and each group's
+ * accumulator and count are kept in parallel long arrays, so merging a
+ * tuple allocates nothing and sums cannot overflow.  INT_TYPE group keys
+ * are found through an open-addressing hash table of ints; other group
+ * keys through a HashMap.
  */
 public class IntegerAggregator implements Aggregator {
 
     private static final long serialVersionUID = 1L;
 
+    private static final int INITIAL_GROUPS = 16;
+
     private int gbfield;
     private Type gbfieldtype;
     private int afield;
     private Op what;
-    private Map<Field, Field> resMap;
-    private Map<Field, Integer> fieldCntMap;
-    private static final IntField NO_GROUPING_FIELD = new IntField(-1);
-    private Type valueType;
 
+    // per group: MIN/MAX/SUM accumulator, and number of values merged
+    // (for SC_AVG, the sum of the merged counts)
+    private long[] values;
+    private long[] counts;
+    private int numGroups;
+
+    // INT_TYPE group keys: table[slot] is 1 + the group stored there, or 0
+    private int[] intKeys;
+    private int[] table;
+
+    // other group keys
+    private Map<Field, Integer> fieldGroups;
+    private Field[] fieldKeys;
 
     /**
      * Aggregate constructor
@@ -29,7 +46,9 @@ public class IntegerAggregator implements Aggregator {
      *            the type of the group by field (e.g., Type.INT_TYPE), or null
      *            if there is no grouping
      * @param afield
-     *            the 0-based index of the aggregate field in the tuple
+     *            the 0-based index of the aggregate field in the tuple.  For
+     *            SC_AVG the field after it holds the count of each partial
+     *            sum.
      * @param what
      *            the aggregation operator
      */
@@ -40,9 +59,17 @@ public class IntegerAggregator implements Aggregator {
         this.gbfieldtype = gbfieldtype;
         this.afield = afield;
         this.what = what;
-        this.resMap = new HashMap<>();
-        this.fieldCntMap = new HashMap<>();
-        this.valueType = Type.INT_TYPE;
+        this.values = new long[INITIAL_GROUPS];
+        this.counts = new long[INITIAL_GROUPS];
+        if (gbfield != NO_GROUPING) {
+            if (gbfieldtype == Type.INT_TYPE) {
+                intKeys = new int[INITIAL_GROUPS];
+                table = new int[INITIAL_GROUPS * 2];
+            } else {
+                fieldGroups = new HashMap<>();
+                fieldKeys = new Field[INITIAL_GROUPS];
+            }
+        }
     }
 
     /**
@@ -54,44 +81,184 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        if (gbfield == NO_GROUPING) {
-            fieldCntMap.put(NO_GROUPING_FIELD, fieldCntMap.getOrDefault(NO_GROUPING_FIELD, 0) + 1);
-            if (resMap.containsKey(NO_GROUPING_FIELD)) {
-                resMap.put(NO_GROUPING_FIELD, aggregate(what, tup.getField(afield), resMap.get(NO_GROUPING_FIELD), NO_GROUPING_FIELD));
-            }
-            else {
-                resMap.put(NO_GROUPING_FIELD, tup.getField(afield));
-            }
+        int g;
+        if (gbfield == NO_GROUPING)
+            g = noGroup();
+        else if (table != null)
+            g = intGroup(((IntField) tup.getField(gbfield)).getValue());
+        else
+            g = fieldGroup(tup.getField(gbfield));
+        int value = ((IntField) tup.getField(afield)).getValue();
+        int count = what == Op.SC_AVG ? ((IntField) tup.getField(afield + 1)).getValue() : 1;
+        merge(g, value, count);
+    }
+
+    /**
+     * Merge every row of a batch into the aggregate, grouping as indicated
+     * in the constructor
+     *
+     * @param batch
+     *            rows containing an aggregate field and a group-by field
+     */
+    public void mergeBatch(TupleBatch batch) {
+        int n = batch.size();
+        int[] vals = batch.intColumn(afield);
+        int[] cnts = what == Op.SC_AVG ? batch.intColumn(afield + 1) : null;
+        int[] keys = table != null ? batch.intColumn(gbfield) : null;
+        for (int r = 0; r < n; r++) {
+            int g;
+            if (gbfield == NO_GROUPING)
+                g = noGroup();
+            else if (keys != null)
+                g = intGroup(keys[r]);
+            else
+                g = fieldGroup(batch.getField(gbfield, r));
+            merge(g, vals[r], cnts == null ? 1 : cnts[r]);
         }
-        else {
-            Field key = tup.getField(gbfield);
-            Field value = tup.getField(afield);
-            fieldCntMap.put(key, fieldCntMap.getOrDefault(key, 0) + 1);
-            if (resMap.containsKey(key)) {
-                resMap.put(key, aggregate(what, value, resMap.get(key), key));
-            }
-            else {
-                resMap.put(key, value);
-            }
+    }
+
+    /**
+     * Merge row r of a batch into its group, if the group exists or addGroup
+     * is true
+     *
+     * @return false if the group is new and addGroup is false
+     */
+    public boolean mergeRow(TupleBatch batch, int r, boolean addGroup) {
+        int g;
+        if (gbfield == NO_GROUPING)
+            g = numGroups > 0 || addGroup ? noGroup() : -1;
+        else if (table != null)
+            g = intGroup(batch.getInt(gbfield, r), addGroup);
+        else
+            g = fieldGroup(batch.getField(gbfield, r), addGroup);
+        if (g < 0)
+            return false;
+        merge(g, batch.getInt(afield, r), what == Op.SC_AVG ? batch.getInt(afield + 1, r) : 1);
+        return true;
+    }
+
+    public int numGroups() {
+        return numGroups;
+    }
+
+    /**
+     * Merge the groups of another IntegerAggregator into this one.  Each
+     * group's partial state is its accumulator and count, so AVG merges
+     * exact sums and counts rather than averages.
+     *
+     * @param other an IntegerAggregator built with the same arguments
+     */
+    public void merge(Aggregator other) {
+        if (!(other instanceof IntegerAggregator))
+            throw new IllegalArgumentException("cannot merge a " + other.getClass().getSimpleName()
+                    + " into an IntegerAggregator");
+        IntegerAggregator o = (IntegerAggregator) other;
+        if (o.gbfield != gbfield || o.afield != afield || o.what != what)
+            throw new IllegalArgumentException("aggregators compute different aggregates");
+        for (int og = 0; og < o.numGroups; og++) {
+            int g;
+            if (gbfield == NO_GROUPING)
+                g = noGroup();
+            else if (table != null)
+                g = intGroup(o.intKeys[og]);
+            else
+                g = fieldGroup(o.fieldKeys[og]);
+            merge(g, o.values[og], o.counts[og]);
         }
     }
 
-    private Field aggregate(Op what, Field value, Field prevAggregate, Field key) {
-        if (what == Op.MAX) {
-            return value.compare(Predicate.Op.GREATER_THAN_OR_EQ, prevAggregate) ? new IntField(((IntField)value).getValue())
-                    : new IntField(((IntField)prevAggregate).getValue());
+    private void merge(int g, long value, long count) {
+        switch (what) {
+        case MIN:
+            values[g] = counts[g] == 0 ? value : Math.min(values[g], value);
+            break;
+        case MAX:
+            values[g] = counts[g] == 0 ? value : Math.max(values[g], value);
+            break;
+        default:
+            values[g] += value;
+            break;
         }
-        if (what == Op.MIN) {
-            return value.compare(Predicate.Op.LESS_THAN_OR_EQ, prevAggregate) ? new IntField(((IntField)value).getValue())
-                    : new IntField(((IntField)prevAggregate).getValue());
+        counts[g] += count;
+    }
+
+    /** @return the only group, when there is no grouping */
+    private int noGroup() {
+        if (numGroups == 0)
+            newGroup();
+        return 0;
+    }
+
+    /** @return the group of an INT_TYPE key, adding it if it is new */
+    private int intGroup(int key) {
+        return intGroup(key, true);
+    }
+
+    /** @return the group of an INT_TYPE key, or -1 if it is new and add is false */
+    private int intGroup(int key, boolean add) {
+        int mask = table.length - 1;
+        int slot = mix(key) & mask;
+        while (table[slot] != 0) {
+            int g = table[slot] - 1;
+            if (intKeys[g] == key)
+                return g;
+            slot = (slot + 1) & mask;
         }
-        if (what == Op.SUM || what == Op.AVG) {
-            return new IntField(((IntField)value).getValue() + ((IntField)prevAggregate).getValue());
+        if (!add)
+            return -1;
+        int g = newGroup();
+        if (g == intKeys.length)
+            intKeys = Arrays.copyOf(intKeys, values.length);
+        intKeys[g] = key;
+        table[slot] = g + 1;
+        if (numGroups * 2 > table.length)
+            rehash(table.length * 2);
+        return g;
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void rehash(int size) {
+        table = new int[size];
+        int mask = size - 1;
+        for (int g = 0; g < numGroups; g++) {
+            int slot = mix(intKeys[g]) & mask;
+            while (table[slot] != 0)
+                slot = (slot + 1) & mask;
+            table[slot] = g + 1;
         }
-        if (what == Op.COUNT) {
-            return new IntField((fieldCntMap.get(key)));
+    }
+
+    /** @return the group of a key that is not an INT_TYPE key */
+    private int fieldGroup(Field key) {
+        return fieldGroup(key, true);
+    }
+
+    /** @return the group of a key that is not an INT_TYPE key, or -1 if it is new and add is false */
+    private int fieldGroup(Field key, boolean add) {
+        Integer g = fieldGroups.get(key);
+        if (g != null)
+            return g;
+        if (!add)
+            return -1;
+        int ng = newGroup();
+        if (ng == fieldKeys.length)
+            fieldKeys = Arrays.copyOf(fieldKeys, values.length);
+        fieldKeys[ng] = key;
+        fieldGroups.put(key, ng);
+        return ng;
+    }
+
+    /** @return the number of a new, empty group */
+    private int newGroup() {
+        if (numGroups == values.length) {
+            values = Arrays.copyOf(values, numGroups * 2);
+            counts = Arrays.copyOf(counts, numGroups * 2);
         }
-        return null;
+        return numGroups++;
     }
 
     /**
@@ -100,31 +267,42 @@ public class IntegerAggregator implements Aggregator {
      * @return a DbIterator whose tuples are the pair (groupVal, aggregateVal)
      *         if using group, or a single (aggregateVal) if no grouping. The
      *         aggregateVal is determined by the type of aggregate specified in
-     *         the constructor.
+     *         the constructor; for SUM_COUNT it is the pair (sum, count).
+     *         AVG and SC_AVG divide the exact sum by the count.
+     * @throws ArithmeticException if a SUM does not fit in an IntField
      */
     public DbIterator iterator() {
         // some code goes here
-        TupleDesc tupleDesc = gbfield == NO_GROUPING ? new TupleDesc(new Type[]{valueType}) : new TupleDesc(new Type[]{gbfieldtype, valueType});
-        List<Tuple> tupleList = new ArrayList<>();
-        for (Field key : resMap.keySet()) {
+        ArrayList<Type> types = new ArrayList<>();
+        if (gbfield != NO_GROUPING)
+            types.add(gbfieldtype);
+        types.add(Type.INT_TYPE);
+        if (what == Op.SUM_COUNT)
+            types.add(Type.INT_TYPE);
+        TupleDesc tupleDesc = new TupleDesc(types.toArray(new Type[0]));
+        List<Tuple> tupleList = new ArrayList<>(numGroups);
+        for (int g = 0; g < numGroups; g++) {
             Tuple tuple = new Tuple(tupleDesc);
-            if (gbfield == NO_GROUPING) {
-                if (what == Op.AVG) {
-                    tuple.setField(0, new IntField(((IntField)resMap.get(key)).getValue() / fieldCntMap.get(key)));
-                }
-                else {
-                    tuple.setField(0, new IntField(((IntField)resMap.get(key)).getValue()));
-                }
-            }
-            else {
-                if (what == Op.AVG) {
-                    tuple.setField(0, key);
-                    tuple.setField(1, new IntField(((IntField)resMap.get(key)).getValue() / fieldCntMap.get(key)));
-                }
-                else {
-                    tuple.setField(0, key);
-                    tuple.setField(1, new IntField(((IntField)resMap.get(key)).getValue()));
-                }
+            int i = 0;
+            if (gbfield != NO_GROUPING)
+                tuple.setField(i++, table != null ? new IntField(intKeys[g]) : fieldKeys[g]);
+            switch (what) {
+            case MIN:
+            case MAX:
+            case SUM:
+                tuple.setField(i, new IntField(Math.toIntExact(values[g])));
+                break;
+            case AVG:
+            case SC_AVG:
+                tuple.setField(i, new IntField((int) (values[g] / counts[g])));
+                break;
+            case COUNT:
+                tuple.setField(i, new IntField(Math.toIntExact(counts[g])));
+                break;
+            case SUM_COUNT:
+                tuple.setField(i, new IntField(Math.toIntExact(values[g])));
+                tuple.setField(i + 1, new IntField(Math.toIntExact(counts[g])));
+                break;
             }
             tupleList.add(tuple);
         }
@@ -34,6 +34,13 @@ public class JoinOptimizer {
      * inner/outer here -- because DbIterator's don't provide any cardinality
      * estimates, and stats only has information about the base tables. For this
      * reason, the plan1
+     * <p>
+     * The join is run with the algorithm the optimizer recorded in
+     * lj.algorithm.  The optimizer only picks INDEX_NESTED_LOOPS for a base
+     * table in a BTreeFile keyed on the join field as the inner input; if
+     * plan2 cannot be probed, the join runs with the algorithm that is next
+     * cheapest without an index or sorted inputs: HASH for an equality
+     * join, and BLOCK_NESTED_LOOPS otherwise.
      * 
      * @param lj
      *            The join being considered
@@ -68,7 +75,30 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        LogicalJoinNode.Algorithm algorithm = lj.algorithm;
+        if (algorithm == LogicalJoinNode.Algorithm.INDEX_NESTED_LOOPS
+                && !IndexNestedLoopsJoin.canProbe(plan2, t2id)) {
+            algorithm = canUse(LogicalJoinNode.Algorithm.HASH, lj)
+                    ? LogicalJoinNode.Algorithm.HASH
+                    : LogicalJoinNode.Algorithm.BLOCK_NESTED_LOOPS;
+        }
+        switch (algorithm) {
+        case HASH:
+            j = new HashEquiJoin(p, plan1, plan2);
+            break;
+        case SORT_MERGE:
+            j = new SortMergeJoin(p, plan1, plan2);
+            break;
+        case INDEX_NESTED_LOOPS:
+            j = new IndexNestedLoopsJoin(p, plan1, plan2);
+            break;
+        case BLOCK_NESTED_LOOPS:
+            j = new BlockNestedLoopsJoin(p, plan1, plan2);
+            break;
+        default:
+            j = new Join(p,plan1,plan2);
+            break;
+        }
 
         return j;
 
@@ -82,6 +112,24 @@ public class JoinOptimizer {
      * the amount of data that must be read over the course of the query, as
      * well as the number of CPU opertions performed by your join. Assume that
      * the cost of a single predicate application is roughly 1.
+     * <p>
+     * The cost is that of the algorithm in j.algorithm, with the left-hand
+     * side as the outer relation:
+     * <ul>
+     * <li>NESTED_LOOPS scans the inner relation once per outer tuple and
+     * applies the predicate to every pair.
+     * <li>HASH scans each relation once, hashing every inner tuple and
+     * probing with every outer tuple.
+     * <li>SORT_MERGE scans each relation once and compares each tuple about
+     * once, with no hash table to build; a band (&lt;, &gt;) join also
+     * emits each matching pair, as estimated by estimateJoinCardinality.
+     * <li>INDEX_NESTED_LOOPS probes a B+ tree on the inner relation once per
+     * outer tuple; a probe compares about log2(card2) keys on the way down
+     * and reads about one leaf page, and each match is emitted.
+     * <li>BLOCK_NESTED_LOOPS scans the inner relation once per block of
+     * outer tuples; for equality each inner tuple is hashed into the block,
+     * and otherwise it is compared with every tuple of the block.
+     * </ul>
      * 
      * 
      * @param j
@@ -107,11 +155,68 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Lab 5.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return cost1 + card1 * cost2 + card1 * card2;
+            switch (j.algorithm) {
+            case HASH:
+                return cost1 + cost2 + card1 + card2;
+            case SORT_MERGE:
+                if (j.p == Predicate.Op.EQUALS)
+                    return cost1 + cost2 + (card1 + card2) / 2.0;
+                return cost1 + cost2 + (card1 + card2) / 2.0 + 0.3 * card1 * card2;
+            case INDEX_NESTED_LOOPS:
+                double probe = cost2 / pagesOf(j.t2Alias) + Math.log(card2 + 1.0) / Math.log(2);
+                if (j.p == Predicate.Op.EQUALS)
+                    return cost1 + card1 * probe + card1;
+                return cost1 + card1 * probe + 0.3 * card1 * card2;
+            case BLOCK_NESTED_LOOPS:
+                double blocks = Math.ceil(card1 / (double) blockRowsOf(j.t1Alias));
+                if (j.p == Predicate.Op.EQUALS)
+                    return cost1 + blocks * cost2 + card1 + blocks * card2;
+                return cost1 + blocks * cost2 + (double) card1 * card2;
+            default:
+                return cost1 + card1 * cost2 + card1 * card2;
+            }
+        }
+    }
+
+    /** @return the number of pages of the table with alias tableAlias, at least 1 */
+    private int pagesOf(String tableAlias) {
+        DbFile f = Database.getCatalog().getDatabaseFile(p.getTableId(tableAlias));
+        int pages = 1;
+        if (f instanceof HeapFile)
+            pages = ((HeapFile) f).numPages();
+        else if (f instanceof BTreeFile)
+            pages = ((BTreeFile) f).numPages();
+        return Math.max(1, pages);
+    }
+
+    /**
+     * @return the number of tuples of the table with alias tableAlias in a
+     *   block of a BlockNestedLoopsJoin
+     */
+    private int blockRowsOf(String tableAlias) {
+        return BlockNestedLoopsJoin.blockRows(
+                Database.getCatalog().getTupleDesc(p.getTableId(tableAlias)),
+                BlockNestedLoopsJoin.DEFAULT_BLOCK_PAGES);
+    }
+
+    /**
+     * @return true if join j can be run with algorithm a.  SORT_MERGE also
+     *   needs both inputs sorted on their join fields, and INDEX_NESTED_LOOPS
+     *   a base table indexed on its join field as the inner input, which the
+     *   optimizer checks separately.
+     */
+    public static boolean canUse(LogicalJoinNode.Algorithm a, LogicalJoinNode j) {
+        switch (a) {
+        case HASH:
+            return j.p == Predicate.Op.EQUALS && !(j instanceof LogicalSubplanJoinNode);
+        case SORT_MERGE:
+            return SortMergeJoin.canMerge(j.p) && !(j instanceof LogicalSubplanJoinNode);
+        case INDEX_NESTED_LOOPS:
+            return IndexNestedLoopsJoin.canProbe(j.p) && !(j instanceof LogicalSubplanJoinNode);
+        case BLOCK_NESTED_LOOPS:
+            return !(j instanceof LogicalSubplanJoinNode);
+        default:
+            return true;
         }
     }
 
@@ -238,6 +343,8 @@ public class JoinOptimizer {
         //Not necessary for labs 1--3
         // some code goes here
         //Replace the following
+        if (joins.isEmpty())
+            return joins;
         PlanCache planCache = new PlanCache();
         for (int j = 1; j <= joins.size(); j++) {
             Set<Set<LogicalJoinNode>> subsets = enumerateSubsets(joins, j);
@@ -386,15 +493,37 @@ public class JoinOptimizer {
             }
         }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
-
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
+        // try each algorithm, with prevbest first as the outer and then as
+        // the inner relation
+        LogicalJoinNode swapped = j.swapInnerOuter();
+        LogicalJoinNode best = null;
+        double cost1 = Double.MAX_VALUE;
+        boolean bestSwapped = false;
+        for (LogicalJoinNode.Algorithm a : LogicalJoinNode.Algorithm.values()) {
+            if (!canUse(a, j))
+                continue;
+            if (inputsSuit(a, j, prevBest)) {
+                LogicalJoinNode j1 = j.withAlgorithm(a);
+                double c = estimateJoinCost(j1, t1card, t2card, t1cost, t2cost);
+                if (c < cost1) {
+                    best = j1;
+                    cost1 = c;
+                    bestSwapped = false;
+                }
+            }
+            if (inputsSuit(a, swapped, prevBest)) {
+                LogicalJoinNode j2 = swapped.withAlgorithm(a);
+                double c = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+                if (c < cost1) {
+                    best = j2;
+                    cost1 = c;
+                    bestSwapped = true;
+                }
+            }
+        }
+        j = best;
+        if (bestSwapped) {
             boolean tmp;
-            j = j2;
-            cost1 = cost2;
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
@@ -425,6 +554,67 @@ public class JoinOptimizer {
         return false;
     }
 
+    /**
+     * Return true if the inputs of join j suit algorithm a: SORT_MERGE needs
+     * both inputs sorted on their join fields, and INDEX_NESTED_LOOPS needs
+     * the inner input to be a base table in a BTreeFile keyed on its join
+     * field.
+     *
+     * @param plan
+     *            the joins already made, whose output is one input of j
+     */
+    private boolean inputsSuit(LogicalJoinNode.Algorithm a, LogicalJoinNode j,
+            Vector<LogicalJoinNode> plan) {
+        switch (a) {
+        case SORT_MERGE:
+            return isSortedOn(plan, j.t1Alias, j.f1PureName)
+                    && isSortedOn(plan, j.t2Alias, j.f2PureName);
+        case INDEX_NESTED_LOOPS:
+            return !doesJoin(plan, j.t2Alias) && isBTreeKey(j.t2Alias, j.f2PureName);
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Return true if the input holding tableAlias is sorted in ascending
+     * order on field, so a sort-merge join can read it without sorting.
+     * That is the case for a base table stored in a BTreeFile keyed on
+     * field, and for the output of an equality sort-merge join on field.
+     * Other joins are not assumed to keep any order.
+     *
+     * @param plan
+     *            the joins already made, whose output is one input of the
+     *            join being considered
+     * @param tableAlias
+     *            The alias of the table in the query
+     * @param field
+     *            The pure name of the field
+     */
+    private boolean isSortedOn(Vector<LogicalJoinNode> plan, String tableAlias, String field) {
+        if (doesJoin(plan, tableAlias)) {
+            LogicalJoinNode last = plan.lastElement();
+            String name = tableAlias + "." + field;
+            return last.algorithm == LogicalJoinNode.Algorithm.SORT_MERGE
+                    && last.p == Predicate.Op.EQUALS
+                    && (name.equals(last.f1QuantifiedName) || name.equals(last.f2QuantifiedName));
+        }
+        return isBTreeKey(tableAlias, field);
+    }
+
+    /**
+     * Return true if the base table with alias tableAlias is stored in a
+     * BTreeFile keyed on field
+     */
+    private boolean isBTreeKey(String tableAlias, String field) {
+        DbFile f = Database.getCatalog().getDatabaseFile(p.getTableId(tableAlias));
+        if (!(f instanceof BTreeFile))
+            return false;
+        TupleDesc td = f.getTupleDesc();
+        int key = ((BTreeFile) f).keyField();
+        return field.equals(td.getFieldName(key));
+    }
+
     /**
      * Return true if field is a primary key of the specified table, false
      * otherwise
@@ -507,7 +697,7 @@ public class JoinOptimizer {
             // Double c = pc.getCost(pathSoFar);
             neither = true;
 
-            root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
+            root = new DefaultMutableTreeNode("Join " + j + " " + j.algorithm + " (Cost ="
                     + pc.getCost(pathSoFar) + ", card = "
                     + pc.getCard(pathSoFar) + ")");
             DefaultMutableTreeNode n = m.get(j.t1Alias);
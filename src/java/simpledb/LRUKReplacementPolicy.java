@@ -0,0 +1,115 @@
+package simpledb;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum).  The victim is the page
+ * whose K-th most recent reference is oldest.  Pages referenced fewer than K
+ * times have an infinite backward K-distance and go first, least recently
+ * used among them first.  This keeps a single scan from flushing pages
+ * that are referenced repeatedly, such as B+ tree internal pages.
+ * <p>
+ * Reference histories of evicted pages are remembered for a bounded number
+ * of pages, so a page that comes back soon after eviction keeps its history.
+ * Pages are kept ordered in a TreeSet, so each call costs O(log n).
+ */
+public class LRUKReplacementPolicy extends AbstractReplacementPolicy {
+
+    /** Default number of references tracked per page. */
+    public static final int DEFAULT_K = 2;
+
+    /** Default number of evicted pages whose history is remembered. */
+    public static final int DEFAULT_RETAINED_HISTORY = 1024;
+
+    private final int k;
+    private long clock = 0;
+
+    /** most recent first; unused slots are 0 */
+    private final HashMap<PageId, long[]> history = new HashMap<PageId, long[]>();
+    private final LinkedHashMap<PageId, long[]> retained;
+    private final TreeSet<PageId> order = new TreeSet<PageId>(new Comparator<PageId>() {
+        public int compare(PageId a, PageId b) {
+            long[] ha = history.get(a), hb = history.get(b);
+            int c = Long.compare(ha[k - 1], hb[k - 1]);
+            if (c != 0)
+                return c;
+            // timestamps are unique, so this never ties for distinct pages
+            return Long.compare(ha[0], hb[0]);
+        }
+    });
+
+    public LRUKReplacementPolicy() {
+        this(DEFAULT_K, DEFAULT_RETAINED_HISTORY);
+    }
+
+    /**
+     * @param k the number of references to track per page; k=1 is plain LRU
+     * @param retainedHistory how many evicted pages keep their history
+     */
+    public LRUKReplacementPolicy(int k, final int retainedHistory) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be at least 1");
+        this.k = k;
+        this.retained = new LinkedHashMap<PageId, long[]>() {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<PageId, long[]> eldest) {
+                return size() > retainedHistory;
+            }
+        };
+    }
+
+    private void reference(long[] h) {
+        System.arraycopy(h, 0, h, 1, k - 1);
+        h[0] = ++clock;
+    }
+
+    protected void accessed(PageId pid) {
+        long[] h = history.get(pid);
+        if (h == null)
+            return;
+        order.remove(pid);
+        reference(h);
+        order.add(pid);
+    }
+
+    protected void admitted(PageId pid) {
+        long[] h = history.get(pid);
+        if (h != null) {
+            accessed(pid);
+            return;
+        }
+        h = retained.remove(pid);
+        if (h == null)
+            h = new long[k];
+        reference(h);
+        history.put(pid, h);
+        order.add(pid);
+    }
+
+    protected void removed(PageId pid) {
+        if (!history.containsKey(pid))
+            return;
+        order.remove(pid);
+        retained.put(pid, history.remove(pid));
+    }
+
+    protected PageId victim(EvictionFilter filter) {
+        Iterator<PageId> it = order.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (filter.canEvict(pid))
+                return pid;
+        }
+        return null;
+    }
+
+    public String getName() {
+        return "LRU-" + k;
+    }
+}
@@ -0,0 +1,41 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Least-recently-used replacement.  Resident pages are kept in an
+ * access-ordered LinkedHashMap, so the eldest entry is always the least
+ * recently used page and victim selection usually inspects a single entry.
+ */
+public class LRUReplacementPolicy extends AbstractReplacementPolicy {
+
+    private final LinkedHashMap<PageId, Boolean> lru =
+        new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+
+    protected void accessed(PageId pid) {
+        lru.get(pid);
+    }
+
+    protected void admitted(PageId pid) {
+        lru.put(pid, Boolean.TRUE);
+    }
+
+    protected void removed(PageId pid) {
+        lru.remove(pid);
+    }
+
+    protected PageId victim(EvictionFilter filter) {
+        Iterator<PageId> it = lru.keySet().iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (filter.canEvict(pid))
+                return pid;
+        }
+        return null;
+    }
+
+    public String getName() {
+        return "LRU";
+    }
+}
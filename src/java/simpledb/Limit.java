@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Limit is an operator that returns the first tuples of its child, up to a
+ * given number (the LIMIT clause of a query).  It stops reading its child
+ * once it has returned that many tuples.
+ */
+public class Limit extends BatchOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private final int limit;
+    private int returned;
+
+    /**
+     * Constructor.
+     *
+     * @param limit
+     *            The most tuples to return
+     * @param child
+     *            The child operator
+     */
+    public Limit(int limit, DbIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("negative limit " + limit);
+        this.limit = limit;
+        this.child = child;
+    }
+
+    /** @return the most tuples this operator returns */
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        super.open();
+        returned = 0;
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        child.rewind();
+        returned = 0;
+    }
+
+    /**
+     * Returns the next batch of the child's tuples, cut short at the limit.
+     * Fewer tuples than a batch are read from the child one at a time, so
+     * that the child is not read past the limit.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        int left = limit - returned;
+        if (left <= 0)
+            return null;
+        TupleBatch batch;
+        if (left >= TupleBatch.DEFAULT_SIZE) {
+            batch = BatchAdapter.of(child).nextBatch();
+            if (batch == null)
+                return null;
+            if (batch.size() > left) {
+                int[] rows = new int[left];
+                for (int i = 0; i < left; i++)
+                    rows[i] = i;
+                batch.retain(rows, left);
+            }
+        } else {
+            batch = new TupleBatch(getTupleDesc(), left);
+            while (batch.size() < left && child.hasNext())
+                batch.addTuple(child.next());
+        }
+        returned += batch.size();
+        return batch.size() == 0 ? null : batch;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -0,0 +1,208 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * LockManager keeps the page-level lock table used by the BufferPool to
+ * enforce strict two-phase locking.  Pages are locked in shared (READ_ONLY)
+ * or exclusive (READ_WRITE) mode, and a transaction that is the only holder
+ * of a shared lock may upgrade it to exclusive.
+ * <p>
+ * A transaction that has to wait records the holders it is waiting for in a
+ * waits-for graph.  If adding those edges closes a cycle, the requesting
+ * transaction is chosen as the victim and a {@link DeadlockException} is
+ * thrown instead of blocking.
+ * <p>
+ * All state is guarded by the LockManager's monitor, which is also used to
+ * wake waiters whenever a lock is released.
+ *
+ * @see BufferPool#getPage
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /** Holders of the lock on a single page. */
+    private static class PageLock {
+        final Set<TransactionId> sharers = new HashSet<TransactionId>();
+        TransactionId exclusive = null;
+
+        boolean isFree() {
+            return exclusive == null && sharers.isEmpty();
+        }
+    }
+
+    private final Map<PageId, PageLock> locks = new HashMap<PageId, PageLock>();
+    private final Map<TransactionId, Set<PageId>> held = new HashMap<TransactionId, Set<PageId>>();
+    private final Map<TransactionId, Set<TransactionId>> waitsFor = new HashMap<TransactionId, Set<TransactionId>>();
+
+    /**
+     * Acquire a lock on the specified page, blocking until it can be granted.
+     *
+     * @param tid the transaction requesting the lock
+     * @param pid the page to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws DeadlockException if waiting would close a cycle in the
+     *     waits-for graph
+     * @throws TransactionAbortedException if the thread is interrupted while
+     *     waiting
+     */
+    public synchronized void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        try {
+            while (true) {
+                Set<TransactionId> blockers = blockers(tid, pid, exclusive);
+                if (blockers.isEmpty()) {
+                    grant(tid, pid, exclusive);
+                    return;
+                }
+                waitsFor.put(tid, blockers);
+                if (closesCycle(tid)) {
+                    Debug.log(1, "LockManager: deadlock, aborting %d", tid.getId());
+                    throw new DeadlockException();
+                }
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new TransactionAbortedException();
+        } finally {
+            waitsFor.remove(tid);
+        }
+    }
+
+    /**
+     * Acquire a lock on the specified page only if it can be granted at
+     * once.  Used by the BufferPool to keep a page from changing while it
+     * writes it on behalf of no particular transaction.
+     *
+     * @return true if the lock was granted, false if tid would have to wait
+     */
+    public synchronized boolean tryAcquireLock(TransactionId tid, PageId pid, Permissions perm) {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        if (!blockers(tid, pid, exclusive).isEmpty())
+            return false;
+        grant(tid, pid, exclusive);
+        return true;
+    }
+
+    /** @return the transactions that prevent tid from being granted the lock */
+    private Set<TransactionId> blockers(TransactionId tid, PageId pid, boolean exclusive) {
+        PageLock lock = locks.get(pid);
+        if (lock == null)
+            return Collections.emptySet();
+        Set<TransactionId> blockers = new HashSet<TransactionId>();
+        if (lock.exclusive != null && !lock.exclusive.equals(tid))
+            blockers.add(lock.exclusive);
+        if (exclusive) {
+            for (TransactionId sharer : lock.sharers) {
+                if (!sharer.equals(tid))
+                    blockers.add(sharer);
+            }
+        }
+        return blockers;
+    }
+
+    private void grant(TransactionId tid, PageId pid, boolean exclusive) {
+        PageLock lock = locks.get(pid);
+        if (lock == null) {
+            lock = new PageLock();
+            locks.put(pid, lock);
+        }
+        if (exclusive) {
+            lock.sharers.remove(tid);
+            lock.exclusive = tid;
+        } else if (!tid.equals(lock.exclusive)) {
+            lock.sharers.add(tid);
+        }
+        Set<PageId> pids = held.get(tid);
+        if (pids == null) {
+            pids = new HashSet<PageId>();
+            held.put(tid, pids);
+        }
+        pids.add(pid);
+    }
+
+    /** @return true if tid can reach itself through the waits-for graph */
+    private boolean closesCycle(TransactionId tid) {
+        Set<TransactionId> visited = new HashSet<TransactionId>();
+        ArrayDeque<TransactionId> stack = new ArrayDeque<TransactionId>(waitsFor.get(tid));
+        while (!stack.isEmpty()) {
+            TransactionId t = stack.pop();
+            if (t.equals(tid))
+                return true;
+            if (!visited.add(t))
+                continue;
+            Set<TransactionId> next = waitsFor.get(t);
+            if (next != null)
+                stack.addAll(next);
+        }
+        return false;
+    }
+
+    /**
+     * Release the lock that tid holds on the specified page, if any.
+     */
+    public synchronized void releaseLock(TransactionId tid, PageId pid) {
+        Set<PageId> pids = held.get(tid);
+        if (pids == null || !pids.remove(pid))
+            return;
+        if (pids.isEmpty())
+            held.remove(tid);
+        release(tid, pid);
+        notifyAll();
+    }
+
+    private void release(TransactionId tid, PageId pid) {
+        PageLock lock = locks.get(pid);
+        if (lock == null)
+            return;
+        lock.sharers.remove(tid);
+        if (tid.equals(lock.exclusive))
+            lock.exclusive = null;
+        if (lock.isFree())
+            locks.remove(pid);
+    }
+
+    /**
+     * Release every lock held by tid.
+     */
+    public synchronized void releaseAllLocks(TransactionId tid) {
+        Set<PageId> pids = held.remove(tid);
+        if (pids == null)
+            return;
+        for (PageId pid : pids)
+            release(tid, pid);
+        notifyAll();
+    }
+
+    /** @return true if tid holds a shared or exclusive lock on pid */
+    public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
+        Set<PageId> pids = held.get(tid);
+        return pids != null && pids.contains(pid);
+    }
+
+    /** @return true if tid holds an exclusive lock on pid */
+    public synchronized boolean holdsExclusiveLock(TransactionId tid, PageId pid) {
+        PageLock lock = locks.get(pid);
+        return lock != null && tid.equals(lock.exclusive);
+    }
+
+    /** @return true if any transaction holds an exclusive lock on pid */
+    public synchronized boolean isLockedExclusive(PageId pid) {
+        PageLock lock = locks.get(pid);
+        return lock != null && lock.exclusive != null;
+    }
+
+    /** @return a snapshot of the pages tid holds a lock on */
+    public synchronized Set<PageId> getLockedPages(TransactionId tid) {
+        Set<PageId> pids = held.get(tid);
+        if (pids == null)
+            return Collections.emptySet();
+        return new HashSet<PageId>(pids);
+    }
+}
@@ -3,6 +3,9 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.*;
 import java.lang.reflect.*;
 
 /**
@@ -14,24 +17,19 @@ two-phase locking discipline are followed.  <p>
 <u> Locking note: </u>
 <p>
 
-Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
-
-<p>
-<pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
-
-       ..
-
-       }
-    }
-</pre>
+The log buffer, the file, the table of live transactions and the dirty
+page table are protected by the LogFile's monitor.  The BufferPool calls
+in ({@link #logWrite}, {@link #force(long)}, {@link #pageWritten}) while
+holding one of its page latches, never its frame latch, so latches are
+ordered: the BufferPool's frame latch, then a page latch, then this
+monitor.  No method here takes a BufferPool latch while holding the
+monitor: rollback and recovery read and undo the pages they restore
+under the monitor, but write and force them to their files after
+releasing it, and then drop the stale copies from the pool with {@link
+BufferPool#discardPage}, which takes the frame latch.  Shutdown flushes
+the pool before taking the monitor.  A force, a checkpoint's included,
+writes and fsyncs the log outside the monitor (see below).  Page locks
+are taken by the BufferPool and its callers, never here.
 */
 
 /**
@@ -51,8 +49,8 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, UPDATE_DELTA and CLR
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -61,27 +59,105 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li>UPDATE_DELTA records are what logWrite writes.  They hold only the
+byte ranges of the page that changed, with their bytes before and
+after the change: a serialized {@link PageDelta}.  Undoing one puts
+the before bytes back into the page, and redoing one puts the after
+bytes in.
+
+<li>CLR (compensation log record) records are written when an update is
+rolled back, by an abort or by recovery.  They hold the change the
+rollback made to the page, as a serialized {@link PageDelta}, followed by
+the long integer offset of the update record it took back.  A CLR is
+redone like an update but never undone.
+
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed by
+the dirty page table.  The format of the record is an integer count of
+the number of transactions, as well as a long integer transaction id and
+a long integer first record offset for each active transaction; then an
+integer count of dirty pages, and for each a page id (see
+PageDelta.writePageId) and the long integer offset of its first record
+whose change may not be on disk (its recLSN).
 
 </ul>
 
 */
 
+/**
+<u> Recovery: </u>
+<p>
+
+The offset of a record in the log file is its log sequence number (LSN).
+The LSNs {@link #logWrite} returns also count the bytes truncated from
+the front of the log, so that they stay ordered across truncations; the
+buffer pool keeps the LSN of the last logged change of each page and
+{@link #force(long)}s the log up to it before writing the page.
+The log keeps a dirty page table: the pages whose logged changes may not
+have been written yet, each with the LSN of the first such record.  A
+checkpoint is fuzzy: it records the active transactions and the dirty
+page table without flushing any page.
+<p>
+
+{@link #recover} works in three passes, as in ARIES.  Analysis scans
+from the last checkpoint to the end of the log, rebuilding both tables;
+the transactions still active are the losers.  Redo repeats history from
+the oldest recLSN for every transaction, those that aborted included,
+skipping only the records of pages that were written since (a record
+older than its page's recLSN).  A rollback logs a CLR for each update it
+takes back, so repeating an aborted transaction's updates and then its
+CLRs leaves its pages as the abort did, whether or not the pages the
+abort wrote reached the disk.  The records are grouped by page and the
+pages are redone by several threads, each owning a partition of the page
+ids.  Undo then takes back the losers' updates that no CLR already took
+back, newest first, logging a CLR for each and an ABORT record for each
+loser.  Redo and undo write whole byte ranges, so repeating either after
+a crash during recovery gives the same pages.
+<p>
+
+Pages that a rollback or recovery restores are forced to their files
+before they leave the dirty page table.
+*/
+
+/**
+<u> Group commit: </u>
+<p>
+
+Records are appended to an in-memory log buffer, which is written to the
+file when the log is forced or read.  A committing transaction appends
+its COMMIT record and then waits for a log-writer thread to force the log
+past it.  The writer forces once for every commit waiting when it runs:
+as soon as it can by default, or once {@link #setGroupCommit} commits are
+waiting or the oldest has waited the configured delay.  A force takes the
+buffered records under the log's monitor, but writes and fsyncs them
+outside it, so records are appended while the disk works; commits that
+arrive meanwhile wait for the next force, and under load many commits
+share one fsync.  {@link #getCommitsPerForce} reports
+how many.
+*/
+
 public class LogFile {
 
     final File logFile;
     private RandomAccessFile raf;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
+    /** Default for the longest a commit waits for others to share its force, in microseconds. */
+    public static final long DEFAULT_GROUP_COMMIT_DELAY_MICROS = 0;
+
+    /** Default for the number of waiting commits that triggers a force at once. */
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 32;
+
+    // how long an idle log writer waits for a commit before it exits
+    private static final long WRITER_IDLE_MILLIS = 1000;
+
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int UPDATE_DELTA_RECORD = 6;
+    static final int CLR_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
@@ -93,6 +169,44 @@ public class LogFile {
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // the dirty page table: pages with logged changes that may not be on
+    // disk, and the offset of the first such record (recLSN) of each;
+    // protected by this
+    HashMap<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+
+    // bytes truncated from the front of the log so far, and the offset up
+    // to which it is on disk; protected by this
+    private long truncatedBytes = 0;
+    private long flushedOffset = 0;
+
+    // records appended since the buffer was last written, which begin at
+    // file offset bufferStart; all protected by this.  While flushing, a
+    // force is writing the start of the buffer outside the monitor, and
+    // nothing else may write the file.
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    private long bufferStart;
+    private boolean flushing = false;
+
+    // group commit, protected by this: the commits waiting for a force,
+    // and when the first of them started waiting.  A commit waits for the
+    // LSN past its record to be durable; LSNs count truncated bytes, so
+    // truncation does not move them.
+    private int waitingCommits = 0;
+    private long firstWaitNanos;
+    private LogWriter writer;
+    private IOException writerFailure;
+    private long groupCommitDelayNanos = DEFAULT_GROUP_COMMIT_DELAY_MICROS * 1000;
+    private int groupCommitSize = DEFAULT_GROUP_COMMIT_SIZE;
+
+    // metrics, protected by this
+    private long forces = 0;
+    private long bytesWritten = 0;
+    private long writerForces = 0;
+    private long groupCommits = 0;
+    private long redoneUpdates = 0;
+    private long undoneUpdates = 0;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -132,44 +246,132 @@ public class LogFile {
             raf.writeLong(NO_CHECKPOINT_ID);
             raf.seek(raf.length());
             currentOffset = raf.getFilePointer();
+            bufferStart = currentOffset;
+            flushedOffset = currentOffset;
         }
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** @return the offset just past the last record appended, buffered or not */
+    private long endOffset() {
+        return bufferStart + buffer.size();
+    }
+
+    /** @return the LSN up to which the log is on disk */
+    private long durableLSN() {
+        return truncatedBytes + flushedOffset;
+    }
+
+    /** Wait, holding the monitor, until no force is writing the file. */
+    private synchronized void awaitFlush() {
+        boolean interrupted = false;
+        while (flushing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Write the buffered records to the end of the file, leaving its file
+     * pointer there.  Must be called before the file is read or written
+     * directly.
+     */
+    private synchronized void writeBuffer() throws IOException {
+        awaitFlush();
+        raf.seek(bufferStart);
+        if (buffer.size() > 0) {
+            raf.write(buffer.toByteArray());
+            bytesWritten += buffer.size();
+            bufferStart += buffer.size();
+            buffer.reset();
+        }
+    }
+
+    /**
+     * Set when the log writer forces the log for waiting commits.
+     *
+     * @param delayMicros the longest the first waiting commit waits for
+     *   others to share its force; 0 forces as soon as the writer can
+     * @param size the number of waiting commits that triggers a force
+     *   without waiting for the delay
+     */
+    public synchronized void setGroupCommit(long delayMicros, int size) {
+        groupCommitDelayNanos = Math.max(0, delayMicros) * 1000;
+        groupCommitSize = Math.max(1, size);
+        notifyAll();
+    }
+
+    /** @return the number of times the log has been forced to disk */
+    public synchronized long getForces() {
+        return forces;
+    }
+
+    /** @return the number of bytes of records appended to the log file */
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /** @return the number of commits made durable by the log writer */
+    public synchronized long getGroupCommits() {
+        return groupCommits;
+    }
+
+    /** @return the average number of commits each force of the log writer made durable */
+    public synchronized double getCommitsPerForce() {
+        return writerForces == 0 ? 0 : (double) groupCommits / writerForces;
+    }
+
+    /** @return the number of updates the last recovery redid */
+    public synchronized long getRedoneUpdates() {
+        return redoneUpdates;
+    }
+
+    /** @return the number of updates of losers the last recovery undid */
+    public synchronized long getUndoneUpdates() {
+        return undoneUpdates;
+    }
     
+    /** @return true if the specified transaction has log records and has
+        not committed or aborted
+        @param tid The transaction
+    */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
-
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
+        // must do this here, since rollback only works for
+        // live transactions (needs tidToFirstLogRecord)
+        rollback(tid);
+
+        synchronized(this) {
+            preAppend();
+            //Debug.log("ABORT");
+            //should we verify that this is a live transaction?
+
+            out.writeInt(ABORT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = endOffset();
+            tidToFirstLogRecord.remove(tid.getId());
         }
+        force();
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and wait until the log writer has forced it to disk.
 
         @param tid The committing transaction.
     */
@@ -178,47 +380,147 @@ public class LogFile {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
+        out.writeInt(COMMIT_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
+        currentOffset = endOffset();
         tidToFirstLogRecord.remove(tid.getId());
+        awaitForce();
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+    /** Wait, as a commit, until the log is forced past the records appended so far. */
+    private synchronized void awaitForce() throws IOException {
+        long lsn = truncatedBytes + endOffset();
+        if (waitingCommits++ == 0)
+            firstWaitNanos = System.nanoTime();
+        if (writer == null) {
+            writerFailure = null;
+            writer = new LogWriter();
+            writer.start();
+        }
+        notifyAll();
+        boolean interrupted = false;
+        try {
+            while (durableLSN() < lsn) {
+                if (writerFailure != null)
+                    throw new IOException("could not force the log: " + writerFailure.getMessage());
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The log-writer thread: forces the log for the commits waiting when
+     * the group commit size or delay is reached, which wakes them.  It
+     * waits under the log's monitor but forces outside it.  It exits when
+     * no commit has waited for a while, and is started again by the next
+     * one.
+     */
+    private class LogWriter extends Thread {
+        LogWriter() {
+            super("log-writer");
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    long lsn;
+                    synchronized (LogFile.this) {
+                        if (waitingCommits == 0) {
+                            LogFile.this.wait(WRITER_IDLE_MILLIS);
+                            if (waitingCommits == 0) {
+                                writer = null;
+                                return;
+                            }
+                        }
+                        long left;
+                        while (waitingCommits > 0 && waitingCommits < groupCommitSize
+                                && (left = firstWaitNanos + groupCommitDelayNanos - System.nanoTime()) > 0)
+                            LogFile.this.wait(left / 1000000, (int) (left % 1000000));
+                        if (waitingCommits == 0)
+                            continue;
+                        lsn = truncatedBytes + endOffset();
+                    }
+                    forceTo(lsn, true);
+                }
+            } catch (IOException e) {
+                synchronized (LogFile.this) {
+                    writerFailure = e;
+                    waitingCommits = 0;
+                    writer = null;
+                    LogFile.this.notifyAll();
+                }
+            } catch (InterruptedException e) {
+                // exit; the next commit starts another writer
+                synchronized (LogFile.this) {
+                    if (writer == this)
+                        writer = null;
+                }
+            }
+        }
+    }
+
+    /** Write an UPDATE_DELTA record to the log for the specified tid
+        and page, holding the bytes that differ between the provided
+        before and after images.  Nothing is written if they are the same.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record, or 0 if nothing was written
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + endOffset());
+        PageDelta delta = PageDelta.diff(before, after);
+        if (delta.numRanges() == 0)
+            return 0;
         preAppend();
-        /* update record conists of
+        /* update delta record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           changed byte ranges (see PageDelta.write)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        PageId pid = after.getId();
+        if (!dirtyPages.containsKey(pid))
+            dirtyPages.put(pid, currentOffset);
+        // a transaction that logs without a BEGIN record, through the
+        // buffer pool alone, can still be rolled back
+        if (!tidToFirstLogRecord.containsKey(tid.getId()))
+            tidToFirstLogRecord.put(tid.getId(), currentOffset);
+        long lsn = truncatedBytes + currentOffset;
+        out.writeInt(UPDATE_DELTA_RECORD);
+        out.writeLong(tid.getId());
+
+        delta.write(out);
+        out.writeLong(currentOffset);
+        currentOffset = endOffset();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
+    }
+
+    /** Note that a page has been written with every change logged for it,
+        removing it from the dirty page table.
+        @param pid The page written
+    */
+    public synchronized void pageWritten(PageId pid) {
+        dirtyPages.remove(pid);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    void writePageData(DataOutput raf, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
 
@@ -307,60 +609,153 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = endOffset();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The
+        checkpoint is fuzzy: it records the active transactions and the
+        dirty page table, and flushes no pages.  The record is written
+        under the monitor and forced after releasing it. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            long startCpOffset, endCpOffset;
+            writeBuffer();
+            startCpOffset = raf.getFilePointer();
+            raf.writeInt(CHECKPOINT_RECORD);
+            raf.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions and dirty pages
+            writeCheckpoint(raf, tidToFirstLogRecord, dirtyPages, 0);
+
+            //once the CP is written, make sure the CP location at the
+            // beginning of the log file is updated
+            endCpOffset = raf.getFilePointer();
+            raf.seek(0);
+            raf.writeLong(startCpOffset);
+            raf.seek(endCpOffset);
+            raf.writeLong(currentOffset);
+            currentOffset = raf.getFilePointer();
+            bufferStart = currentOffset;
+            //Debug.log("CP OFFSET = " + currentOffset);
+        }
+        force();
+
+        logTruncate();
+    }
+
+    /** Write the body of a checkpoint record, moving every offset back by
+        shift bytes. */
+    private void writeCheckpoint(DataOutput out, Map<Long,Long> active,
+                                 Map<PageId,Long> dirty, long shift)
+        throws IOException {
+        out.writeInt(active.size());
+        for (Map.Entry<Long,Long> e : active.entrySet()) {
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+            out.writeLong(e.getKey());
+            out.writeLong(e.getValue() - shift);
+        }
+        out.writeInt(dirty.size());
+        for (Map.Entry<PageId,Long> e : dirty.entrySet()) {
+            PageDelta.writePageId(out, e.getKey());
+            out.writeLong(e.getValue() - shift);
+        }
+    }
+
+    /** A log record read back from the file. */
+    private static class LogRecord {
+        long offset;
+        int type;
+        long tid;
+        PageDelta delta;              // UPDATE, UPDATE_DELTA and CLR records
+        long undone;                  // CLR records: the update taken back
+        HashMap<Long,Long> active;    // CHECKPOINT records
+        HashMap<PageId,Long> dirty;   // CHECKPOINT records
+    }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+    /** Read the record at the file pointer, through its trailing offset.
+        Whole-image UPDATE records are read as the delta between their
+        images.
+        @throws EOFException if the log ends before the record does
+    */
+    private LogRecord readRecord() throws IOException {
+        LogRecord r = new LogRecord();
+        r.offset = raf.getFilePointer();
+        r.type = raf.readInt();
+        r.tid = raf.readLong();
+        switch (r.type) {
+        case UPDATE_RECORD:
+            Page before = readPageData(raf);
+            Page after = readPageData(raf);
+            r.delta = PageDelta.diff(before, after);
+            break;
+        case UPDATE_DELTA_RECORD:
+            r.delta = PageDelta.read(raf);
+            break;
+        case CLR_RECORD:
+            r.delta = PageDelta.read(raf);
+            r.undone = raf.readLong();
+            break;
+        case CHECKPOINT_RECORD:
+            r.active = new HashMap<Long,Long>();
+            int numXactions = raf.readInt();
+            while (numXactions-- > 0) {
+                long xid = raf.readLong();
+                r.active.put(xid, raf.readLong());
+            }
+            r.dirty = new HashMap<PageId,Long>();
+            int numPages = raf.readInt();
+            while (numPages-- > 0) {
+                PageId pid = PageDelta.readPageId(raf);
+                r.dirty.put(pid, raf.readLong());
             }
+            break;
         }
+        raf.readLong();
+        return r;
+    }
 
-        logTruncate();
+    /** @return true if r is an update that a rollback may take back */
+    private static boolean isUpdate(LogRecord r) {
+        return r.type == UPDATE_RECORD || r.type == UPDATE_DELTA_RECORD;
+    }
+
+    /** Read the records from the file pointer up to end, and return the
+        updates of the given transactions that no CLR took back, oldest
+        first.
+    */
+    private ArrayList<LogRecord> readUndoable(long end, Set<Long> tids) throws IOException {
+        ArrayList<LogRecord> updates = new ArrayList<LogRecord>();
+        HashSet<Long> undone = new HashSet<Long>();
+        while (raf.getFilePointer() < end) {
+            LogRecord r = readRecord();
+            if (!tids.contains(r.tid))
+                continue;
+            if (isUpdate(r))
+                updates.add(r);
+            else if (r.type == CLR_RECORD)
+                undone.add(r.undone);
+        }
+        Iterator<LogRecord> i = updates.iterator();
+        while (i.hasNext()) {
+            if (undone.contains(i.next().offset))
+                i.remove();
+        }
+        return updates;
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        writeBuffer();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
@@ -368,77 +763,74 @@ public class LogFile {
 
         if (cpLoc != -1L) {
             raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+            LogRecord cp = readRecord();
 
-            if (cpType != CHECKPOINT_RECORD) {
+            if (cp.type != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
 
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+            // keep the records of active transactions, and those of dirty
+            // pages, which recovery may have to redo
+            for (long firstLogRecord : cp.active.values())
+                minLogRecord = Math.min(minLogRecord, firstLogRecord);
+            for (long recLSN : cp.dirty.values())
+                minLogRecord = Math.min(minLogRecord, recLSN);
         }
 
         // we can truncate everything before minLogRecord
+        long shift = minLogRecord - LONG_SIZE;
         File newFile = new File("logtmp" + System.currentTimeMillis());
         RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
         logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+        logNew.writeLong(cpLoc - shift);
 
         raf.seek(minLogRecord);
 
         //have to rewrite log records since offsets are different after truncation
         while (true) {
+            LogRecord r;
             try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
+                r = readRecord();
+            } catch (EOFException e) {
+                break;
+            }
+            long newStart = logNew.getFilePointer();
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+            Debug.log("NEW START = " + newStart);
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+            logNew.writeInt(r.type == UPDATE_RECORD ? UPDATE_DELTA_RECORD : r.type);
+            logNew.writeLong(r.tid);
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
+            switch (r.type) {
+            case UPDATE_RECORD:
+            case UPDATE_DELTA_RECORD:
+                r.delta.write(logNew);
+                break;
+            case CLR_RECORD:
+                r.delta.write(logNew);
+                logNew.writeLong(r.undone - shift);
+                break;
+            case CHECKPOINT_RECORD:
+                writeCheckpoint(logNew, r.active, r.dirty, shift);
                 break;
             }
+
+            //all xactions finish with a pointer
+            logNew.writeLong(newStart);
+        }
+        // every live transaction's first record moves, whether it was a
+        // BEGIN or an update; none can precede minLogRecord
+        Iterator<Map.Entry<Long,Long>> firsts = tidToFirstLogRecord.entrySet().iterator();
+        while (firsts.hasNext()) {
+            Map.Entry<Long,Long> e = firsts.next();
+            if (e.getValue() < minLogRecord)
+                firsts.remove();
+            else
+                e.setValue(e.getValue() - shift);
         }
+        for (Map.Entry<PageId,Long> e : dirtyPages.entrySet())
+            e.setValue(e.getValue() - shift);
+        truncatedBytes += shift;
 
         Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
 
@@ -450,6 +842,8 @@ public class LogFile {
         newFile.delete();
 
         currentOffset = raf.getFilePointer();
+        bufferStart = currentOffset;
+        flushedOffset = currentOffset;
         //print();
     }
 
@@ -463,11 +857,98 @@ public class LogFile {
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
-            }
+        HashMap<PageId,Page> restored;
+        synchronized(this) {
+            preAppend();
+            // some code goes here
+            Long first = tidToFirstLogRecord.get(tid.getId());
+            if (first == null)
+                throw new NoSuchElementException("no log records for transaction " + tid.getId());
+            writeBuffer();
+
+            // the transaction's updates not taken back yet, oldest first
+            raf.seek(first);
+            ArrayList<LogRecord> updates = readUndoable(bufferStart, Collections.singleton(tid.getId()));
+            raf.seek(bufferStart);
+
+            // undo them newest first, logging a CLR for each
+            restored = undo(updates);
+        }
+        writeRestored(restored);
+        // drop the pages from the buffer pool so they are read back;
+        // not under this monitor, which comes after the pool's frame latch
+        for (PageId pid : restored.keySet())
+            Database.getBufferPool().discardPage(pid);
+    }
+
+    /** Undo updates, newest first, starting from the pages on disk, and
+        log a CLR for each.  The pages are not written; see
+        {@link #writeRestored}.  Must be called holding the monitor.
+        @param updates The updates to undo, oldest first
+        @return the restored pages
+    */
+    private HashMap<PageId,Page> undo(List<LogRecord> updates) throws IOException {
+        HashMap<PageId,Page> restored = new HashMap<PageId,Page>();
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            LogRecord r = updates.get(i);
+            PageId pid = r.delta.getPageId();
+            Page p = restored.get(pid);
+            if (p == null)
+                p = readForRecovery(pid);
+            restored.put(pid, r.delta.undo(p));
+            logCompensation(r);
+        }
+        return restored;
+    }
+
+    /** Append a CLR for the update r, which is being taken back. */
+    private void logCompensation(LogRecord r) throws IOException {
+        preAppend();
+        PageId pid = r.delta.getPageId();
+        if (!dirtyPages.containsKey(pid))
+            dirtyPages.put(pid, currentOffset);
+        out.writeInt(CLR_RECORD);
+        out.writeLong(r.tid);
+        r.delta.inverse().write(out);
+        out.writeLong(r.offset);
+        out.writeLong(currentOffset);
+        currentOffset = endOffset();
+    }
+
+    /** Write pages restored by {@link #undo} once their CLRs are on disk,
+        force them to their files, and drop them from the dirty page
+        table.  Must not be called holding the monitor.
+    */
+    private void writeRestored(Map<PageId,Page> restored) throws IOException {
+        force();
+        for (Page p : restored.values())
+            Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+        forceFiles(restored.keySet());
+        synchronized (this) {
+            dirtyPages.keySet().removeAll(restored.keySet());
+        }
+    }
+
+    /** Force the files holding the given pages to disk. */
+    private static void forceFiles(Collection<PageId> pids) throws IOException {
+        HashSet<Integer> tables = new HashSet<Integer>();
+        for (PageId pid : pids) {
+            if (!tables.add(pid.getTableId()))
+                continue;
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            if (file instanceof Flushable)
+                ((Flushable) file).flush();
+        }
+    }
+
+    /** @return the page on disk, or an empty page if it is past the end
+        of its file */
+    private static Page readForRecovery(PageId pid) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        try {
+            return file.readPage(pid);
+        } catch (IllegalArgumentException e) {
+            return PageDelta.emptyPage(pid);
         }
     }
 
@@ -475,10 +956,17 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
-            logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            // with every page written, the checkpoint leaves nothing to redo
+            Database.getBufferPool().flushAllPages();
+            logCheckpoint();
+            synchronized (this) {
+                if (writer != null)
+                    writer.interrupt();
+                awaitFlush();
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -490,12 +978,170 @@ public class LogFile {
         updates of uncommitted transactions are not installed.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
+        HashSet<PageId> redone = new HashSet<PageId>();
+        HashMap<PageId,Page> restored;
+        synchronized (this) {
+            recoveryUndecided = false;
+            if (raf.length() < LONG_SIZE) {
+                // nothing was logged; start the log on the first append
+                recoveryUndecided = true;
+                return;
             }
-         }
+
+            // analysis: the losers and the dirty page table at the crash
+            HashMap<Long,Long> active = new HashMap<Long,Long>();
+            HashMap<PageId,Long> dirty = new HashMap<PageId,Long>();
+            raf.seek(0);
+            long cpLoc = raf.readLong();
+            raf.seek(cpLoc == NO_CHECKPOINT_ID ? LONG_SIZE : cpLoc);
+            long end = raf.getFilePointer();
+            while (true) {
+                LogRecord r;
+                try {
+                    r = readRecord();
+                } catch (EOFException e) {
+                    break; // a record cut short by the crash
+                }
+                end = raf.getFilePointer();
+                switch (r.type) {
+                case CHECKPOINT_RECORD:
+                    active.putAll(r.active);
+                    for (Map.Entry<PageId,Long> e : r.dirty.entrySet()) {
+                        if (!dirty.containsKey(e.getKey()))
+                            dirty.put(e.getKey(), e.getValue());
+                    }
+                    break;
+                case BEGIN_RECORD:
+                    active.put(r.tid, r.offset);
+                    break;
+                case COMMIT_RECORD:
+                case ABORT_RECORD:
+                    active.remove(r.tid);
+                    break;
+                default:
+                    if (r.delta == null)
+                        break;
+                    // a transaction need not have logged a BEGIN; its
+                    // first update makes it a loser until it ends
+                    if (!active.containsKey(r.tid))
+                        active.put(r.tid, r.offset);
+                    if (!dirty.containsKey(r.delta.getPageId()))
+                        dirty.put(r.delta.getPageId(), r.offset);
+                }
+            }
+            raf.setLength(end);
+
+            // redo from the oldest recLSN, repeating history: the updates
+            // and CLRs of every transaction, aborted ones included
+            long redoStart = end;
+            for (long recLSN : dirty.values())
+                redoStart = Math.min(redoStart, recLSN);
+            LinkedHashMap<PageId,ArrayList<PageDelta>> byPage =
+                new LinkedHashMap<PageId,ArrayList<PageDelta>>();
+            redoneUpdates = 0;
+            raf.seek(redoStart);
+            while (raf.getFilePointer() < end) {
+                LogRecord r = readRecord();
+                if (r.delta == null)
+                    continue;
+                // older than the recLSN, the change is on disk
+                Long recLSN = dirty.get(r.delta.getPageId());
+                if (recLSN == null || r.offset < recLSN)
+                    continue;
+                ArrayList<PageDelta> deltas = byPage.get(r.delta.getPageId());
+                if (deltas == null) {
+                    deltas = new ArrayList<PageDelta>();
+                    byPage.put(r.delta.getPageId(), deltas);
+                }
+                deltas.add(r.delta);
+                redoneUpdates++;
+            }
+            redo(byPage);
+            redone.addAll(byPage.keySet());
+
+            // the losers' updates that no CLR took back yet
+            ArrayList<LogRecord> loserUpdates = new ArrayList<LogRecord>();
+            if (!active.isEmpty()) {
+                raf.seek(Collections.min(active.values()));
+                loserUpdates = readUndoable(end, active.keySet());
+            }
+
+            // undo them newest first, logging a CLR for each, and end the
+            // losers
+            raf.seek(end);
+            currentOffset = end;
+            bufferStart = end;
+            tidToFirstLogRecord.clear();
+            dirtyPages.clear();
+            undoneUpdates = loserUpdates.size();
+            restored = undo(loserUpdates);
+            for (long tid : active.keySet()) {
+                preAppend();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid);
+                out.writeLong(currentOffset);
+                currentOffset = endOffset();
+            }
+        }
+        // outside this monitor, as for a rollback: force the log, and
+        // every page recovery wrote before the checkpoint forgets it
+        writeRestored(restored);
+        forceFiles(redone);
+        // drop the stale copies
+        redone.addAll(restored.keySet());
+        for (PageId pid : redone)
+            Database.getBufferPool().discardPage(pid);
+        logCheckpoint();
+    }
+
+    /**
+     * Redo updates, page by page.  The pages are partitioned by id among
+     * one thread per processor, and each thread applies the updates of its
+     * pages in log order and writes them.
+     *
+     * @param byPage the updates of each page, in log order
+     */
+    private void redo(Map<PageId,ArrayList<PageDelta>> byPage) throws IOException {
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), byPage.size()));
+        final ArrayList<ArrayList<PageId>> parts = new ArrayList<ArrayList<PageId>>();
+        for (int i = 0; i < threads; i++)
+            parts.add(new ArrayList<PageId>());
+        for (PageId pid : byPage.keySet())
+            parts.get((pid.hashCode() & 0x7fffffff) % threads).add(pid);
+
+        final Map<PageId,ArrayList<PageDelta>> updates = byPage;
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
+            for (final ArrayList<PageId> part : parts) {
+                tasks.add(workers.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        for (PageId pid : part) {
+                            Page p = readForRecovery(pid);
+                            for (PageDelta delta : updates.get(pid))
+                                p = delta.redo(p);
+                            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> t : tasks) {
+                try {
+                    t.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted during redo");
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException)
+                        throw (IOException) cause;
+                    throw new IOException("redo failed: " + cause);
+                }
+            }
+        } finally {
+            workers.shutdown();
+        }
     }
 
     /** Print out a human readable represenation of the log */
@@ -503,8 +1149,78 @@ public class LogFile {
         // some code goes here
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Write the log buffer to the file and force the file to disk, which
+        also makes every commit waiting for the log writer durable. */
+    public void force() throws IOException {
+        long lsn;
+        synchronized (this) {
+            lsn = truncatedBytes + endOffset();
+        }
+        forceTo(lsn, false);
+    }
+
+    /** Force the log to disk if the record with the specified LSN is not
+        on disk yet.
+        @param lsn An LSN returned by logWrite
+    */
+    public void force(long lsn) throws IOException {
+        forceTo(lsn + 1, false);
+    }
+
+    /**
+     * Make the log durable up to the specified LSN.  The buffered records
+     * are taken under the monitor, and written and forced outside it, so
+     * that records can be appended meanwhile; a force that is already
+     * writing past the LSN is waited for instead.  Waiters are woken once
+     * the new durable LSN is set.
+     *
+     * @param byWriter true if the log writer forces, to count its commits
+     */
+    private void forceTo(long lsn, boolean byWriter) throws IOException {
+        byte[] data;
+        long start;
+        int commits;
+        FileChannel channel;
+        synchronized (this) {
+            awaitFlush();
+            if (durableLSN() >= lsn)
+                return;
+            data = buffer.toByteArray();
+            start = bufferStart;
+            commits = waitingCommits;
+            waitingCommits = 0;
+            channel = raf.getChannel();
+            flushing = true;
+        }
+        boolean done = false;
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(data);
+            while (bytes.hasRemaining())
+                channel.write(bytes, start + bytes.position());
+            channel.force(true);
+            done = true;
+        } finally {
+            synchronized (this) {
+                flushing = false;
+                if (done) {
+                    // keep what was appended during the write
+                    byte[] rest = buffer.toByteArray();
+                    buffer.reset();
+                    buffer.write(rest, data.length, rest.length - data.length);
+                    bufferStart = start + data.length;
+                    flushedOffset = bufferStart;
+                    bytesWritten += data.length;
+                    forces++;
+                    if (byWriter) {
+                        writerForces++;
+                        groupCommits += commits;
+                    }
+                } else {
+                    waitingCommits += commits;
+                }
+                notifyAll();
+            }
+        }
     }
 
 }
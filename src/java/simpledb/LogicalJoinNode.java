@@ -23,6 +23,23 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** Physical join algorithms the optimizer can choose between */
+    public enum Algorithm {
+        /** {@link Join}: scan the inner relation once per outer tuple */
+        NESTED_LOOPS,
+        /** {@link HashEquiJoin}: hash the inner relation, probe it with the outer; equality only */
+        HASH,
+        /** {@link SortMergeJoin}: merge two inputs already sorted on their join fields */
+        SORT_MERGE,
+        /** {@link IndexNestedLoopsJoin}: probe a B+ tree on the inner join field once per outer tuple */
+        INDEX_NESTED_LOOPS,
+        /** {@link BlockNestedLoopsJoin}: scan the inner relation once per block of outer tuples */
+        BLOCK_NESTED_LOOPS
+    }
+
+    /** The algorithm chosen to run this join */
+    public Algorithm algorithm = Algorithm.NESTED_LOOPS;
+
     public LogicalJoinNode() {
     }
 
@@ -60,6 +77,14 @@ public class LogicalJoinNode {
             newp = p;
         
         LogicalJoinNode j2 = new LogicalJoinNode(t2Alias,t1Alias,f2PureName,f1PureName, newp);
+        j2.algorithm = algorithm;
+        return j2;
+    }
+
+    /** Return a copy of this join that runs with the given algorithm. */
+    public LogicalJoinNode withAlgorithm(Algorithm a) {
+        LogicalJoinNode j2 = new LogicalJoinNode(t1Alias,t2Alias,f1PureName,f2PureName, p);
+        j2.algorithm = a;
         return j2;
     }
     
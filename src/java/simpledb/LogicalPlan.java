@@ -35,7 +35,22 @@ public class LogicalPlan {
     private String aggField;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private int limit = -1;
     private String query;
+
+    /**
+     * The number of workers a query runs on when none is set.  The workers
+     * of a query share its TransactionId, and LockManager tracks what a
+     * transaction waits for as if it ran on one thread, so plans are only
+     * parallel when {@link #setParallelism} asks for it.
+     */
+    public static final int DEFAULT_PARALLELISM = 1;
+
+    /** Tables with fewer pages than this are scanned by one worker when no size is set. */
+    public static final int DEFAULT_MIN_PARALLEL_PAGES = 64;
+
+    private static int parallelism = DEFAULT_PARALLELISM;
+    private static int minParallelPages = DEFAULT_MIN_PARALLEL_PAGES;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -50,6 +65,25 @@ public class LogicalPlan {
         this.query = "";
     }
 
+    /**
+     * Set the number of workers physical plans run on.  With more than one,
+     * scans of large HeapFiles and the filters, hash joins and grouped
+     * aggregates above them run on that many workers.
+     */
+    public static void setParallelism(int workers) {
+        parallelism = Math.max(1, workers);
+    }
+
+    /** @return the number of workers physical plans run on */
+    public static int getParallelism() {
+        return parallelism;
+    }
+
+    /** Set the fewest pages a table must have to be scanned in parallel. */
+    public static void setMinParallelPages(int pages) {
+        minParallelPages = pages;
+    }
+
     /** Set the text of the query representing this logical plan.  Does NOT parse the
         specified query -- this method is just used so that the object can print the
         SQL it represents.
@@ -216,6 +250,16 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT clause: the query returns at most the first n tuples of its result.
+        @param n the most tuples to return
+     * @throws ParsingException if n is negative
+    */
+    public void addLimit(int n) throws ParsingException {
+        if (n < 0)
+            throw new ParsingException("Negative LIMIT " + n);
+        limit = n;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -344,6 +388,11 @@ public class LogicalPlan {
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
+        if (parallelism > 1) {
+            for (Map.Entry<String, DbIterator> e : subplanMap.entrySet())
+                e.setValue(parallelScan(t, e.getValue()));
+        }
+
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
@@ -383,6 +432,8 @@ public class LogicalPlan {
             
             DbIterator j;
             j = jo.instantiateJoin(lj,plan1,plan2);
+            if (j instanceof HashEquiJoin)
+                j = parallelHashJoin((HashEquiJoin) j, plan1, plan2);
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -462,25 +513,119 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
+                int gField = groupByField == null ? Aggregator.NO_GROUPING : td.fieldNameToIndex(groupByField);
+                // groups that arrive in order are returned as they complete
                 aggNode = new Aggregate(node,
                                         td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                                        gField,
+                                getAggOp(aggOp), Aggregate.DEFAULT_MEMORY_BUDGET,
+                                gField != Aggregator.NO_GROUPING && isScanSortedOn(gField));
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
+            // over a Gather, the Aggregate itself aggregates each input on
+            // its worker and merges the partial aggregates
             node = aggNode;
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int oByIndex = node.getTupleDesc().fieldNameToIndex(oByField);
+            if (oByAsc && isScannedInOrder(oByIndex)) {
+                // the B+ tree already returns the tuples in this order, so a
+                // LIMIT stops the scan early
+            } else if (limit >= 0) {
+                node = new TopN(new int[] { oByIndex }, new boolean[] { oByAsc }, limit, node);
+            } else {
+                node = new OrderBy(oByIndex, oByAsc, node);
+            }
+        }
+
+        if (limit >= 0 && !(node instanceof TopN)) {
+            node = new Limit(limit, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /**
+     * If subplan scans a HeapFile of at least minParallelPages pages,
+     * possibly under Filters, return a Gather over parallelism copies of
+     * it, each scanning one range of the file's pages; otherwise return
+     * subplan.
+     */
+    private DbIterator parallelScan(TransactionId t, DbIterator subplan) {
+        ArrayList<Predicate> preds = new ArrayList<Predicate>();
+        DbIterator scan = subplan;
+        while (scan instanceof Filter) {
+            preds.add(((Filter) scan).getPredicate());
+            scan = ((Filter) scan).getChildren()[0];
+        }
+        if (!(scan instanceof SeqScan))
+            return subplan;
+        SeqScan ss = (SeqScan) scan;
+        DbFile f = Database.getCatalog().getDatabaseFile(ss.getTableId());
+        if (!(f instanceof HeapFile) || ((HeapFile) f).numPages() < minParallelPages)
+            return subplan;
+        DbIterator[] lanes = new DbIterator[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            lanes[i] = new SeqScan(t, ss.getTableId(), ss.getAlias(), i, parallelism);
+            for (int k = preds.size() - 1; k >= 0; k--)
+                lanes[i] = new Filter(preds.get(k), lanes[i]);
+        }
+        return new Gather(lanes);
+    }
+
+    /**
+     * Run hash join j on every worker if either input is parallel.  Two
+     * parallel inputs are both repartitioned on their join fields; a
+     * parallel input joined with a serial one keeps its partitioning, and
+     * every worker gets all of the serial input.
+     *
+     * @return a Gather over the per-worker joins, or j
+     */
+    private DbIterator parallelHashJoin(HashEquiJoin j, DbIterator plan1, DbIterator plan2) {
+        JoinPredicate p = j.getJoinPredicate();
+        DbIterator[] left, right;
+        if (plan1 instanceof Gather && plan2 instanceof Gather) {
+            left = Repartition.split(((Gather) plan1).getChildren(), p.getField1(), parallelism);
+            right = Repartition.split(((Gather) plan2).getChildren(), p.getField2(), parallelism);
+        } else if (plan1 instanceof Gather) {
+            left = ((Gather) plan1).getChildren();
+            right = Broadcast.split(new DbIterator[] { plan2 }, left.length);
+        } else if (plan2 instanceof Gather) {
+            right = ((Gather) plan2).getChildren();
+            left = Broadcast.split(new DbIterator[] { plan1 }, right.length);
+        } else {
+            return j;
+        }
+        DbIterator[] lanes = new DbIterator[left.length];
+        for (int i = 0; i < lanes.length; i++)
+            lanes[i] = new HashEquiJoin(p, left[i], right[i]);
+        return new Gather(lanes);
+    }
+
+    /**
+     * @return true if the plan scans a single table, without joins or
+     *   aggregates, whose B+ tree is keyed on the given field, so the
+     *   tuples come out sorted on it in ascending order
+     */
+    private boolean isScannedInOrder(int field) {
+        return !hasAgg && isScanSortedOn(field);
+    }
+
+    /**
+     * @return true if the plan scans a single table, without joins, whose
+     *   B+ tree is keyed on the given field of the scanned tuples
+     */
+    private boolean isScanSortedOn(int field) {
+        if (tables.size() != 1 || !joins.isEmpty())
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(tables.elementAt(0).t);
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
@@ -33,6 +33,11 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         return (j2.t1Alias.equals(t1Alias)  && j2.f1PureName.equals(f1PureName) && ((LogicalSubplanJoinNode)o).subPlan.equals(subPlan));
     }
     
+    /** Subplan joins always run as nested loops. */
+    @Override public LogicalSubplanJoinNode withAlgorithm(Algorithm a) {
+        return this;
+    }
+
     public LogicalSubplanJoinNode swapInnerOuter() {
         LogicalSubplanJoinNode j2 = new LogicalSubplanJoinNode(t1Alias,f1PureName,subPlan, p);
         return j2;
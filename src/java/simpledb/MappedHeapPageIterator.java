@@ -0,0 +1,59 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the used slots of a HeapPage image inside a (mapped) buffer,
+ * decoding each tuple directly from the buffer.  Uses absolute reads only,
+ * so many iterators can share one buffer.
+ */
+class MappedHeapPageIterator implements Iterator<Tuple> {
+    private final ByteBuffer buf;
+    private final int base;
+    private final HeapPageId pid;
+    private final TupleDesc td;
+    private final int[] fieldOffsets;
+    private final int numSlots;
+    private final int tuplesStart;
+    private int slot = -1;
+
+    MappedHeapPageIterator(ByteBuffer buf, int base, HeapPageId pid, TupleDesc td,
+            int[] fieldOffsets) {
+        this.buf = buf;
+        this.base = base;
+        this.pid = pid;
+        this.td = td;
+        this.fieldOffsets = fieldOffsets;
+        this.numSlots = HeapPage.numSlots(td);
+        this.tuplesStart = base + HeapPage.headerSize(td);
+        advance();
+    }
+
+    private void advance() {
+        slot++;
+        while (slot < numSlots && (buf.get(base + slot / 8) & (1 << (slot % 8))) == 0)
+            slot++;
+    }
+
+    public boolean hasNext() {
+        return slot < numSlots;
+    }
+
+    public Tuple next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        int off = tuplesStart + slot * td.getSize();
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slot));
+        for (int j = 0; j < fieldOffsets.length; j++)
+            t.setField(j, td.getFieldType(j).parse(buf, off + fieldOffsets[j]));
+        advance();
+        return t;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
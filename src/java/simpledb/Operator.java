@@ -62,6 +62,11 @@ public abstract class Operator implements DbIterator {
         this.open = true;
     }
 
+    /** @return true if this operator has been opened and not closed since */
+    protected boolean isOpen() {
+        return open;
+    }
+
     /**
      * @return return the children DbIterators of this operator. If there is
      *         only one child, return an array of only one element. For join
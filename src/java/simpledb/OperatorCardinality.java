@@ -29,6 +29,21 @@ public class OperatorCardinality {
         } else if (o instanceof HashEquiJoin) {
             return updateHashEquiJoinCardinality((HashEquiJoin) o,
                     tableAliasToId, tableStats);
+        } else if (o instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof IndexNestedLoopsJoin) {
+            IndexNestedLoopsJoin j = (IndexNestedLoopsJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof BlockNestedLoopsJoin) {
+            BlockNestedLoopsJoin j = (BlockNestedLoopsJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
                     tableStats);
@@ -47,6 +62,10 @@ public class OperatorCardinality {
                             .estimateTableCardinality(1.0);
                 }
             }
+            if (o instanceof Limit)
+                childC = Math.min(childC, ((Limit) o).getLimit());
+            else if (o instanceof TopN)
+                childC = Math.min(childC, ((TopN) o).getLimit());
             o.setEstimatedCardinality(childC);
             return hasJoinPK;
         }
@@ -201,6 +220,45 @@ public class OperatorCardinality {
         return child1HasJoinPK || child2HasJoinPK;
     }
 
+    /**
+     * Update the estimated cardinality of a join operator j, given its
+     * predicate and the quantified names of its join fields.
+     */
+    private static boolean updateJoinCardinality(Operator j, JoinPredicate jp,
+            String joinField1Name, String joinField2Name,
+            Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+
+        DbIterator[] children = j.getChildren();
+        int[] childCard = new int[2];
+        boolean[] childHasJoinPK = new boolean[2];
+        String[][] names = { joinField1Name.split("[.]"), joinField2Name.split("[.]") };
+
+        for (int i = 0; i < 2; i++) {
+            childHasJoinPK[i] = Database.getCatalog()
+                    .getPrimaryKey(tableAliasToId.get(names[i][0]))
+                    .equals(names[i][1]);
+            childCard[i] = 1;
+            if (children[i] instanceof Operator) {
+                Operator child = (Operator) children[i];
+                boolean pk = updateOperatorCardinality(child, tableAliasToId,
+                        tableStats);
+                childHasJoinPK[i] = pk || childHasJoinPK[i];
+                childCard[i] = child.getEstimatedCardinality();
+                childCard[i] = childCard[i] > 0 ? childCard[i] : 1;
+            } else if (children[i] instanceof SeqScan) {
+                childCard[i] = tableStats.get(((SeqScan) children[i])
+                        .getTableName()).estimateTableCardinality(1.0);
+            }
+        }
+
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(
+                jp.getOperator(), names[0][0], names[1][0],
+                names[0][1], names[1][1], childCard[0], childCard[1],
+                childHasJoinPK[0], childHasJoinPK[1], tableStats, tableAliasToId));
+        return childHasJoinPK[0] || childHasJoinPK[1];
+    }
+
     private static boolean updateAggregateCardinality(Aggregate a,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
@@ -1,20 +1,44 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * OrderBy is an external merge sort.  It reads its child into memory until
+ * the memory budget is used up, sorts those rows and writes them to a
+ * temporary run file, and so on.  If every row fit in memory, they are
+ * returned from memory; otherwise the runs are merged with a loser tree,
+ * {@link #MAX_FAN_IN} runs at a time.  Rows are compared by their
+ * normalized keys (see {@link SortKey}), and rows with equal keys keep the
+ * order they had in the child.
  */
-public class OrderBy extends Operator {
+public class OrderBy extends BatchOperator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Memory for rows being sorted when no budget is given, in bytes. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16L * 1024 * 1024;
+
+    /** The most runs merged at once. */
+    static final int MAX_FAN_IN = 64;
+
     private DbIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
-    private String orderByFieldName;
-    private Iterator<Tuple> it;
-    private boolean asc;
+    private int[] orderByFields;
+    private boolean[] ascs;
+    private final long memoryBudget;
+
+    private transient SortKey sortKey;
+    // rows sorted in memory, and their keys in sorted order
+    private transient TupleBatch rows;
+    private transient long[][] keys;
+    private transient int pos;
+    // runs on disk, and the merge of them
+    private transient ArrayList<SpillFile> runs;
+    private transient LoserTree merge;
+    private transient int spilledRuns;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,26 +51,61 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Creates a new OrderBy node sorting on several fields.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param ascs
+     *            for each field, true if its sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param memoryBudget
+     *            the most bytes of tuples to sort in memory; more are sorted
+     *            in runs on disk
+     */
+    public OrderBy(int[] orderbyFields, boolean[] ascs, DbIterator child, long memoryBudget) {
+        if (orderbyFields.length == 0 || orderbyFields.length != ascs.length)
+            throw new IllegalArgumentException("need a sort order for each of at least one field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields;
+        this.ascs = ascs;
+        this.memoryBudget = memoryBudget;
     }
     
     public boolean isASC()
     {
-	return this.asc;
+	return this.ascs[0];
     }
     
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(orderByFields[0]);
+    }
+
+    /** @return the fields the sort is applied to, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return for each sort field, true if its sort order is ascending */
+    public boolean[] getAscs() {
+        return ascs.clone();
+    }
+
+    /** @return the number of runs written to disk since the sort was opened */
+    public int getSpilledRuns() {
+        return spilledRuns;
     }
     
     public TupleDesc getTupleDesc() {
@@ -56,36 +115,223 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
         super.open();
+        sortKey = new SortKey(td, orderByFields, ascs);
+        spilledRuns = 0;
+        int maxRows = (int) Math.max(1, Math.min(Integer.MAX_VALUE / 2, memoryBudget / td.getSize()));
+        try {
+            // sort memory-sized runs
+            BatchDbIterator in = BatchAdapter.of(child);
+            TupleBatch batch;
+            rows = new TupleBatch(td);
+            while ((batch = in.nextBatch()) != null) {
+                for (int r = 0; r < batch.size(); r++) {
+                    rows.addRow(batch, r);
+                    if (rows.size() >= maxRows)
+                        writeRun();
+                }
+            }
+            if (runs == null) {
+                sortRows();
+            } else {
+                if (rows.size() > 0)
+                    writeRun();
+                rows = null;
+                mergeRuns(maxRows);
+            }
+        } catch (IOException e) {
+            throw new DbException("could not write sort run: " + e);
+        }
+        pos = 0;
+    }
+
+    /** Sort the rows in memory by key. */
+    private void sortRows() {
+        keys = new long[rows.size()][];
+        for (int r = 0; r < rows.size(); r++)
+            keys[r] = sortKey.encode(rows, r, r);
+        Arrays.sort(keys, sortKey);
+    }
+
+    /** Sort the rows in memory and write them to a new run. */
+    private void writeRun() throws IOException {
+        sortRows();
+        SpillFile run = new SpillFile(td);
+        for (long[] key : keys)
+            run.add(rows, (int) SortKey.rowNum(key));
+        run.finishWriting();
+        if (runs == null)
+            runs = new ArrayList<SpillFile>();
+        runs.add(run);
+        spilledRuns++;
+        rows = new TupleBatch(td);
+        keys = null;
+    }
+
+    /**
+     * Merge runs into longer ones until at most {@link #MAX_FAN_IN} are
+     * left, and start merging those.
+     */
+    private void mergeRuns(int maxRows) throws IOException {
+        while (runs.size() > MAX_FAN_IN) {
+            ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+            for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+                List<SpillFile> group = runs.subList(i, Math.min(runs.size(), i + MAX_FAN_IN));
+                LoserTree tree = new LoserTree(group, maxRows);
+                SpillFile run = new SpillFile(td);
+                TupleBatch out;
+                while ((out = tree.nextBatch()) != null)
+                    run.addAll(out);
+                run.finishWriting();
+                for (SpillFile f : group)
+                    f.close();
+                merged.add(run);
+                spilledRuns++;
+            }
+            runs = merged;
+        }
+        merge = new LoserTree(runs, maxRows);
+    }
+
+    /**
+     * LoserTree merges sorted runs.  Each internal node of the tree holds the
+     * run that lost the comparison there, and the root's parent holds the
+     * overall winner, so replacing the winner's row takes one comparison per
+     * level of the tree.  An exhausted run loses to every other run; equal
+     * keys are won by the earlier run.
+     */
+    private class LoserTree {
+        private final List<SpillFile> sources;
+        private final int readRows;
+        private final TupleBatch[] batches;
+        private final int[] rowInBatch;
+        private final long[][] heads;   // key of each run's current row, null if exhausted
+        private final int[] tree;       // tree[0] is the winner, tree[1..k) the losers
+        private final int k;
+
+        LoserTree(List<SpillFile> sources, int maxRows) throws IOException {
+            this.sources = sources;
+            k = sources.size();
+            readRows = Math.max(1, Math.min(TupleBatch.DEFAULT_SIZE, maxRows / k));
+            batches = new TupleBatch[k];
+            rowInBatch = new int[k];
+            heads = new long[k][];
+            tree = new int[k];
+            init();
+        }
+
+        private void init() throws IOException {
+            for (int i = 0; i < k; i++) {
+                sources.get(i).rewind();
+                batches[i] = null;
+                advance(i);
+            }
+            // play every run up the tree; -1 marks a node no run has reached
+            Arrays.fill(tree, -1);
+            for (int i = k - 1; i >= 0; i--)
+                replay(i);
+        }
+
+        /** Move run i to its next row. */
+        private void advance(int i) throws IOException {
+            if (batches[i] != null && ++rowInBatch[i] < batches[i].size()) {
+                heads[i] = sortKey.encode(batches[i], rowInBatch[i], 0);
+                return;
+            }
+            batches[i] = sources.get(i).readBatch(readRows);
+            rowInBatch[i] = 0;
+            heads[i] = batches[i] == null ? null : sortKey.encode(batches[i], 0, 0);
+        }
+
+        /** @return true if run a's current row goes before run b's */
+        private boolean beats(int a, int b) {
+            if (heads[b] == null)
+                return heads[a] != null || a < b;
+            if (heads[a] == null)
+                return false;
+            int c = sortKey.compare(heads[a], heads[b]);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        /** Play run i from its leaf up to the root. */
+        private void replay(int i) {
+            int winner = i;
+            for (int node = (i + k) / 2; node > 0; node /= 2) {
+                if (tree[node] == -1) {
+                    tree[node] = winner;
+                    return;
+                }
+                if (beats(tree[node], winner)) {
+                    int loser = winner;
+                    winner = tree[node];
+                    tree[node] = loser;
+                }
+            }
+            tree[0] = winner;
+        }
+
+        /** @return the next sorted rows, or null if every run is used up */
+        TupleBatch nextBatch() throws IOException {
+            TupleBatch out = new TupleBatch(td);
+            while (!out.isFull()) {
+                int w = tree[0];
+                if (heads[w] == null)
+                    break;
+                out.addRow(batches[w], rowInBatch[w]);
+                advance(w);
+                replay(w);
+            }
+            return out.size() == 0 ? null : out;
+        }
+
+        void rewind() throws IOException {
+            init();
+        }
     }
 
     public void close() {
         super.close();
-        it = null;
+        child.close();
+        if (runs != null) {
+            for (SpillFile run : runs)
+                run.close();
+        }
+        runs = null;
+        merge = null;
+        rows = null;
+        keys = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        super.rewind();
+        pos = 0;
+        if (merge != null) {
+            try {
+                merge.rewind();
+            } catch (IOException e) {
+                throw new DbException("could not read sort run: " + e);
+            }
+        }
     }
 
     /**
-     * Operator.fetchNext implementation. Returns tuples from the child operator
-     * in order
-     * 
-     * @return The next tuple in the ordering, or null if there are no more
-     *         tuples
+     * Returns the next batch of tuples in the ordering, or null if there are
+     * no more tuples.
      */
-    protected Tuple fetchNext() throws NoSuchElementException,
-            TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        if (merge != null) {
+            try {
+                return merge.nextBatch();
+            } catch (IOException e) {
+                throw new DbException("could not read sort run: " + e);
+            }
+        }
+        if (pos >= keys.length)
             return null;
+        TupleBatch out = new TupleBatch(td);
+        while (pos < keys.length && !out.isFull())
+            out.addRow(rows, (int) SortKey.rowNum(keys[pos++]));
+        return out;
     }
 
     @Override
@@ -99,25 +345,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
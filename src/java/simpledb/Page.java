@@ -9,6 +9,10 @@ package simpledb;
  *
  * For recovery purposes, pages MUST have a single constructor of the form:
  *     Page(PageId id, byte[] data)
+ * <p>
+ * Changes to a page, and getPageData, are made under the page's monitor, so
+ * that the BufferPool can log and write a consistent image of a page while
+ * the transaction that locks it is changing it.
  */
 public interface Page {
 
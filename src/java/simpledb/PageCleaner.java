@@ -0,0 +1,219 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PageCleaner writes dirty pages of its BufferPool to disk on a background
+ * thread, so that the pool keeps a target fraction of its frames clean and
+ * a miss rarely has to write a page before it can evict one.
+ * <p>
+ * The BufferPool wakes the cleaner as pages are dirtied.  A pass counts the
+ * clean frames, free ones included, and if there are fewer than the target
+ * writes enough dirty pages to make up the difference.  It share-locks the
+ * pages it picks, passing over those a transaction holds a write lock on,
+ * so no page changes while its changes are logged and it is written.  The
+ * pages are written sorted by file and page number, so that the writes to
+ * each file are sequential.  Write-ahead logging is kept
+ * as for any write: the pages' changes are logged and the log is forced up
+ * to their page LSNs first.
+ * <p>
+ * The cleaner counts the pages it wrote, and the pages eviction had to
+ * write itself on behalf of a miss.
+ *
+ * @Threadsafe
+ */
+public class PageCleaner {
+
+    /** Default fraction of the pool's frames kept clean. */
+    public static final double DEFAULT_TARGET_CLEAN = 0.25;
+
+    // pause between passes, so that writes trickle out
+    private static final long PASS_INTERVAL_MILLIS = 5;
+
+    // how long an idle cleaner thread waits to be woken before it exits
+    private static final long IDLE_MILLIS = 1000;
+
+    /** Orders pages by file, then by page number, the order of their offsets. */
+    static final Comparator<PageId> FILE_ORDER = new Comparator<PageId>() {
+        public int compare(PageId a, PageId b) {
+            if (a.getTableId() != b.getTableId())
+                return a.getTableId() < b.getTableId() ? -1 : 1;
+            return Integer.compare(a.pageNumber(), b.pageNumber());
+        }
+    };
+
+    private final BufferPool bp;
+    private volatile double targetClean = DEFAULT_TARGET_CLEAN;
+    private volatile boolean enabled = true;
+
+    // protected by this
+    private Thread thread;
+    private boolean requested;
+
+    private final AtomicLong passes = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong stolen = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Create a cleaner for the given pool.
+     *
+     * @param bp the pool whose pages to write
+     */
+    public PageCleaner(BufferPool bp) {
+        this.bp = bp;
+    }
+
+    /** Turn background writes on or off; statistics are kept either way. */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Set the fraction of the pool's frames the cleaner keeps clean. */
+    public void setTargetCleanFraction(double fraction) {
+        this.targetClean = Math.max(0, Math.min(1, fraction));
+    }
+
+    public double getTargetCleanFraction() {
+        return targetClean;
+    }
+
+    /** Ask for a pass, starting the cleaner thread if it is not running. */
+    void wake() {
+        if (!enabled)
+            return;
+        synchronized (this) {
+            if (requested)
+                return;
+            requested = true;
+            if (thread == null) {
+                thread = new Thread("simpledb-cleaner") {
+                    public void run() {
+                        runPasses();
+                    }
+                };
+                thread.setDaemon(true);
+                thread.start();
+            } else {
+                notifyAll();
+            }
+        }
+    }
+
+    private void runPasses() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (!requested)
+                        wait(IDLE_MILLIS);
+                    if (!requested) {
+                        thread = null;
+                        return;
+                    }
+                    requested = false;
+                }
+                clean();
+                Thread.sleep(PASS_INTERVAL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            // exit; the next wake starts another thread
+            synchronized (this) {
+                thread = null;
+                requested = false;
+            }
+        }
+    }
+
+    /**
+     * Write dirty pages until the target fraction of frames is clean, or
+     * until no page that may be written is left.
+     *
+     * @return the number of pages written
+     */
+    int clean() {
+        if (!enabled)
+            return 0;
+        passes.incrementAndGet();
+        int target = (int) Math.ceil(targetClean * bp.numPages);
+        int clean = bp.numPages - bp.pages.size();
+        ArrayList<PageId> candidates = new ArrayList<PageId>();
+        for (Map.Entry<PageId,Page> e : bp.pages.entrySet()) {
+            if (e.getValue().isDirty() == null)
+                clean++;
+            else
+                candidates.add(e.getKey());
+        }
+        int need = target - clean;
+        if (need <= 0 || candidates.isEmpty())
+            return 0;
+        Collections.sort(candidates, FILE_ORDER);
+
+        // lock the pages for the pass, so that none changes while written
+        LockManager locks = bp.getLockManager();
+        TransactionId tid = new TransactionId();
+        ArrayList<PageId> pids = new ArrayList<PageId>();
+        try {
+            for (PageId pid : candidates) {
+                if (pids.size() == need)
+                    break;
+                if (locks.tryAcquireLock(tid, pid, Permissions.READ_ONLY))
+                    pids.add(pid);
+            }
+            int n = bp.writePages(pids);
+            written.addAndGet(n);
+            return n;
+        } catch (Exception e) {
+            // the pages stay dirty, and eviction writes them if it must
+            failures.incrementAndGet();
+            return 0;
+        } finally {
+            locks.releaseAllLocks(tid);
+        }
+    }
+
+    /** Called by the BufferPool when eviction had to write a dirty page. */
+    void pageStolen() {
+        stolen.incrementAndGet();
+        wake();
+    }
+
+    /** @return the number of passes the cleaner made */
+    public long getPassCount() {
+        return passes.get();
+    }
+
+    /** @return the number of pages the cleaner wrote */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /** @return the number of dirty pages eviction wrote on behalf of a miss */
+    public long getStolenCount() {
+        return stolen.get();
+    }
+
+    /** @return the number of passes that failed to write their pages */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    public void resetStats() {
+        passes.set(0);
+        written.set(0);
+        stolen.set(0);
+        failures.set(0);
+    }
+
+    public String toString() {
+        return "cleaner passes=" + getPassCount() + " written=" + getWrittenCount()
+            + " stolen=" + getStolenCount() + " failures=" + getFailureCount();
+    }
+}
@@ -0,0 +1,202 @@
+package simpledb;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * PageDelta is the difference between two images of a page: the byte
+ * ranges that changed, with their bytes before and after the change.  It is
+ * what an UPDATE_DELTA log record holds instead of the two whole images, so
+ * an update that changes one tuple logs tens of bytes rather than two pages.
+ * <p>
+ * Changed bytes closer together than {@link #MERGE_GAP} are kept in one
+ * range, since a range costs 8 bytes of header.
+ */
+class PageDelta {
+
+    /** Changed ranges separated by fewer unchanged bytes than this are merged. */
+    static final int MERGE_GAP = 8;
+
+    private final PageId pid;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(PageId pid, int[] offsets, byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /** @return the changes that turn before into after, two images of the same page */
+    static PageDelta diff(Page before, Page after) {
+        byte[] b = before.getPageData();
+        byte[] a = after.getPageData();
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int i = 0;
+        while (i < a.length) {
+            if (a[i] == b[i]) {
+                i++;
+                continue;
+            }
+            int start = i, end = i + 1;
+            // extend the range until MERGE_GAP bytes in a row are unchanged
+            for (int j = end; j < a.length && j < end + MERGE_GAP; j++) {
+                if (a[j] != b[j])
+                    end = j + 1;
+            }
+            ranges.add(new int[] { start, end });
+            i = end;
+        }
+        int n = ranges.size();
+        int[] offsets = new int[n];
+        byte[][] bs = new byte[n][];
+        byte[][] as = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            int start = ranges.get(r)[0], end = ranges.get(r)[1];
+            offsets[r] = start;
+            bs[r] = Arrays.copyOfRange(b, start, end);
+            as[r] = Arrays.copyOfRange(a, start, end);
+        }
+        return new PageDelta(after.getId(), offsets, bs, as);
+    }
+
+    /** @return the page this delta changes */
+    PageId getPageId() {
+        return pid;
+    }
+
+    /** @return the number of changed ranges */
+    int numRanges() {
+        return offsets.length;
+    }
+
+    /** @return the number of changed bytes */
+    int changedBytes() {
+        int n = 0;
+        for (byte[] r : after)
+            n += r.length;
+        return n;
+    }
+
+    /**
+     * Write the delta: the page id, as its class name and serialized ints,
+     * then the number of ranges, and for each its offset, its length, and
+     * its bytes before and after.
+     */
+    void write(DataOutput out) throws IOException {
+        writePageId(out, pid);
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(after[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    /** Read a delta written by {@link #write}. */
+    static PageDelta read(DataInput in) throws IOException {
+        PageId pid = readPageId(in);
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            int len = in.readInt();
+            before[r] = new byte[len];
+            in.readFully(before[r]);
+            after[r] = new byte[len];
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pid, offsets, before, after);
+    }
+
+    /** Write a page id as its class name and serialized ints. */
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        out.writeUTF(pid.getClass().getName());
+        int[] id = pid.serialize();
+        out.writeInt(id.length);
+        for (int v : id)
+            out.writeInt(v);
+    }
+
+    /** Read a page id written by {@link #writePageId}. */
+    static PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        int[] id = new int[in.readInt()];
+        for (int i = 0; i < id.length; i++)
+            id[i] = in.readInt();
+        return newPageId(idClassName, id);
+    }
+
+    private static PageId newPageId(String idClassName, int[] id) throws IOException {
+        if (idClassName.equals(HeapPageId.class.getName()) && id.length == 2)
+            return new HeapPageId(id[0], id[1]);
+        if (idClassName.equals(BTreePageId.class.getName()) && id.length == 3)
+            return new BTreePageId(id[0], id[1], id[2]);
+        throw new IOException("unknown page id " + idClassName);
+    }
+
+    /** @return the delta that takes this one's changes back */
+    PageDelta inverse() {
+        return new PageDelta(pid, offsets, after, before);
+    }
+
+    /** @return page with this delta's changes applied */
+    Page redo(Page page) throws IOException {
+        return apply(page, after);
+    }
+
+    /** @return page with this delta's changes taken back */
+    Page undo(Page page) throws IOException {
+        return apply(page, before);
+    }
+
+    private Page apply(Page page, byte[][] ranges) throws IOException {
+        byte[] data = page.getPageData().clone();
+        for (int r = 0; r < offsets.length; r++)
+            System.arraycopy(ranges[r], 0, data, offsets[r], ranges[r].length);
+        return withData(page, data);
+    }
+
+    /**
+     * @return a page with id pid and no contents, as recovery redoes into
+     *   when the page is past the end of its file
+     */
+    static Page emptyPage(PageId pid) throws IOException {
+        if (pid instanceof HeapPageId)
+            return new HeapPage((HeapPageId) pid, HeapPage.createEmptyPageData());
+        BTreePageId id = (BTreePageId) pid;
+        switch (id.pgcateg()) {
+        case BTreePageId.ROOT_PTR:
+            return new BTreeRootPtrPage(id, BTreeRootPtrPage.createEmptyPageData());
+        case BTreePageId.HEADER:
+            return new BTreeHeaderPage(id, BTreeHeaderPage.createEmptyPageData());
+        default:
+            int keyField = ((BTreeFile) Database.getCatalog().getDatabaseFile(id.getTableId())).keyField();
+            if (id.pgcateg() == BTreePageId.INTERNAL)
+                return new BTreeInternalPage(id, BTreePage.createEmptyPageData(), keyField);
+            return new BTreeLeafPage(id, BTreePage.createEmptyPageData(), keyField);
+        }
+    }
+
+    /** @return a page of the same kind and id as like, holding data */
+    static Page withData(Page like, byte[] data) throws IOException {
+        if (like instanceof HeapPage)
+            return new HeapPage((HeapPageId) like.getId(), data);
+        BTreePageId id = (BTreePageId) like.getId();
+        if (like instanceof BTreeRootPtrPage)
+            return new BTreeRootPtrPage(id, data);
+        if (like instanceof BTreeHeaderPage)
+            return new BTreeHeaderPage(id, data);
+        if (like instanceof BTreeInternalPage)
+            return new BTreeInternalPage(id, data, ((BTreePage) like).keyField);
+        if (like instanceof BTreeLeafPage)
+            return new BTreeLeafPage(id, data, ((BTreePage) like).keyField);
+        throw new IOException("cannot rebuild a " + like.getClass().getName());
+    }
+}
@@ -0,0 +1,265 @@
+package simpledb;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PagePrefetcher reads pages into its BufferPool ahead of sequential scans,
+ * on a background thread, so that the scan finds them resident instead of
+ * waiting for each read.
+ * <p>
+ * Scans report the pages they read through a {@link Scan}.  Once a scan has
+ * read two consecutive pages (page numbers for heap files, right siblings
+ * for B+ tree leaves) the next {@link #getWindow} pages are requested, and
+ * the window is topped up as the scan advances.
+ * <p>
+ * Prefetched pages are loaded without taking locks; the scan still locks
+ * each page when it gets it from the BufferPool.  At most maxPages pages may
+ * be requested or prefetched and not yet used at any time; further requests
+ * are dropped, so read-ahead cannot take over the pool.  A read is also
+ * dropped when the pool holds no clean page to evict, since read-ahead never
+ * writes a dirty page to make room.  The prefetcher
+ * counts how many prefetched pages were used and how many were evicted or
+ * discarded before being used.
+ *
+ * @Threadsafe
+ */
+public class PagePrefetcher {
+
+    /** Default number of pages read ahead of a scan. */
+    public static final int DEFAULT_WINDOW = 8;
+
+    /** Number of sequential steps a scan makes before read-ahead starts. */
+    private static final int TRIGGER = 1;
+
+    private final BufferPool bp;
+    private final int maxPages;
+    private volatile int window = DEFAULT_WINDOW;
+    private volatile boolean enabled = true;
+
+    private final Set<PageId> queued = ConcurrentHashMap.newKeySet();  // requested, not loaded yet
+    private final Set<PageId> unused = ConcurrentHashMap.newKeySet();  // prefetched, not used yet
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong wasted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final ThreadPoolExecutor worker;
+
+    /**
+     * Create a prefetcher for the given pool.
+     *
+     * @param bp the pool to read pages into
+     * @param maxPages maximum number of pages read ahead and not yet used
+     */
+    public PagePrefetcher(BufferPool bp, int maxPages) {
+        this.bp = bp;
+        this.maxPages = maxPages;
+        this.worker = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "simpledb-prefetch");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        worker.allowCoreThreadTimeOut(true);
+    }
+
+    /** Turn read-ahead on or off; statistics are kept either way. */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Set the number of pages read ahead of a scan. */
+    public void setWindow(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /** @return the maximum number of pages read ahead and not yet used */
+    public int getMaxPages() {
+        return maxPages;
+    }
+
+    /** @return a tracker for a new scan */
+    public Scan newScan() {
+        return new Scan();
+    }
+
+    /**
+     * Tracks the pages read by one scan and requests read-ahead once the
+     * scan is found to be sequential.  Not threadsafe; each scan has its own.
+     */
+    public class Scan {
+        private int run = 0;
+        private int lastPage = -2;
+        private int requestedUpTo = -1;
+        private BTreePageId nextLeaf = null;
+
+        /**
+         * Report that the scan read a heap page.
+         *
+         * @param pid the page read
+         * @param numPages the number of pages in the file
+         */
+        public void pageRead(HeapPageId pid, int numPages) {
+            int pgno = pid.pageNumber();
+            if (pgno == lastPage + 1) {
+                run++;
+            } else {
+                run = 0;
+                requestedUpTo = pgno;
+            }
+            lastPage = pgno;
+            int w = window;
+            if (!enabled || run < TRIGGER || requestedUpTo >= pgno + (w + 1) / 2)
+                return;
+            int from = Math.max(requestedUpTo, pgno) + 1;
+            int to = Math.min(pgno + w, numPages - 1);
+            for (int i = from; i <= to; i++) {
+                if (!request(new HeapPageId(pid.getTableId(), i)))
+                    break;
+                requestedUpTo = i;
+            }
+        }
+
+        /**
+         * Report that the scan read a B+ tree leaf page.  Read-ahead follows
+         * the right sibling pointers of the leaves.
+         */
+        public void leafRead(BTreeLeafPage leaf) {
+            if (leaf.getId().equals(nextLeaf))
+                run++;
+            else
+                run = 0;
+            nextLeaf = leaf.getRightSiblingId();
+            int step = Math.max(1, window / 2);
+            if (enabled && run >= TRIGGER && (run - TRIGGER) % step == 0 && nextLeaf != null)
+                requestSiblings(nextLeaf, window);
+        }
+    }
+
+    /**
+     * Ask for a page to be read in the background.
+     *
+     * @return false if the request was dropped because too many pages are
+     *   already read ahead
+     */
+    boolean request(final PageId pid) {
+        if (bp.pages.containsKey(pid) || queued.contains(pid))
+            return true;
+        if (queued.size() + unused.size() >= maxPages) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        if (!queued.add(pid))
+            return true;
+        worker.execute(new Runnable() {
+            public void run() {
+                try {
+                    bp.prefetchPage(pid);
+                } catch (Exception e) {
+                    // read-ahead is only a hint; the scan will retry the read
+                } finally {
+                    queued.remove(pid);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Read up to n leaves in the background, starting at first and following
+     * right sibling pointers.
+     */
+    void requestSiblings(final BTreePageId first, final int n) {
+        worker.execute(new Runnable() {
+            public void run() {
+                BTreePageId pid = first;
+                try {
+                    for (int i = 0; i < n && pid != null; i++) {
+                        if (!bp.pages.containsKey(pid)
+                                && queued.size() + unused.size() >= maxPages) {
+                            dropped.incrementAndGet();
+                            return;
+                        }
+                        Page p = bp.prefetchPage(pid);
+                        if (!(p instanceof BTreeLeafPage))
+                            return;
+                        pid = ((BTreeLeafPage) p).getRightSiblingId();
+                    }
+                } catch (Exception e) {
+                    // read-ahead is only a hint; the scan will retry the read
+                }
+            }
+        });
+    }
+
+    /** Called by the BufferPool when it starts reading a page for the prefetcher. */
+    void pageLoaded(PageId pid) {
+        issued.incrementAndGet();
+        unused.add(pid);
+    }
+
+    /** Called by the BufferPool when it drops a read for want of a clean frame. */
+    void requestDropped() {
+        dropped.incrementAndGet();
+    }
+
+    /** Called by the BufferPool when a page is requested by a transaction. */
+    void pageUsed(PageId pid) {
+        if (!unused.isEmpty() && unused.remove(pid))
+            used.incrementAndGet();
+    }
+
+    /** Called by the BufferPool when a page is evicted or discarded. */
+    void pageRemoved(PageId pid) {
+        if (!unused.isEmpty() && unused.remove(pid))
+            wasted.incrementAndGet();
+    }
+
+    /** @return the number of pages read ahead */
+    public long getIssuedCount() {
+        return issued.get();
+    }
+
+    /** @return the number of pages read ahead that were then requested */
+    public long getUsedCount() {
+        return used.get();
+    }
+
+    /** @return the number of pages read ahead that left the pool unused */
+    public long getWastedCount() {
+        return wasted.get();
+    }
+
+    /** @return the number of requests dropped because of the page cap or a pool of dirty pages */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public void resetStats() {
+        issued.set(0);
+        used.set(0);
+        wasted.set(0);
+        dropped.set(0);
+    }
+
+    public String toString() {
+        return "prefetch issued=" + getIssuedCount() + " used=" + getUsedCount()
+            + " wasted=" + getWastedCount() + " dropped=" + getDroppedCount();
+    }
+}
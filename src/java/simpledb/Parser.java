@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -12,6 +14,10 @@ import jline.SimpleCompletor;
 public class Parser {
     static boolean explain = false;
 
+    /** A LIMIT clause at the end of a statement; Zql does not parse LIMIT. */
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "(?is)^(.*\\S)\\s+LIMIT\\s+(\\d+)\\s*(;?)\\s*$");
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -272,6 +278,8 @@ public class Parser {
 
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
+    // the LIMIT of the statement being processed, or -1
+    private int limit = -1;
 
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
@@ -279,6 +287,8 @@ public class Parser {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit >= 0)
+            lp.addLimit(limit);
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -465,12 +475,15 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
+        s = stripLimit(s);
         ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (limit >= 0)
+                    lp.addLimit(limit);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -501,10 +514,37 @@ public class Parser {
         }
     }
 
+    /**
+     * Removes a LIMIT clause from the end of a statement, and sets limit to
+     * its count, or to -1 if the statement has none.
+     *
+     * @return the statement without its LIMIT clause
+     */
+    private String stripLimit(String statement) throws simpledb.ParsingException {
+        limit = -1;
+        Matcher m = LIMIT_CLAUSE.matcher(statement);
+        if (!m.matches())
+            return statement;
+        try {
+            limit = Integer.parseInt(m.group(2));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT " + m.group(2) + " is too large");
+        }
+        return m.group(1) + m.group(3);
+    }
+
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            ByteArrayOutputStream statement = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0)
+                statement.write(buf, 0, n);
+            String sql = stripLimit(statement.toString("UTF-8"));
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(sql.getBytes("UTF-8")));
             ZStatement s = p.readStatement();
+            if (limit >= 0 && !(s instanceof ZQuery))
+                throw new simpledb.ParsingException("LIMIT is only supported in SELECT statements");
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -599,6 +639,7 @@ public class Parser {
     static final int SLEEP_TIME = 5000;
 
     protected void shutdown() {
+        Database.getCatalog().closeFiles();
         System.out.println("Bye");
     }
 
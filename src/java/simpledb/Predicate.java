@@ -108,6 +108,60 @@ public class Predicate implements Serializable {
         
     }
 
+    /**
+     * Applies the predicate to every row of a batch.  INT_TYPE fields are
+     * compared in place, without creating a Field per row.
+     *
+     * @param batch
+     *            The rows to compare against
+     * @param sel
+     *            Receives the indexes of the rows for which the comparison
+     *            is true, in increasing order; must have room for
+     *            batch.size() entries
+     * @return the number of rows for which the comparison is true
+     */
+    public int filter(TupleBatch batch, int[] sel) {
+        int n = batch.size();
+        int k = 0;
+        if (!batch.isIntColumn(field) || !(operand instanceof IntField)) {
+            for (int r = 0; r < n; r++) {
+                if (batch.getField(field, r).compare(op, operand))
+                    sel[k++] = r;
+            }
+            return k;
+        }
+        int[] col = batch.intColumn(field);
+        int v = ((IntField) operand).getValue();
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            for (int r = 0; r < n; r++)
+                if (col[r] == v) sel[k++] = r;
+            break;
+        case NOT_EQUALS:
+            for (int r = 0; r < n; r++)
+                if (col[r] != v) sel[k++] = r;
+            break;
+        case GREATER_THAN:
+            for (int r = 0; r < n; r++)
+                if (col[r] > v) sel[k++] = r;
+            break;
+        case GREATER_THAN_OR_EQ:
+            for (int r = 0; r < n; r++)
+                if (col[r] >= v) sel[k++] = r;
+            break;
+        case LESS_THAN:
+            for (int r = 0; r < n; r++)
+                if (col[r] < v) sel[k++] = r;
+            break;
+        case LESS_THAN_OR_EQ:
+            for (int r = 0; r < n; r++)
+                if (col[r] <= v) sel[k++] = r;
+            break;
+        }
+        return k;
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string
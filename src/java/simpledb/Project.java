@@ -3,14 +3,17 @@ package simpledb;
 import java.util.*;
 
 /**
- * Project is an operator that implements a relational projection.
+ * Project is an operator that implements a relational projection.  A
+ * projected batch shares its columns with the batch it was projected from,
+ * so no values are copied.
  */
-public class Project extends Operator {
+public class Project extends BatchOperator {
 
     private static final long serialVersionUID = 1L;
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Integer> outFieldIds;
+    private int[] outFields;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -39,6 +42,9 @@ public class Project extends Operator {
             fieldAr[i] = childtd.getFieldName(fieldList.get(i));
         }
         td = new TupleDesc(types, fieldAr);
+        outFields = new int[fieldList.size()];
+        for (int i = 0; i < outFields.length; i++)
+            outFields[i] = fieldList.get(i);
     }
 
     public TupleDesc getTupleDesc() {
@@ -57,27 +63,20 @@ public class Project extends Operator {
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
         child.rewind();
     }
 
     /**
-     * Operator.fetchNext implementation. Iterates over tuples from the child
-     * operator, projecting out the fields from the tuple
+     * BatchOperator.fetchNextBatch implementation. Reads a batch from the
+     * child operator and projects out the fields of its tuples
      * 
-     * @return The next tuple, or null if there are no more tuples
+     * @return The next batch, or null if there are no more tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException,
+    protected TupleBatch fetchNextBatch() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        while (child.hasNext()) {
-            Tuple t = child.next();
-            Tuple newTuple = new Tuple(td);
-            newTuple.setRecordId(t.getRecordId());
-            for (int i = 0; i < td.numFields(); i++) {
-                newTuple.setField(i, t.getField(outFieldIds.get(i)));
-            }
-            return newTuple;
-        }
-        return null;
+        TupleBatch batch = BatchAdapter.of(child).nextBatch();
+        return batch == null ? null : batch.project(outFields, td);
     }
 
     @Override
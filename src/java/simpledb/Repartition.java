@@ -0,0 +1,49 @@
+package simpledb;
+
+/**
+ * Repartition runs its children on worker threads and splits their tuples
+ * between several ports by a hash of one field, so that every tuple with a
+ * given value of the field goes to the same port.  Parallel hash joins and
+ * grouped aggregates read one port per worker.
+ */
+public class Repartition extends ExchangePort {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int field;
+    private final int port;
+    private final int ports;
+
+    private Repartition(ExchangeHub hub, int field, int port, int ports) {
+        super(hub, port);
+        this.field = field;
+        this.port = port;
+        this.ports = ports;
+    }
+
+    /**
+     * Repartition the tuples of children on field.
+     *
+     * @param children the subtrees to run in parallel; they must have the
+     *   same schema
+     * @param field the field to hash on
+     * @param ports the number of ports
+     * @return the ports; port i returns the tuples that hash to i
+     */
+    public static Repartition[] split(DbIterator[] children, int field, int ports) {
+        ExchangeHub hub = new ExchangeHub(ExchangeHub.Mode.REPARTITION, field, children, ports);
+        Repartition[] out = new Repartition[ports];
+        for (int i = 0; i < ports; i++)
+            out[i] = new Repartition(hub, field, i, ports);
+        return out;
+    }
+
+    /** @return the field the tuples are hashed on */
+    public int getField() {
+        return field;
+    }
+
+    public String getName() {
+        return "repartition(" + getTupleDesc().getFieldName(field) + "," + (port + 1) + "/" + ports + ")";
+    }
+}
@@ -0,0 +1,76 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool should give
+ * up when it needs a free frame.  The BufferPool reports every hit, every
+ * page it brings in and every page it drops, and asks the policy for a victim
+ * only when the pool is full.
+ * <p>
+ * Implementations must be safe to call from several threads at once, and
+ * must keep their per-call cost independent of the size of the pool (LRU-K
+ * is the exception; it pays a logarithmic cost to keep its pages ordered).
+ * {@link #pageHit} is called on every lookup of a resident page and should
+ * not wait for victim selection.
+ *
+ * @see BufferPool
+ * @see AbstractReplacementPolicy
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Callback the BufferPool uses to tell the policy whether a candidate
+     * victim may actually be evicted right now (e.g., it is not dirty).
+     */
+    public interface EvictionFilter {
+        public boolean canEvict(PageId pid);
+    }
+
+    /**
+     * Record a request for a page that was already resident.
+     * @param pid the page that was requested
+     */
+    public void pageHit(PageId pid);
+
+    /**
+     * Record a request for a page that was not resident and had to be read
+     * from disk.  The page becomes resident as a result.
+     * @param pid the page that was read in
+     */
+    public void pageMiss(PageId pid);
+
+    /**
+     * Record that a page became resident without having been requested
+     * through {@link BufferPool#getPage} (e.g., a freshly created page added
+     * by insertTuple).  Not counted as a hit or a miss.
+     * @param pid the page that was added
+     */
+    public void pageAdded(PageId pid);
+
+    /**
+     * Record that a page is no longer resident, either because it was the
+     * chosen victim or because it was discarded.
+     * @param pid the page that was removed
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Choose the resident page that should be evicted next.  The page stays
+     * tracked by the policy until {@link #pageRemoved} is called for it.
+     *
+     * @param filter decides whether a candidate may be evicted
+     * @return the victim, or null if no resident page passes the filter
+     */
+    public PageId chooseVictim(EvictionFilter filter);
+
+    /** @return the number of requests served from the pool */
+    public long getHitCount();
+
+    /** @return the number of requests that had to read from disk */
+    public long getMissCount();
+
+    /** Reset the hit and miss counters to zero. */
+    public void resetStats();
+
+    /** @return a short name for this policy, used in reports */
+    public String getName();
+}
@@ -6,8 +6,11 @@ import java.util.*;
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
+ * <p>
+ * Batches of a HeapFile are decoded page by page straight from the page
+ * images into the columns of the batch.
  */
-public class SeqScan implements DbIterator {
+public class SeqScan implements BatchDbIterator {
 
 	private static final long serialVersionUID = 1L;
 
@@ -15,9 +18,12 @@ public class SeqScan implements DbIterator {
 	private TransactionId tid;
 	private TupleDesc myTd;
 	private transient DbFileIterator it;
-	// private transient int tableid;
+	private int tableid;
 	private String tablename;
 	private String alias;
+	// this scan reads range part of parts equal page ranges of a HeapFile
+	private int part = 0;
+	private int parts = 1;
 
 	/**
 	 * Creates a sequential scan over the specified table as a part of the specified
@@ -40,6 +46,26 @@ public class SeqScan implements DbIterator {
 		reset(tableid, tableAlias);
 	}
 
+	/**
+	 * Creates a scan of one of parts equal ranges of the pages of a table
+	 * stored in a HeapFile.  The parts scans of a table together return
+	 * every tuple once, and can run in parallel.
+	 *
+	 * @param part
+	 *            the range to scan, from 0 to parts - 1
+	 * @param parts
+	 *            the number of ranges
+	 * @see #SeqScan(TransactionId, int, String)
+	 */
+	public SeqScan(TransactionId tid, int tableid, String tableAlias, int part, int parts) {
+		if (parts > 1 && !(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile))
+			throw new IllegalArgumentException("only a HeapFile can be scanned in parts");
+		this.tid = tid;
+		this.part = part;
+		this.parts = parts;
+		reset(tableid, tableAlias);
+	}
+
 	/**
 	 * @return return the table name of the table the operator scans. This should be
 	 *         the actual name of the table in the catalog of the database
@@ -55,6 +81,28 @@ public class SeqScan implements DbIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return the id of the table the operator scans
+	 */
+	public int getTableId() {
+		return this.tableid;
+	}
+
+	/**
+	 * @return the number of page ranges the table is split into; 1 unless
+	 *         this scan reads one range of a parallel scan
+	 */
+	public int getParts() {
+		return this.parts;
+	}
+
+	/**
+	 * @return the transaction this scan is running as a part of
+	 */
+	public TransactionId getTransactionId() {
+		return this.tid;
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * 
@@ -69,11 +117,12 @@ public class SeqScan implements DbIterator {
 	 *            null.null).
 	 */
 	public void reset(int tableid, String tableAlias) {
-		// this.tableid = tableid;
+		this.tableid = tableid;
 		this.isOpen = false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+		DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+		this.it = parts > 1 ? ((HeapFile) f).iterator(tid, part, parts) : f.iterator(tid);
 		myTd = Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
 		Type[] newTypes = new Type[myTd.numFields()];
@@ -126,6 +175,19 @@ public class SeqScan implements DbIterator {
 
 	}
 
+	public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		if (it instanceof HeapFileIterator)
+			return ((HeapFileIterator) it).nextBatch(myTd);
+		if (!it.hasNext())
+			return null;
+		TupleBatch batch = new TupleBatch(myTd);
+		while (!batch.isFull() && it.hasNext())
+			batch.addTuple(it.next());
+		return batch;
+	}
+
 	public void close() {
 		it.close();
 		isOpen = false;
@@ -0,0 +1,108 @@
+package simpledb;
+
+import java.util.Comparator;
+
+/**
+ * SortKey turns the sort columns of a row into a normalized key: an array
+ * of longs whose unsigned lexicographic order is the order of the rows.
+ * Sorting on normalized keys compares a few words per pair of rows instead
+ * of calling Field.compare once per column.
+ * <p>
+ * The key is built as a string of bytes, packed 8 to a long:
+ * <ul>
+ * <li>an INT_TYPE value is 4 big-endian bytes with the sign bit flipped;
+ * <li>a STRING_TYPE value is each char as 2 big-endian bytes, with a zero
+ * char written as 00 00 01, followed by the terminator 00 00 00, so that a
+ * string sorts before any longer string it is a prefix of;
+ * <li>every byte of a descending column is inverted.
+ * </ul>
+ * The last long of a key is the row number given to {@link #encode}, which
+ * breaks ties, so the sort is stable.
+ */
+final class SortKey implements Comparator<long[]> {
+
+    private final int[] fields;
+    private final boolean[] asc;
+    private final boolean[] isInt;
+
+    // the key being built
+    private byte[] bytes = new byte[64];
+    private int len;
+
+    /**
+     * @param td the schema of the rows
+     * @param fields the sort columns, most significant first
+     * @param asc for each sort column, true if it sorts in ascending order
+     */
+    SortKey(TupleDesc td, int[] fields, boolean[] asc) {
+        this.fields = fields;
+        this.asc = asc;
+        isInt = new boolean[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            isInt[i] = td.getFieldType(fields[i]) == Type.INT_TYPE;
+    }
+
+    /** @return the normalized key of row r of batch, with row number rowNum */
+    long[] encode(TupleBatch batch, int r, long rowNum) {
+        len = 0;
+        for (int i = 0; i < fields.length; i++) {
+            int start = len;
+            if (isInt[i]) {
+                int v = batch.getInt(fields[i], r) ^ Integer.MIN_VALUE;
+                put(v >>> 24);
+                put(v >>> 16);
+                put(v >>> 8);
+                put(v);
+            } else {
+                String s = batch.getString(fields[i], r);
+                for (int j = 0; j < s.length(); j++) {
+                    char c = s.charAt(j);
+                    put(c >>> 8);
+                    put(c);
+                    if (c == 0)
+                        put(1);
+                }
+                put(0);
+                put(0);
+                put(0);
+            }
+            if (!asc[i]) {
+                for (int j = start; j < len; j++)
+                    bytes[j] = (byte) ~bytes[j];
+            }
+        }
+        int words = (len + 7) / 8;
+        long[] key = new long[words + 1];
+        for (int j = 0; j < len; j++)
+            key[j / 8] |= (bytes[j] & 0xFFL) << (56 - 8 * (j % 8));
+        key[words] = rowNum;
+        return key;
+    }
+
+    private void put(int b) {
+        if (len == bytes.length) {
+            byte[] grown = new byte[len * 2];
+            System.arraycopy(bytes, 0, grown, 0, len);
+            bytes = grown;
+        }
+        bytes[len++] = (byte) b;
+    }
+
+    /** @return the row number stored in key */
+    static long rowNum(long[] key) {
+        return key[key.length - 1];
+    }
+
+    /**
+     * Compares two keys.  Keys of different lengths differ before the
+     * shorter one ends, because each column's encoding is prefix-free.
+     */
+    public int compare(long[] a, long[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            if (a[i] != b[i])
+                return Long.compareUnsigned(a[i], b[i]);
+        }
+        return a.length - b.length;
+    }
+}
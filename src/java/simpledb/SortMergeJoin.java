@@ -0,0 +1,338 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator joins two inputs that are both sorted in
+ * ascending order on their join fields, such as scans of BTreeFiles keyed
+ * on those fields, or the output of OrderBy.  It reads each input once.
+ * <p>
+ * One input drives the join and the other fills a window of the rows that
+ * join with the current driving row:
+ * <ul>
+ * <li>for =, the outer input drives, and the window holds the run of inner
+ * rows with the same key;
+ * <li>for &gt; and &gt;=, the outer input drives, and the window holds every
+ * inner row with a smaller (or equal) key;
+ * <li>for &lt; and &lt;=, the inner input drives, and the window holds every
+ * outer row with a smaller (or equal) key.
+ * </ul>
+ * The window holds as many rows in memory as the memory budget allows, and
+ * spills the rest to a temporary file that is read once per driving row.
+ */
+public class SortMergeJoin extends BatchOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Memory for the window of rows being joined when no budget is given, in bytes. */
+    public static final long DEFAULT_MEMORY_BUDGET = 16L * 1024 * 1024;
+
+    private JoinPredicate p;
+    private DbIterator child1, child2;
+    private final long memoryBudget;
+
+    private transient boolean outerDrives;
+    private transient Cursor driver;
+    private transient Cursor windowSide;
+    private transient Window window;
+    // joining the driving row with the window: the next window row in
+    // memory, and the spilled rows being read
+    private transient boolean joining;
+    private transient int emitRow;
+    private transient TupleBatch spillChunk;
+    private transient int spillRow;
+
+    /** A position in the batches of an input. */
+    private static class Cursor {
+        final BatchDbIterator in;
+        final int field;
+        TupleBatch batch;
+        int row;
+        boolean done;
+
+        Cursor(DbIterator in, int field) {
+            this.in = BatchAdapter.of(in);
+            this.field = field;
+        }
+
+        /** @return true if there is a current row, reading a batch if needed */
+        boolean valid() throws DbException, TransactionAbortedException {
+            while (!done && (batch == null || row >= batch.size())) {
+                batch = in.nextBatch();
+                row = 0;
+                done = batch == null;
+            }
+            return !done;
+        }
+    }
+
+    /** Rows of the window side: the first ones in memory, the rest spilled. */
+    private static class Window {
+        final TupleDesc td;
+        final int maxRows;
+        TupleBatch rows;
+        SpillFile spill;
+
+        Window(TupleDesc td, int maxRows) {
+            this.td = td;
+            this.maxRows = maxRows;
+            rows = new TupleBatch(td);
+        }
+
+        void add(TupleBatch batch, int r) throws IOException {
+            if (rows.size() < maxRows) {
+                rows.addRow(batch, r);
+            } else {
+                if (spill == null)
+                    spill = new SpillFile(td);
+                spill.add(batch, r);
+            }
+        }
+
+        boolean isEmpty() {
+            return rows.size() == 0;
+        }
+
+        void clear() {
+            rows = new TupleBatch(td);
+            if (spill != null)
+                spill.close();
+            spill = null;
+        }
+    }
+
+    /**
+     * Constructor.  Both children must be sorted in ascending order on
+     * their join fields.
+     *
+     * @param p
+     *            The predicate to use to join the children; one of =, &lt;,
+     *            &lt;=, &gt; and &gt;=
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Constructor.  Both children must be sorted in ascending order on
+     * their join fields.
+     *
+     * @param p
+     *            The predicate to use to join the children; one of =, &lt;,
+     *            &lt;=, &gt; and &gt;=
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param memoryBudget
+     *            The most bytes of window rows to hold in memory; more are
+     *            spilled to disk
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            long memoryBudget) {
+        if (!canMerge(p.getOperator()))
+            throw new IllegalArgumentException("cannot merge join on " + p.getOperator());
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /** @return true if a sort-merge join can evaluate the predicate op */
+    public static boolean canMerge(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    /**
+     * @return
+     *       the field name of join field1. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    /**
+     * @return
+     *       the field name of join field2. Should be quantified by
+     *       alias or table name.
+     * */
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        child1.open();
+        child2.open();
+        start();
+    }
+
+    /** Set up the cursors and an empty window over the children. */
+    private void start() {
+        Predicate.Op op = p.getOperator();
+        outerDrives = op != Predicate.Op.LESS_THAN && op != Predicate.Op.LESS_THAN_OR_EQ;
+        Cursor outer = new Cursor(child1, p.getField1());
+        Cursor inner = new Cursor(child2, p.getField2());
+        driver = outerDrives ? outer : inner;
+        windowSide = outerDrives ? inner : outer;
+        TupleDesc td = (outerDrives ? child2 : child1).getTupleDesc();
+        if (window != null)
+            window.clear();
+        window = new Window(td, (int) Math.max(1,
+                Math.min(Integer.MAX_VALUE / 2, memoryBudget / td.getSize())));
+        joining = false;
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        child2.close();
+        if (window != null)
+            window.clear();
+        window = null;
+        driver = null;
+        windowSide = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        child1.rewind();
+        child2.rewind();
+        start();
+    }
+
+    private static int compare(TupleBatch a, int fa, int ra, TupleBatch b, int fb, int rb) {
+        if (a.isIntColumn(fa))
+            return Integer.compare(a.getInt(fa, ra), b.getInt(fb, rb));
+        return a.getString(fa, ra).compareTo(b.getString(fb, rb));
+    }
+
+    /** Bring the window up to date for the current driving row. */
+    private void advanceWindow() throws DbException, TransactionAbortedException, IOException {
+        TupleBatch d = driver.batch;
+        int dr = driver.row;
+        Predicate.Op op = p.getOperator();
+        if (op == Predicate.Op.EQUALS) {
+            if (!window.isEmpty()
+                    && compare(window.rows, windowSide.field, 0, d, driver.field, dr) != 0)
+                window.clear();
+            while (windowSide.valid()) {
+                int c = compare(windowSide.batch, windowSide.field, windowSide.row, d, driver.field, dr);
+                if (c > 0)
+                    break;
+                if (c == 0)
+                    window.add(windowSide.batch, windowSide.row);
+                windowSide.row++;
+            }
+        } else {
+            boolean strict = op == Predicate.Op.GREATER_THAN || op == Predicate.Op.LESS_THAN;
+            while (windowSide.valid()) {
+                int c = compare(windowSide.batch, windowSide.field, windowSide.row, d, driver.field, dr);
+                if (c > 0 || (strict && c == 0))
+                    break;
+                window.add(windowSide.batch, windowSide.row++);
+            }
+        }
+    }
+
+    /**
+     * Join the driving row with the window rows not joined yet, until out is
+     * full.
+     *
+     * @return false if every window row has been joined with the driving row
+     */
+    private boolean joinWindow(TupleBatch out) throws IOException {
+        while (!out.isFull()) {
+            TupleBatch w;
+            int wr;
+            if (emitRow < window.rows.size()) {
+                w = window.rows;
+                wr = emitRow++;
+            } else {
+                if (window.spill == null)
+                    return false;
+                if (spillChunk == null || spillRow >= spillChunk.size()) {
+                    spillChunk = window.spill.readBatch(TupleBatch.DEFAULT_SIZE);
+                    spillRow = 0;
+                    if (spillChunk == null)
+                        return false;
+                }
+                w = spillChunk;
+                wr = spillRow++;
+            }
+            if (outerDrives)
+                out.addJoinedRow(driver.batch, driver.row, w, wr);
+            else
+                out.addJoinedRow(w, wr, driver.batch, driver.row);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next batch of tuples generated by the join, or null if
+     * there are no more tuples.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch out = new TupleBatch(getTupleDesc());
+        try {
+            while (!out.isFull()) {
+                if (!joining) {
+                    if (!driver.valid())
+                        break;
+                    advanceWindow();
+                    if (window.isEmpty() && windowSide.done)
+                        break; // no row left to join with
+                    emitRow = 0;
+                    spillChunk = null;
+                    if (window.spill != null) {
+                        window.spill.finishWriting();
+                        window.spill.rewind();
+                    }
+                    joining = true;
+                }
+                if (!joinWindow(out)) {
+                    joining = false;
+                    driver.row++;
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("could not read join window: " + e);
+        }
+        return out.size() == 0 ? null : out;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -0,0 +1,141 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * SpillFile is a temporary file of tuples, for operators that hold more
+ * tuples than their memory budget allows.  Rows are appended from batches
+ * and read back in batches, in the order they were written.  The file is
+ * created on the first write and deleted by {@link #close}.
+ * <p>
+ * Each row is written field by field: an INT_TYPE field as 4 bytes, a
+ * STRING_TYPE field as its length followed by its bytes.
+ */
+class SpillFile {
+
+    private final TupleDesc td;
+    private File file;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private long rows = 0;
+    private long bytes = 0;
+    private long rowsRead = 0;
+
+    /**
+     * @param td the schema of the rows
+     */
+    SpillFile(TupleDesc td) {
+        this.td = td;
+    }
+
+    /** @return the schema of the rows */
+    TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** Append row r of batch, which must have the schema of this file. */
+    void add(TupleBatch batch, int r) throws IOException {
+        if (out == null) {
+            if (file == null) {
+                file = File.createTempFile("spill", ".tmp");
+                file.deleteOnExit();
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+        for (int c = 0; c < td.numFields(); c++) {
+            if (batch.isIntColumn(c)) {
+                out.writeInt(batch.getInt(c, r));
+                bytes += 4;
+            } else {
+                byte[] s = batch.getString(c, r).getBytes();
+                out.writeInt(s.length);
+                out.write(s);
+                bytes += 4 + s.length;
+            }
+        }
+        rows++;
+    }
+
+    /** Append every row of batch. */
+    void addAll(TupleBatch batch) throws IOException {
+        for (int r = 0; r < batch.size(); r++)
+            add(batch, r);
+    }
+
+    /** Flush the rows written so far, so that they can be read. */
+    void finishWriting() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /** @return the number of rows in the file */
+    long rows() {
+        return rows;
+    }
+
+    /** @return the number of bytes written to the file */
+    long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Read the next rows of the file.  Writing must be finished first.
+     *
+     * @param maxRows the most rows to return
+     * @return a batch of at most maxRows rows, or null if every row has been
+     *   read
+     */
+    TupleBatch readBatch(int maxRows) throws IOException {
+        if (rowsRead >= rows)
+            return null;
+        if (in == null)
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        int n = (int) Math.min(maxRows, rows - rowsRead);
+        TupleBatch batch = new TupleBatch(td, n);
+        for (int i = 0; i < n; i++) {
+            int r = batch.addEmptyRow();
+            for (int c = 0; c < td.numFields(); c++) {
+                if (batch.isIntColumn(c)) {
+                    batch.setInt(c, r, in.readInt());
+                } else {
+                    byte[] s = new byte[in.readInt()];
+                    in.readFully(s);
+                    batch.setString(c, r, new String(s));
+                }
+            }
+        }
+        rowsRead += n;
+        return batch;
+    }
+
+    /** Make the next read start again from the first row. */
+    void rewind() throws IOException {
+        if (in != null) {
+            in.close();
+            in = null;
+        }
+        rowsRead = 0;
+    }
+
+    /** Delete the file. */
+    void close() {
+        try {
+            if (out != null)
+                out.close();
+            if (in != null)
+                in.close();
+        } catch (IOException e) {
+            // the file is deleted anyway
+        }
+        out = null;
+        in = null;
+        if (file != null)
+            file.delete();
+        file = null;
+        rows = 0;
+        bytes = 0;
+        rowsRead = 0;
+    }
+}
@@ -54,6 +54,55 @@ public class StringAggregator implements Aggregator {
         }
     }
 
+    /**
+     * Merge every row of a batch into the aggregate, grouping as indicated
+     * in the constructor
+     * @param batch rows containing an aggregate field and a group-by field
+     */
+    public void mergeBatch(TupleBatch batch) {
+        if (gbfield == NO_GROUPING) {
+            fieldCntMap.put(NO_GROUPING_FIELD, fieldCntMap.getOrDefault(NO_GROUPING_FIELD, 0) + batch.size());
+            return;
+        }
+        for (int r = 0; r < batch.size(); r++) {
+            Field key = batch.getField(gbfield, r);
+            fieldCntMap.put(key, fieldCntMap.getOrDefault(key, 0) + 1);
+        }
+    }
+
+    /**
+     * Count row r of a batch in its group, if the group exists or addGroup
+     * is true
+     * @return false if the group is new and addGroup is false
+     */
+    public boolean mergeRow(TupleBatch batch, int r, boolean addGroup) {
+        Field key = gbfield == NO_GROUPING ? NO_GROUPING_FIELD : batch.getField(gbfield, r);
+        Integer count = fieldCntMap.get(key);
+        if (count == null && !addGroup)
+            return false;
+        fieldCntMap.put(key, count == null ? 1 : count + 1);
+        return true;
+    }
+
+    public int numGroups() {
+        return fieldCntMap.size();
+    }
+
+    /**
+     * Merge the counts of another StringAggregator into this one
+     * @param other a StringAggregator built with the same arguments
+     */
+    public void merge(Aggregator other) {
+        if (!(other instanceof StringAggregator))
+            throw new IllegalArgumentException("cannot merge a " + other.getClass().getSimpleName()
+                    + " into a StringAggregator");
+        StringAggregator o = (StringAggregator) other;
+        if (o.gbfield != gbfield)
+            throw new IllegalArgumentException("aggregators group on different fields");
+        for (Map.Entry<Field, Integer> e : o.fieldCntMap.entrySet())
+            fieldCntMap.put(e.getKey(), fieldCntMap.getOrDefault(e.getKey(), 0) + e.getValue());
+    }
+
     /**
      * Create a DbIterator over group aggregate results.
      *
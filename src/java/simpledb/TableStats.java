@@ -93,7 +93,7 @@ public class TableStats {
         DbFile f = Database.getCatalog().getDatabaseFile(tableid);
         td = f.getTupleDesc();
 
-        if (!(f instanceof HeapFile)) {
+        if (!(f instanceof HeapFile) && !(f instanceof BTreeFile)) {
             basePages = 0;
             baseTups = 0;
             this.costPerPageIO=ioCostPerPage;
@@ -142,7 +142,10 @@ public class TableStats {
             }
         }
 
-        basePages = ((HeapFile) f).numPages();
+        if (f instanceof HeapFile)
+            basePages = ((HeapFile) f).numPages();
+        else
+            basePages = ((BTreeFile) f).numPages();
         int count = 0;
         try {
             Transaction t = new Transaction();
@@ -0,0 +1,187 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * TopN is an operator that implements ORDER BY ... LIMIT n.  Rather than
+ * sorting every tuple of its child as {@link OrderBy} does, it keeps the n
+ * best tuples seen so far in a max-heap of their normalized sort keys, so
+ * it holds at most n tuples and takes O(log n) time per tuple.  Tuples with
+ * equal keys are returned in the order of the child, as OrderBy does.
+ */
+public class TopN extends BatchOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private final int[] orderByFields;
+    private final boolean[] ascs;
+    private final int limit;
+
+    // the kept tuples, and a max-heap of their keys: heapKeys[0] is the worst
+    // kept tuple, which is row heapRows[0] of kept
+    private transient TupleBatch kept;
+    private transient long[][] heapKeys;
+    private transient int[] heapRows;
+    private transient int heapSize;
+    private transient int pos;
+
+    /**
+     * Constructor.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param ascs
+     *            for each field, true if its sort order is ascending.
+     * @param limit
+     *            the number of tuples to return
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] ascs, int limit, DbIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != ascs.length)
+            throw new IllegalArgumentException("need a sort order for each of at least one field");
+        if (limit < 0)
+            throw new IllegalArgumentException("negative limit " + limit);
+        this.orderByFields = orderbyFields;
+        this.ascs = ascs;
+        this.limit = limit;
+        this.child = child;
+    }
+
+    /** @return the fields the sort is applied to, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return for each sort field, true if its sort order is ascending */
+    public boolean[] getAscs() {
+        return ascs.clone();
+    }
+
+    /** @return the number of tuples this operator returns at most */
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        super.open();
+        TupleDesc td = child.getTupleDesc();
+        SortKey sortKey = new SortKey(td, orderByFields, ascs);
+        kept = new TupleBatch(td, Math.min(limit, TupleBatch.DEFAULT_SIZE));
+        heapKeys = new long[Math.min(limit, TupleBatch.DEFAULT_SIZE)][];
+        heapRows = new int[heapKeys.length];
+        heapSize = 0;
+        long rowNum = 0;
+        BatchDbIterator in = BatchAdapter.of(child);
+        TupleBatch batch;
+        while (limit > 0 && (batch = in.nextBatch()) != null) {
+            for (int r = 0; r < batch.size(); r++) {
+                long[] key = sortKey.encode(batch, r, rowNum++);
+                if (heapSize < limit) {
+                    if (heapSize == heapKeys.length) {
+                        heapKeys = Arrays.copyOf(heapKeys, (int) Math.min(limit, 2L * heapSize));
+                        heapRows = Arrays.copyOf(heapRows, heapKeys.length);
+                    }
+                    kept.addRow(batch, r);
+                    heapKeys[heapSize] = key;
+                    heapRows[heapSize] = heapSize;
+                    siftUp(sortKey, heapSize++);
+                } else if (sortKey.compare(key, heapKeys[0]) < 0) {
+                    kept.setRow(heapRows[0], batch, r);
+                    heapKeys[0] = key;
+                    siftDown(sortKey, 0);
+                }
+            }
+        }
+
+        // order the kept tuples best first
+        long[][] order = new long[heapSize][];
+        for (int i = 0; i < heapSize; i++) {
+            order[i] = Arrays.copyOf(heapKeys[i], heapKeys[i].length + 1);
+            order[i][order[i].length - 1] = heapRows[i];
+        }
+        Arrays.sort(order, sortKey);
+        for (int i = 0; i < heapSize; i++)
+            heapRows[i] = (int) SortKey.rowNum(order[i]);
+        heapKeys = null;
+        pos = 0;
+    }
+
+    private void siftUp(SortKey sortKey, int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (sortKey.compare(heapKeys[i], heapKeys[parent]) <= 0)
+                return;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(SortKey sortKey, int i) {
+        while (true) {
+            int worst = i;
+            for (int c = 2 * i + 1; c <= 2 * i + 2 && c < heapSize; c++) {
+                if (sortKey.compare(heapKeys[c], heapKeys[worst]) > 0)
+                    worst = c;
+            }
+            if (worst == i)
+                return;
+            swap(i, worst);
+            i = worst;
+        }
+    }
+
+    private void swap(int i, int j) {
+        long[] key = heapKeys[i];
+        heapKeys[i] = heapKeys[j];
+        heapKeys[j] = key;
+        int row = heapRows[i];
+        heapRows[i] = heapRows[j];
+        heapRows[j] = row;
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        kept = null;
+        heapKeys = null;
+        heapRows = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        pos = 0;
+    }
+
+    /**
+     * Returns the next batch of the kept tuples in the ordering, or null if
+     * there are no more.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        if (pos >= heapSize)
+            return null;
+        TupleBatch out = new TupleBatch(getTupleDesc());
+        while (pos < heapSize && !out.isFull())
+            out.addRow(kept, heapRows[pos++]);
+        return out;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -1,6 +1,9 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
 
@@ -8,6 +11,11 @@ import java.util.Iterator;
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read from a page may be backed by its serialized bytes instead:
+ * its fields are then decoded the first time they are requested.  Only the
+ * tuple's own bytes are copied out of the page image, so a tuple that is
+ * kept, e.g. in an operator's buffer, does not keep the whole page alive.
  */
 public class Tuple implements Serializable {
 
@@ -17,6 +25,11 @@ public class Tuple implements Serializable {
     private Field fields[];
     private transient TupleDesc td;
 
+    // serialized bytes this tuple's unset fields are decoded from, if any
+    private transient ByteBuffer src;
+    private transient int srcOffset;
+    private transient TupleDesc srcTd;
+
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -29,6 +42,30 @@ public class Tuple implements Serializable {
         this.td = td;
     }
 
+    /**
+     * Create a tuple whose fields are decoded on demand from a serialized
+     * tuple in src, laid out according to td.  The tuple's bytes are
+     * copied, so src may change or be dropped afterwards.
+     *
+     * @param td the schema of this tuple
+     * @param src the buffer holding the tuple
+     * @param offset the position of the tuple in src
+     */
+    Tuple(TupleDesc td, ByteBuffer src, int offset) {
+        this(td);
+        byte[] bytes = new byte[td.getSize()];
+        if (src.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + offset, bytes, 0, bytes.length);
+        } else {
+            ByteBuffer view = src.duplicate();
+            view.position(offset);
+            view.get(bytes);
+        }
+        this.src = ByteBuffer.wrap(bytes);
+        this.srcOffset = 0;
+        this.srcTd = td;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -76,7 +113,26 @@ public class Tuple implements Serializable {
      *            field index to return. Must be a valid index.
      */
     public Field getField(int i) {
-        return fields[i];
+        Field f = fields[i];
+        if (f == null && src != null) {
+            f = srcTd.getFieldType(i).parse(src, srcOffset + srcTd.getFieldOffset(i));
+            fields[i] = f;
+        }
+        return f;
+    }
+
+    /** Decode every field not decoded yet. */
+    private void decodeAll() {
+        if (src == null)
+            return;
+        for (int i = 0; i < fields.length; i++)
+            getField(i);
+        src = null;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        decodeAll();
+        out.defaultWriteObject();
     }
 
     /**
@@ -88,6 +144,7 @@ public class Tuple implements Serializable {
      * where \t is any whitespace (except a newline)
      */
     public String toString() {
+        decodeAll();
         String out = "";
         for (int i = 0; i < fields.length; i++) {
             if (out.length() > 0)
@@ -103,6 +160,7 @@ public class Tuple implements Serializable {
      * */
     public Iterator<Field> fields()
     {
+        decodeAll();
         return Arrays.asList(fields).iterator();
     }
 
@@ -0,0 +1,353 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * TupleBatch holds a batch of rows in columnar form.  It is what
+ * {@link BatchDbIterator#nextBatch} returns.  INT_TYPE columns are kept as
+ * int arrays and STRING_TYPE columns as String arrays, so operators can
+ * filter, project and hash a batch without creating a Tuple or Field for
+ * every row.  Rows read from a table also keep their RecordId, as a page id
+ * and slot number.
+ * <p>
+ * A batch grows as rows are added.  Producers stop adding rows once a batch
+ * holds {@link #DEFAULT_SIZE} rows or more.
+ */
+public class TupleBatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of rows operators aim to put in a batch. */
+    public static final int DEFAULT_SIZE = 4096;
+
+    private final TupleDesc td;
+    private final boolean[] isInt;
+    private int[][] ints;         // ints[c] is column c if it is an INT_TYPE column
+    private String[][] strings;   // strings[c] is column c if it is a STRING_TYPE column
+    private PageId[] pageIds;     // null until a row with a RecordId is added
+    private int[] slots;
+    private int size = 0;
+    private int capacity;
+
+    /**
+     * Create an empty batch of tuples with schema td.
+     *
+     * @param td the schema of the rows
+     */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_SIZE);
+    }
+
+    /**
+     * Create an empty batch with room for capacity rows before it grows.
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = Math.max(1, capacity);
+        int n = td.numFields();
+        isInt = new boolean[n];
+        ints = new int[n][];
+        strings = new String[n][];
+        for (int c = 0; c < n; c++) {
+            isInt[c] = td.getFieldType(c) == Type.INT_TYPE;
+            if (isInt[c])
+                ints[c] = new int[this.capacity];
+            else
+                strings[c] = new String[this.capacity];
+        }
+    }
+
+    // a batch sharing the given columns; see project
+    private TupleBatch(TupleDesc td, boolean[] isInt, int[][] ints, String[][] strings,
+            PageId[] pageIds, int[] slots, int size, int capacity) {
+        this.td = td;
+        this.isInt = isInt;
+        this.ints = ints;
+        this.strings = strings;
+        this.pageIds = pageIds;
+        this.slots = slots;
+        this.size = size;
+        this.capacity = capacity;
+    }
+
+    /** @return the schema of the rows in this batch */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of rows in this batch */
+    public int size() {
+        return size;
+    }
+
+    /** @return true if the batch holds at least {@link #DEFAULT_SIZE} rows */
+    public boolean isFull() {
+        return size >= DEFAULT_SIZE;
+    }
+
+    /** @return true if column c holds INT_TYPE values */
+    public boolean isIntColumn(int c) {
+        return isInt[c];
+    }
+
+    /**
+     * @return the values of INT_TYPE column c; only the first {@link #size}
+     *   entries are rows of this batch
+     */
+    public int[] intColumn(int c) {
+        if (!isInt[c])
+            throw new IllegalArgumentException("column " + c + " is not an INT_TYPE column");
+        return ints[c];
+    }
+
+    /**
+     * @return the values of STRING_TYPE column c; only the first
+     *   {@link #size} entries are rows of this batch
+     */
+    public String[] stringColumn(int c) {
+        if (isInt[c])
+            throw new IllegalArgumentException("column " + c + " is not a STRING_TYPE column");
+        return strings[c];
+    }
+
+    /** @return the value of INT_TYPE column c in row r */
+    public int getInt(int c, int r) {
+        return ints[c][r];
+    }
+
+    /** @return the value of STRING_TYPE column c in row r */
+    public String getString(int c, int r) {
+        return strings[c][r];
+    }
+
+    /** @return column c of row r as a Field */
+    public Field getField(int c, int r) {
+        if (isInt[c])
+            return new IntField(ints[c][r]);
+        return new StringField(strings[c][r], Type.STRING_LEN);
+    }
+
+    /** @return the RecordId of row r, or null if it has none */
+    public RecordId getRecordId(int r) {
+        if (pageIds == null || pageIds[r] == null)
+            return null;
+        return new RecordId(pageIds[r], slots[r]);
+    }
+
+    /** @return row r as a Tuple */
+    public Tuple getTuple(int r) {
+        if (r < 0 || r >= size)
+            throw new IndexOutOfBoundsException("row " + r + " of " + size);
+        Tuple t = new Tuple(td);
+        for (int c = 0; c < isInt.length; c++)
+            t.setField(c, getField(c, r));
+        t.setRecordId(getRecordId(r));
+        return t;
+    }
+
+    /** Append t, which must have the schema of this batch. */
+    public void addTuple(Tuple t) {
+        int r = newRow();
+        for (int c = 0; c < isInt.length; c++) {
+            Field f = t.getField(c);
+            if (isInt[c])
+                ints[c][r] = ((IntField) f).getValue();
+            else
+                strings[c][r] = ((StringField) f).getValue();
+        }
+        RecordId rid = t.getRecordId();
+        if (rid != null)
+            setRecordId(r, rid.getPageId(), rid.tupleno());
+    }
+
+    /** Append row r of src, which must have the schema of this batch. */
+    public void addRow(TupleBatch src, int r) {
+        int dst = newRow();
+        copyColumns(src, r, 0, dst);
+        if (src.pageIds != null && src.pageIds[r] != null)
+            setRecordId(dst, src.pageIds[r], src.slots[r]);
+    }
+
+    /** Overwrite row dst with row r of src, which must have the schema of this batch. */
+    void setRow(int dst, TupleBatch src, int r) {
+        copyColumns(src, r, 0, dst);
+        if (src.pageIds != null && src.pageIds[r] != null)
+            setRecordId(dst, src.pageIds[r], src.slots[r]);
+        else if (pageIds != null)
+            pageIds[dst] = null;
+    }
+
+    /**
+     * Append the concatenation of row lr of left and row rr of right.  The
+     * schema of this batch must be the merge of theirs.  The row has no
+     * RecordId.
+     */
+    public void addJoinedRow(TupleBatch left, int lr, TupleBatch right, int rr) {
+        int dst = newRow();
+        copyColumns(left, lr, 0, dst);
+        copyColumns(right, rr, left.isInt.length, dst);
+    }
+
+    /**
+     * Append the concatenation of row lr of left and tuple right.  The
+     * schema of this batch must be the merge of theirs.  The row has no
+     * RecordId.
+     */
+    public void addJoinedRow(TupleBatch left, int lr, Tuple right) {
+        int dst = newRow();
+        copyColumns(left, lr, 0, dst);
+        int first = left.isInt.length;
+        for (int c = first; c < isInt.length; c++) {
+            Field f = right.getField(c - first);
+            if (isInt[c])
+                ints[c][dst] = ((IntField) f).getValue();
+            else
+                strings[c][dst] = ((StringField) f).getValue();
+        }
+    }
+
+    /**
+     * Append a row whose fields are then filled in with setInt and
+     * setString.
+     *
+     * @return the index of the new row
+     */
+    int addEmptyRow() {
+        return newRow();
+    }
+
+    /** Set INT_TYPE column c of row r. */
+    void setInt(int c, int r, int value) {
+        ints[c][r] = value;
+    }
+
+    /** Set STRING_TYPE column c of row r. */
+    void setString(int c, int r, String value) {
+        strings[c][r] = value;
+    }
+
+    /**
+     * Append the tuple serialized at offset in buf (the format written by
+     * Field.serialize), recording pid and slot as its RecordId.
+     */
+    void addSerialized(ByteBuffer buf, int offset, PageId pid, int slot) {
+        int r = newRow();
+        for (int c = 0; c < isInt.length; c++) {
+            int off = offset + td.getFieldOffset(c);
+            if (isInt[c]) {
+                ints[c][r] = buf.getInt(off);
+            } else {
+                int len = Math.max(0, Math.min(Type.STRING_LEN, buf.getInt(off)));
+                byte[] bs = new byte[len];
+                for (int i = 0; i < len; i++)
+                    bs[i] = buf.get(off + 4 + i);
+                strings[c][r] = new String(bs);
+            }
+        }
+        setRecordId(r, pid, slot);
+    }
+
+    /**
+     * Keep only the rows listed in rows[0..n), which must be in increasing
+     * order, and move them to the front of the batch.
+     */
+    public void retain(int[] rows, int n) {
+        if (n == size)
+            return;
+        for (int c = 0; c < isInt.length; c++) {
+            if (sharesColumn(c))
+                continue; // moved already
+            if (isInt[c]) {
+                int[] col = ints[c];
+                for (int i = 0; i < n; i++)
+                    col[i] = col[rows[i]];
+            } else {
+                String[] col = strings[c];
+                for (int i = 0; i < n; i++)
+                    col[i] = col[rows[i]];
+                Arrays.fill(col, n, size, null);
+            }
+        }
+        if (pageIds != null) {
+            for (int i = 0; i < n; i++) {
+                pageIds[i] = pageIds[rows[i]];
+                slots[i] = slots[rows[i]];
+            }
+            Arrays.fill(pageIds, n, size, null);
+        }
+        size = n;
+    }
+
+    /** Remove the first n rows of the batch. */
+    public void removeFirst(int n) {
+        int[] rows = new int[size - n];
+        for (int i = 0; i < rows.length; i++)
+            rows[i] = n + i;
+        retain(rows, rows.length);
+    }
+
+    /**
+     * Returns a batch holding columns cols of this batch, with schema
+     * outTd.  No values are copied: the new batch shares its columns with
+     * this one, so this batch must not be changed afterwards.
+     */
+    public TupleBatch project(int[] cols, TupleDesc outTd) {
+        boolean[] outIsInt = new boolean[cols.length];
+        int[][] outInts = new int[cols.length][];
+        String[][] outStrings = new String[cols.length][];
+        for (int i = 0; i < cols.length; i++) {
+            outIsInt[i] = isInt[cols[i]];
+            outInts[i] = ints[cols[i]];
+            outStrings[i] = strings[cols[i]];
+        }
+        return new TupleBatch(outTd, outIsInt, outInts, outStrings, pageIds, slots, size, capacity);
+    }
+
+    /** @return true if column c is the same array as an earlier column */
+    private boolean sharesColumn(int c) {
+        for (int e = 0; e < c; e++) {
+            if (isInt[c] ? ints[e] == ints[c] : strings[e] == strings[c])
+                return true;
+        }
+        return false;
+    }
+
+    private void copyColumns(TupleBatch src, int r, int firstColumn, int dst) {
+        for (int c = 0; c < src.isInt.length; c++) {
+            if (isInt[firstColumn + c])
+                ints[firstColumn + c][dst] = src.ints[c][r];
+            else
+                strings[firstColumn + c][dst] = src.strings[c][r];
+        }
+    }
+
+    /** Set the RecordId of row r to slot of page pid. */
+    void setRecordId(int r, PageId pid, int slot) {
+        if (pageIds == null) {
+            pageIds = new PageId[capacity];
+            slots = new int[capacity];
+        }
+        pageIds[r] = pid;
+        slots[r] = slot;
+    }
+
+    /** @return the index of a new row at the end of the batch */
+    private int newRow() {
+        if (size == capacity) {
+            capacity *= 2;
+            for (int c = 0; c < isInt.length; c++) {
+                if (isInt[c])
+                    ints[c] = Arrays.copyOf(ints[c], capacity);
+                else
+                    strings[c] = Arrays.copyOf(strings[c], capacity);
+            }
+            if (pageIds != null) {
+                pageIds = Arrays.copyOf(pageIds, capacity);
+                slots = Arrays.copyOf(slots, capacity);
+            }
+        }
+        return size++;
+    }
+}
@@ -47,6 +47,7 @@ public class TupleDesc implements Serializable {
     private static final long serialVersionUID = 1L;
 
     private final TDItem[] tdItems;
+    private transient int[] offsets; // computed on first use
 
     /**
      * Create a new TupleDesc with typeAr.length fields with fields of the
@@ -138,10 +139,30 @@ public class TupleDesc implements Serializable {
      *         Note that tuples from a given TupleDesc are of a fixed size.
      */
     public int getSize() {
-        int size = 0;
-        for (int i = 0; i < tdItems.length; i++)
-            size += tdItems[i].fieldType.getLen();
-        return size;
+        int[] offs = fieldOffsets();
+        return offs[offs.length - 1];
+    }
+
+    /**
+     * @return the byte offset of the ith field within a tuple serialized with
+     *         this TupleDesc, as it is laid out on a page.
+     */
+    public int getFieldOffset(int i) {
+        if (i < 0 || i >= tdItems.length)
+            throw new NoSuchElementException("field index " + i + " out of range");
+        return fieldOffsets()[i];
+    }
+
+    /** @return the offset of every field, followed by the tuple size */
+    private int[] fieldOffsets() {
+        int[] offs = offsets;
+        if (offs == null) {
+            offs = new int[tdItems.length + 1];
+            for (int i = 0; i < tdItems.length; i++)
+                offs[i + 1] = offs[i] + tdItems[i].fieldType.getLen();
+            offsets = offs;
+        }
+        return offs;
     }
 
     /**
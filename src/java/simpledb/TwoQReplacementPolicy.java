@@ -0,0 +1,96 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Full 2Q replacement (Johnson and Shasha).  Pages seen for the first time
+ * enter a FIFO queue, A1in.  When they are evicted from A1in their ids are
+ * remembered in a ghost queue, A1out.  A page that misses while its id is in
+ * A1out has been re-referenced, so it is promoted into the main LRU queue,
+ * Am.  Sequential scans therefore only churn A1in and leave the hot pages
+ * in Am alone.
+ */
+public class TwoQReplacementPolicy extends AbstractReplacementPolicy {
+
+    private final int kin;
+    private final int kout;
+
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<PageId>();
+    private final LinkedHashMap<PageId, Boolean> am =
+        new LinkedHashMap<PageId, Boolean>(16, 0.75f, true);
+
+    /**
+     * Creates a 2Q policy with the tuning suggested in the paper: A1in holds
+     * a quarter of the pool and A1out remembers half as many ids as the pool
+     * has frames.
+     *
+     * @param numPages the number of frames in the buffer pool
+     */
+    public TwoQReplacementPolicy(int numPages) {
+        this(Math.max(1, numPages / 4), Math.max(1, numPages / 2));
+    }
+
+    /**
+     * @param kin target number of resident pages in A1in
+     * @param kout maximum number of ghost ids kept in A1out
+     */
+    public TwoQReplacementPolicy(int kin, int kout) {
+        this.kin = kin;
+        this.kout = kout;
+    }
+
+    protected void accessed(PageId pid) {
+        // hits in A1in are deliberately ignored; they are most likely
+        // correlated references from the same scan
+        am.get(pid);
+    }
+
+    protected void admitted(PageId pid) {
+        if (am.containsKey(pid) || a1in.contains(pid)) {
+            accessed(pid);
+        } else if (a1out.remove(pid)) {
+            am.put(pid, Boolean.TRUE);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    protected void removed(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    private static PageId first(Iterable<PageId> queue, EvictionFilter filter) {
+        for (PageId pid : queue) {
+            if (filter.canEvict(pid))
+                return pid;
+        }
+        return null;
+    }
+
+    protected PageId victim(EvictionFilter filter) {
+        PageId pid = null;
+        if (a1in.size() > kin || am.isEmpty())
+            pid = first(a1in, filter);
+        if (pid == null)
+            pid = first(am.keySet(), filter);
+        if (pid == null)
+            pid = first(a1in, filter);
+        return pid;
+    }
+
+    public String getName() {
+        return "2Q";
+    }
+}
@@ -3,12 +3,17 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
 
 public class AggregateTest extends SimpleDbTestBase {
 
@@ -176,6 +181,66 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /** @return every tuple of an opened iterator as a list, sorted */
+  private static ArrayList<String> drain(DbIterator it) throws Exception {
+    ArrayList<String> rows = new ArrayList<String>();
+    while (it.hasNext())
+      rows.add(SystemTestUtil.tupleToList(it.next()).toString());
+    Collections.sort(rows);
+    return rows;
+  }
+
+  /** @return n tuples (key(i), i) */
+  private static DbIterator keyed(int n, boolean sorted) {
+    int[] data = new int[2 * n];
+    for (int i = 0; i < n; i++) {
+      data[2 * i] = sorted ? i / 3 : (int) (i * 7919L % 5000);
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  /**
+   * Groups that do not fit in the memory budget are spilled, and the
+   * spilled partitions are aggregated afterwards
+   */
+  @Test public void spillGroups() throws Exception {
+    for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.AVG, Aggregator.Op.COUNT }) {
+      Aggregate inMemory = new Aggregate(keyed(20000, false), 1, 0, op);
+      inMemory.open();
+      ArrayList<String> expected = drain(inMemory);
+      assertEquals(5000, expected.size());
+      assertEquals(0, inMemory.getSpilledPartitions());
+
+      // room for about 100 groups
+      Aggregate spilled = new Aggregate(keyed(20000, false), 1, 0, op, 100 * 52, false);
+      spilled.open();
+      assertEquals(expected, drain(spilled));
+      assertTrue(spilled.getSpilledPartitions() > Aggregate.NUM_PARTITIONS);
+      spilled.rewind();
+      assertEquals(expected, drain(spilled));
+      spilled.close();
+    }
+  }
+
+  /**
+   * Input sorted on the group field is aggregated a memory-full of groups
+   * at a time, without spilling
+   */
+  @Test public void sortedGroups() throws Exception {
+    Aggregate hashed = new Aggregate(keyed(20000, true), 1, 0, Aggregator.Op.SUM);
+    hashed.open();
+    ArrayList<String> expected = drain(hashed);
+
+    Aggregate sorted = new Aggregate(keyed(20000, true), 1, 0, Aggregator.Op.SUM, 100 * 52, true);
+    sorted.open();
+    assertEquals(expected, drain(sorted));
+    sorted.rewind();
+    assertEquals(expected, drain(sorted));
+    assertEquals(0, sorted.getSpilledPartitions());
+    sorted.close();
+  }
+
   /**
    * JUnit suite target
    */
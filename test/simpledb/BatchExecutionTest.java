@@ -0,0 +1,142 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BatchExecutionTest extends SimpleDbTestBase {
+
+    private TransactionId tid;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(3, 10000, 100, null, tuples);
+    }
+
+    /** @return the rows of every batch of it, as lists */
+    private static ArrayList<ArrayList<Integer>> drainBatches(BatchDbIterator it) throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        TupleBatch batch;
+        while ((batch = it.nextBatch()) != null) {
+            assertTrue(batch.size() > 0);
+            for (int r = 0; r < batch.size(); r++)
+                rows.add(SystemTestUtil.tupleToList(batch.getTuple(r)));
+        }
+        return rows;
+    }
+
+    /**
+     * A SeqScan returns every tuple of the file in batches, with RecordIds.
+     */
+    @Test public void seqScanBatches() throws Exception {
+        SeqScan scan = new SeqScan(tid, hf.getId(), "t");
+        scan.open();
+        TupleBatch first = scan.nextBatch();
+        assertTrue(first.size() >= TupleBatch.DEFAULT_SIZE);
+        assertEquals(new RecordId(new HeapPageId(hf.getId(), 0), 0), first.getRecordId(0));
+        scan.rewind();
+        ArrayList<ArrayList<Integer>> rows = drainBatches(scan);
+        scan.close();
+        assertEquals(tuples.size(), rows.size());
+        assertTrue(rows.containsAll(tuples));
+    }
+
+    /**
+     * Tuples returned by next() are not returned again by nextBatch().
+     */
+    @Test public void mixTuplesAndBatches() throws Exception {
+        Filter op = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ,
+                new IntField(0)), new SeqScan(tid, hf.getId(), "t"));
+        op.open();
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        assertTrue(op.hasNext());
+        rows.add(SystemTestUtil.tupleToList(op.next()));
+        assertTrue(op.hasNext());
+        rows.addAll(drainBatches(op));
+        assertNull(op.nextBatch());
+        op.close();
+        assertEquals(tuples.size(), rows.size());
+    }
+
+    /**
+     * Filter and Project over batches produce the same tuples as evaluating
+     * them a tuple at a time.
+     */
+    @Test public void filterProject() throws Exception {
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) < 30) {
+                ArrayList<Integer> row = new ArrayList<Integer>();
+                row.add(t.get(2));
+                row.add(t.get(1));
+                expected.add(row);
+            }
+        }
+
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        fields.add(2);
+        fields.add(1);
+        Project op = new Project(fields, new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+                new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(30)),
+                        new SeqScan(tid, hf.getId(), "t")));
+        op.open();
+        ArrayList<ArrayList<Integer>> rows = drainBatches(op);
+        op.close();
+        assertEquals(expected, rows);
+    }
+
+    /**
+     * A batched HashEquiJoin over a tuple-at-a-time child gives the same
+     * result as the nested loops Join.
+     */
+    @Test public void hashJoinAdaptsChild() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        DbIterator inner = TestUtil.createTupleList(2, new int[] { 1, 10, 5, 50, 5, 51, 7, 70 });
+        HashEquiJoin op = new HashEquiJoin(pred, new SeqScan(tid, hf.getId(), "t"), inner);
+        Join expected = new Join(pred, new SeqScan(tid, hf.getId(), "t"),
+                TestUtil.createTupleList(2, new int[] { 1, 10, 5, 50, 5, 51, 7, 70 }));
+        op.open();
+        expected.open();
+        TestUtil.matchAllTuples(expected, op);
+        op.close();
+        expected.close();
+    }
+
+    /**
+     * Aggregate merges batches of its child.
+     */
+    @Test public void aggregateBatches() throws Exception {
+        int sum = 0;
+        for (ArrayList<Integer> t : tuples)
+            sum += t.get(2);
+        Aggregate op = new Aggregate(new SeqScan(tid, hf.getId(), "t"), 2,
+                Aggregator.NO_GROUPING, Aggregator.Op.SUM);
+        op.open();
+        TupleBatch batch = op.nextBatch();
+        assertEquals(1, batch.size());
+        assertEquals(sum, batch.getInt(0, 0));
+        assertNull(op.nextBatch());
+        op.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BatchExecutionTest.class);
+    }
+}
@@ -0,0 +1,89 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BlockNestedLoopsJoinTest extends SimpleDbTestBase {
+
+    private TransactionId tid;
+    private HeapFile outer;
+    private HeapFile inner;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        outer = SystemTestUtil.createRandomHeapFile(2, 1500, 100, null,
+                new ArrayList<ArrayList<Integer>>());
+        inner = SystemTestUtil.createRandomHeapFile(2, 300, 100, null,
+                new ArrayList<ArrayList<Integer>>());
+    }
+
+    /** @return every tuple of it as a list, sorted */
+    private static ArrayList<String> drain(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        while (it.hasNext())
+            rows.add(SystemTestUtil.tupleToList(it.next()).toString());
+        Collections.sort(rows);
+        return rows;
+    }
+
+    /**
+     * Check BlockNestedLoopsJoin against the nested loops Join for op.
+     *
+     * @return the number of blocks the join read
+     */
+    private int checkJoin(Predicate.Op op, int blockPages) throws Exception {
+        JoinPredicate p = new JoinPredicate(0, op, 1);
+        Join nl = new Join(p, new SeqScan(tid, outer.getId(), ""),
+                new SeqScan(tid, inner.getId(), ""));
+        nl.open();
+        ArrayList<String> expected = drain(nl);
+        nl.close();
+
+        BlockNestedLoopsJoin bnl = new BlockNestedLoopsJoin(p, new SeqScan(tid, outer.getId(), ""),
+                new SeqScan(tid, inner.getId(), ""), blockPages);
+        bnl.open();
+        assertEquals(op.toString(), expected, drain(bnl));
+        bnl.rewind();
+        assertEquals(op.toString(), expected, drain(bnl));
+        int blocks = bnl.getBlocks();
+        bnl.close();
+        return blocks;
+    }
+
+    /**
+     * The whole outer relation fits in one block.
+     */
+    @Test public void oneBlock() throws Exception {
+        assertEquals(1, checkJoin(Predicate.Op.EQUALS, BlockNestedLoopsJoin.DEFAULT_BLOCK_PAGES));
+        assertEquals(1, checkJoin(Predicate.Op.GREATER_THAN, BlockNestedLoopsJoin.DEFAULT_BLOCK_PAGES));
+    }
+
+    /**
+     * The inner relation is read once per page-sized block of outer tuples.
+     */
+    @Test public void manyBlocks() throws Exception {
+        int rows = BlockNestedLoopsJoin.blockRows(outer.getTupleDesc(), 1);
+        int blocks = (1500 + rows - 1) / rows;
+        assertEquals(blocks, checkJoin(Predicate.Op.EQUALS, 1));
+        assertEquals(blocks, checkJoin(Predicate.Op.LESS_THAN_OR_EQ, 1));
+        assertEquals(blocks, checkJoin(Predicate.Op.NOT_EQUALS, 1));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BlockNestedLoopsJoinTest.class);
+    }
+}
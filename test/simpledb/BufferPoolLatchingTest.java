@@ -0,0 +1,134 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolLatchingTest extends SimpleDbTestBase {
+
+    /** HeapFile whose page reads block until released by the test. */
+    class SlowHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger(0);
+        final CountDownLatch readStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        SlowHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            if (pid.pageNumber() == 0) {
+                reads.incrementAndGet();
+                readStarted.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    private SlowHeapFile slow;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        slow = new SlowHeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(slow, SystemTestUtil.getUUID());
+        tid = new TransactionId();
+    }
+
+    /**
+     * Several threads missing on the same page share a single read, and a
+     * hit on another page is not held up by that read.
+     */
+    @Test public void concurrentMissesAreCoalesced() throws Exception {
+        final BufferPool bp = Database.getBufferPool();
+        final HeapPageId pid0 = new HeapPageId(slow.getId(), 0);
+        HeapPageId pid1 = new HeapPageId(slow.getId(), 1);
+        bp.getPage(tid, pid1, Permissions.READ_ONLY);
+
+        final Page[] seen = new Page[4];
+        Thread[] threads = new Thread[seen.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        seen[n] = bp.getPage(tid, pid0, Permissions.READ_ONLY);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        slow.readStarted.await();
+        // resident page is served while page 0 is still being read
+        assertTrue(bp.getPage(tid, pid1, Permissions.READ_ONLY) != null);
+
+        slow.release.countDown();
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(1, slow.reads.get());
+        for (Page p : seen)
+            assertSame(seen[0], p);
+        assertEquals(2, bp.getReplacementPolicy().getMissCount());
+    }
+
+    /**
+     * Eviction writes a dirty page that another transaction holds a write
+     * lock on, once its changes are logged, so a transaction that dirties
+     * every frame does not keep others from reading; its abort still takes
+     * the written changes back.
+     */
+    @Test public void stealPagesLockedByOthers() throws Exception {
+        Database.resetBufferPool(3);
+        BufferPool bp = Database.getBufferPool();
+        bp.getCleaner().setEnabled(false);
+        HeapFile a = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        HeapFile b = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, rows);
+
+        // every frame holds a page the writer changed and locks
+        TransactionId writer = new TransactionId();
+        for (int i = 0; i < 504 * 3; i++)
+            bp.insertTuple(writer, a.getId(), Utility.getHeapTuple(new int[] { i, i }));
+        for (Page p : bp.pages.values())
+            assertEquals(writer, p.isDirty());
+
+        SystemTestUtil.matchTuples(b, rows);
+        assertTrue(bp.getCleaner().getStolenCount() > 0);
+        HeapPage onDisk = (HeapPage) a.readPage(new HeapPageId(a.getId(), 0));
+        assertTrue(onDisk.isSlotUsed(0));
+
+        bp.transactionComplete(writer, false);
+        SystemTestUtil.matchTuples(a, new ArrayList<ArrayList<Integer>>());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolLatchingTest.class);
+    }
+}
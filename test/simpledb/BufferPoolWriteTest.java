@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Map;
 
 import org.junit.After;
 import org.junit.Before;
@@ -133,6 +134,27 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Unit test for BufferPool.getCachedPages()
+     */
+    @Test public void getCachedPages() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        Tuple t = Utility.getHeapTuple(1, 2);
+        bp.insertTuple(tid, empty.getId(), t);
+        PageId pid = t.getRecordId().getPageId();
+        Page p = bp.getPage(tid, pid, Permissions.READ_ONLY);
+
+        Map<Integer,Page> cached = bp.getCachedPages(empty.getId());
+        assertEquals(1, cached.size());
+        assertSame(p, cached.get(pid.pageNumber()));
+        assertTrue(bp.getCachedPages(empty.getId() + 1).isEmpty());
+
+        // a snapshot: later changes to the pool do not show through
+        bp.discardPage(pid);
+        assertSame(p, cached.get(pid.pageNumber()));
+        assertTrue(bp.getCachedPages(empty.getId()).isEmpty());
+    }
+
     /**
      * JUnit suite target
      */
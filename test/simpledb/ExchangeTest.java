@@ -0,0 +1,234 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+    private TransactionId tid;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        hf = SystemTestUtil.createRandomHeapFile(2, 20000, 300, null,
+                new ArrayList<ArrayList<Integer>>(), "c");
+    }
+
+    @After public void tearDown() {
+        LogicalPlan.setParallelism(LogicalPlan.DEFAULT_PARALLELISM);
+        LogicalPlan.setMinParallelPages(LogicalPlan.DEFAULT_MIN_PARALLEL_PAGES);
+    }
+
+    /** @return every tuple of it as a list, sorted */
+    private static ArrayList<String> drain(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        while (it.hasNext())
+            rows.add(SystemTestUtil.tupleToList(it.next()).toString());
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private static ArrayList<String> run(DbIterator it) throws Exception {
+        it.open();
+        ArrayList<String> rows = drain(it);
+        it.close();
+        return rows;
+    }
+
+    private DbIterator[] parts(int n) {
+        DbIterator[] scans = new DbIterator[n];
+        for (int i = 0; i < n; i++)
+            scans[i] = new SeqScan(tid, hf.getId(), "", i, n);
+        return scans;
+    }
+
+    /**
+     * Scans of the page ranges of a file, gathered, return every tuple once.
+     */
+    @Test public void gatherParts() throws Exception {
+        ArrayList<String> expected = run(new SeqScan(tid, hf.getId(), ""));
+        Gather g = new Gather(parts(4));
+        g.open();
+        assertEquals(expected, drain(g));
+        g.rewind();
+        assertEquals(expected, drain(g));
+        g.close();
+        assertEquals(expected, run(g));
+    }
+
+    /**
+     * Every tuple with a given key goes to the same port, so counting each
+     * port's groups counts every group once.
+     */
+    @Test public void repartition() throws Exception {
+        ArrayList<String> expected = run(new Aggregate(new SeqScan(tid, hf.getId(), ""),
+                1, 0, Aggregator.Op.COUNT));
+        Repartition[] ports = Repartition.split(parts(3), 0, 4);
+        DbIterator[] lanes = new DbIterator[ports.length];
+        for (int i = 0; i < ports.length; i++)
+            lanes[i] = new Aggregate(ports[i], 1, 0, Aggregator.Op.COUNT);
+        assertEquals(expected, run(new Gather(lanes)));
+    }
+
+    /**
+     * Every port of a broadcast returns every tuple.
+     */
+    @Test public void broadcast() throws Exception {
+        ArrayList<String> once = run(new SeqScan(tid, hf.getId(), ""));
+        ArrayList<String> expected = new ArrayList<String>();
+        for (String row : once)
+            Collections.addAll(expected, row, row, row);
+        Collections.sort(expected);
+        assertEquals(expected, run(new Gather(Broadcast.split(parts(2), 3))));
+    }
+
+    /**
+     * A consumer that stops early does not stall the exchange.
+     */
+    @Test public void earlyClose() throws Exception {
+        Repartition[] ports = Repartition.split(parts(2), 0, 2);
+        DbIterator[] lanes = new DbIterator[] { new Limit(1, ports[0]), ports[1] };
+        Gather g = new Gather(lanes);
+        g.open();
+        int n = 0;
+        while (g.hasNext()) {
+            g.next();
+            n++;
+        }
+        g.close();
+        assertTrue(n > 1 && n < 20000);
+    }
+
+    /**
+     * The inputs keep running for a port that opens after another has
+     * already closed.
+     */
+    @Test public void closeBeforeOpen() throws Exception {
+        // every tuple of output 1, read while output 0 is drained and dropped
+        Repartition[] all = Repartition.split(parts(2), 0, 2);
+        Predicate none = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(Integer.MIN_VALUE));
+        ArrayList<String> expected = run(new Gather(new DbIterator[] {
+                new Filter(none, all[0]), all[1] }));
+        assertTrue(expected.size() > 0);
+
+        Repartition[] ports = Repartition.split(parts(2), 0, 2);
+        ports[0].open();
+        ports[0].next();
+        ports[0].close();
+        assertEquals(expected, run(ports[1]));
+    }
+
+    /**
+     * A failure on a worker is thrown to the reader of the exchange.
+     */
+    @Test public void workerFailure() throws Exception {
+        final TupleDesc td = hf.getTupleDesc();
+        DbIterator failing = new Operator() {
+            private static final long serialVersionUID = 1L;
+
+            protected Tuple fetchNext() throws DbException {
+                throw new DbException("worker failed");
+            }
+
+            public TupleDesc getTupleDesc() {
+                return td;
+            }
+
+            public DbIterator[] getChildren() {
+                return new DbIterator[0];
+            }
+
+            public void setChildren(DbIterator[] children) {
+            }
+
+            public void rewind() {
+            }
+        };
+        Gather g = new Gather(new DbIterator[] { new SeqScan(tid, hf.getId(), ""), failing });
+        g.open();
+        try {
+            drain(g);
+            fail("expected the worker's DbException");
+        } catch (DbException e) {
+            assertEquals("worker failed", e.getMessage());
+        }
+        g.close();
+    }
+
+    /**
+     * An Aggregate over a Gather merges the partial aggregates of its inputs.
+     */
+    @Test public void twoPhaseAggregate() throws Exception {
+        for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.AVG, Aggregator.Op.MIN,
+                Aggregator.Op.COUNT }) {
+            ArrayList<String> expected = run(new Aggregate(new SeqScan(tid, hf.getId(), ""),
+                    1, 0, op));
+            assertEquals(op.toString(), expected, run(new Aggregate(new Gather(parts(4)), 1, 0, op)));
+            expected = run(new Aggregate(new SeqScan(tid, hf.getId(), ""),
+                    1, Aggregator.NO_GROUPING, op));
+            assertEquals(op.toString(), expected, run(new Aggregate(new Gather(parts(4)), 1,
+                    Aggregator.NO_GROUPING, op)));
+        }
+        // each worker spills groups the others may keep in memory
+        ArrayList<String> expected = run(new Aggregate(new SeqScan(tid, hf.getId(), ""),
+                1, 0, Aggregator.Op.SUM));
+        Aggregate spilled = new Aggregate(new Gather(parts(4)), 1, 0, Aggregator.Op.SUM, 20 * 52, false);
+        assertEquals(expected, run(spilled));
+    }
+
+    /**
+     * Parallel plans return the same tuples as serial ones.
+     */
+    @Test public void parallelPlans() throws Exception {
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 3000, 300, null,
+                new ArrayList<ArrayList<Integer>>(), "c");
+        Database.getCatalog().addTable(hf, "ex_big");
+        Database.getCatalog().addTable(other, "ex_small");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("ex_big", new TableStats(hf.getId(), 10));
+        stats.put("ex_small", new TableStats(other.getId(), 10));
+        String[] queries = {
+            "SELECT * FROM ex_big b WHERE b.c1 < 100;",
+            "SELECT b.c0, COUNT(b.c1) FROM ex_big b GROUP BY b.c0;",
+            "SELECT * FROM ex_big b, ex_small s WHERE b.c0 = s.c0 AND s.c1 < 20;",
+            "SELECT s.c1, SUM(b.c1) FROM ex_big b, ex_small s WHERE b.c0 = s.c0 AND s.c1 < 50 GROUP BY s.c1;",
+            "SELECT AVG(b.c1) FROM ex_big b WHERE b.c0 > 10;",
+        };
+        Parser p = new Parser();
+        for (String q : queries) {
+            LogicalPlan.setParallelism(1);
+            ArrayList<String> expected = run(p.generateLogicalPlan(tid, q).physicalPlan(tid, stats, false));
+
+            LogicalPlan.setParallelism(4);
+            LogicalPlan.setMinParallelPages(1);
+            DbIterator plan = p.generateLogicalPlan(tid, q).physicalPlan(tid, stats, false);
+            DbIterator top = ((Operator) plan).getChildren()[0];
+            if (top instanceof Aggregate)
+                top = ((Aggregate) top).getChildren()[0];
+            assertTrue(q, top instanceof Gather);
+            assertEquals(q, expected, run(plan));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExchangeTest.class);
+    }
+}
@@ -9,6 +9,7 @@ import org.junit.Before;
 import org.junit.Test;
 import java.util.ArrayList;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 
 import simpledb.systemtest.SystemTestUtil;
@@ -130,6 +131,69 @@ public class HashEquiJoinTest extends SimpleDbTestBase {
       validateJoin(1,10,1,30001);
   }
 
+  /** @return every tuple of it as a list, sorted */
+  private static ArrayList<String> drain(DbIterator it) throws Exception {
+      ArrayList<String> rows = new ArrayList<String>();
+      while (it.hasNext())
+          rows.add(SystemTestUtil.tupleToList(it.next()).toString());
+      Collections.sort(rows);
+      return rows;
+  }
+
+  /**
+   * With a small memory budget the join spills partitions to disk and
+   * still produces the same tuples as the nested loops Join, also after a
+   * rewind.
+   */
+  @Test public void spillingJoin() throws Exception {
+      HashMap<Integer, Integer> columnSpecification = new HashMap<Integer, Integer>();
+      HeapFile table1 = SystemTestUtil.createRandomHeapFile(
+              COLUMNS, 3000, 500, columnSpecification, new ArrayList<ArrayList<Integer>>());
+      HeapFile table2 = SystemTestUtil.createRandomHeapFile(
+              COLUMNS, 2000, 500, columnSpecification, new ArrayList<ArrayList<Integer>>());
+      TransactionId tid = new TransactionId();
+      JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+      HashEquiJoin op = new HashEquiJoin(p, new SeqScan(tid, table1.getId(), ""),
+              new SeqScan(tid, table2.getId(), ""), 1024);
+      Join nl = new Join(p, new SeqScan(tid, table1.getId(), ""),
+              new SeqScan(tid, table2.getId(), ""));
+      nl.open();
+      ArrayList<String> expected = drain(nl);
+      nl.close();
+
+      op.open();
+      assertEquals(expected, drain(op));
+      assertTrue(op.getSpilledPartitions() > 0);
+      assertTrue(op.getSpilledBytes() > 0);
+      op.rewind();
+      assertEquals(expected, drain(op));
+      op.close();
+      Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A key too frequent to fit in the memory budget is still joined.
+   */
+  @Test public void spillingSkewedJoin() throws Exception {
+      TupleDesc td = Utility.getTupleDesc(width1);
+      DbIterator outer = TestUtil.createTupleList(width1, new int[] { 7, 1, 7, 2, 8, 3 });
+      ArrayList<Tuple> inner = new ArrayList<Tuple>();
+      for (int i = 0; i < 1000; i++)
+          inner.add(Utility.getHeapTuple(new int[] { 7, i }));
+      JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+      HashEquiJoin op = new HashEquiJoin(p, outer, new TupleIterator(td, inner), 64);
+      op.open();
+      int cnt = 0;
+      while (op.hasNext()) {
+          Tuple t = op.next();
+          assertEquals(new IntField(7), t.getField(0));
+          cnt++;
+      }
+      op.close();
+      assertEquals(2000, cnt);
+      assertTrue(op.getSpilledPartitions() > 0);
+  }
+
   /**
    * JUnit suite target
    */
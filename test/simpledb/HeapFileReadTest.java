@@ -77,6 +77,25 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.close(): reads still work after the file is
+     * closed, and reading past the end of the file is rejected.
+     */
+    @Test
+    public void readPageAfterClose() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        hf.readPage(pid);
+        Database.getCatalog().closeFiles();
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        assertEquals(484, page.getNumEmptySlots());
+
+        try {
+            hf.readPage(new HeapPageId(hf.getId(), 1));
+            fail("expected exception");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -121,6 +140,40 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * Unit test for HeapFile.setMappedScans(): a mapped scan returns the same
+     * tuples as a BufferPool scan, and a page dirtied in the BufferPool is
+     * read from the BufferPool instead of the mapping.
+     */
+    @Test
+    public void mappedScan() throws Exception {
+        HeapFile twoPageFile = SystemTestUtil.createRandomHeapFile(2, 600,
+                null, null);
+        List<Tuple> expected = scan(twoPageFile);
+
+        twoPageFile.setMappedScans(true);
+        List<Tuple> mapped = scan(twoPageFile);
+        assertEquals(expected.size(), mapped.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).toString(), mapped.get(i).toString());
+            assertEquals(expected.get(i).getRecordId(), mapped.get(i).getRecordId());
+        }
+
+        Tuple t = Utility.getHeapTuple(new int[] { 7, 7 });
+        Database.getBufferPool().insertTuple(tid, twoPageFile.getId(), t);
+        assertEquals(expected.size() + 1, scan(twoPageFile).size());
+    }
+
+    private List<Tuple> scan(HeapFile f) throws Exception {
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            tuples.add(it.next());
+        it.close();
+        return tuples;
+    }
+
     /**
      * JUnit suite target
      */
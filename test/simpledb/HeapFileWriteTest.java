@@ -6,6 +6,7 @@ import org.junit.Test;
 
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SystemTestUtil;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -43,6 +44,45 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Inserts reuse a slot freed on an earlier page instead of the last page.
+     */
+    @Test public void insertReusesFreedSlot() throws Exception {
+        Tuple first = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, first);
+        for (int i = 1; i < 504 * 2; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+
+        PageId firstPage = first.getRecordId().getPageId();
+        empty.deleteTuple(tid, first);
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(firstPage, t.getRecordId().getPageId());
+        assertEquals(2, empty.numPages());
+    }
+
+    /**
+     * The file holds no pages past the ones inserts used, so a HeapFile
+     * opened on it again sees the same pages and rebuilds the same
+     * free-space map.
+     */
+    @Test public void reopenSeesUsedPagesOnly() throws Exception {
+        for (int i = 0; i < 505; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+        Database.getBufferPool().flushAllPages();
+        assertEquals(2, empty.getFile().length() / BufferPool.getPageSize());
+
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        Database.getCatalog().addTable(reopened, SystemTestUtil.getUUID());
+        assertEquals(2, reopened.numPages());
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        reopened.insertTuple(tid, t);
+        assertEquals(1, t.getRecordId().getPageId().pageNumber());
+        assertEquals(2, reopened.numPages());
+    }
+
     /**
      * JUnit suite target
      */
@@ -120,6 +120,18 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.getInt()
+     */
+    @Test public void getInt() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+
+        for (int i = 0; i < 20; ++i) {
+            assertEquals(EXAMPLE_VALUES[i][0], page.getInt(i, 0));
+            assertEquals(EXAMPLE_VALUES[i][1], page.getInt(i, 1));
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -126,6 +126,32 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Tuples from the iterator keep their values after the page changes, and
+     * the before image is the page as of the last setBeforeImage().
+     */
+    @Test public void lazyTuplesAndBeforeImage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        int free = page.getNumEmptySlots();
+        Tuple first = page.iterator().next();
+        int slot = first.getRecordId().tupleno();
+        Field f0 = page.getField(slot, 0);
+
+        page.deleteTuple(first);
+        page.insertTuple(Utility.getHeapTuple(new int[] { -1, -1 }));
+        assertEquals(slot, page.iterator().next().getRecordId().tupleno());
+        assertEquals(f0, first.getField(0));
+        assertEquals(new IntField(-1), page.getField(slot, 0));
+
+        // the data the page was created from is never written
+        assertEquals(f0, new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA).getField(slot, 0));
+
+        assertEquals(f0, page.getBeforeImage().getField(slot, 0));
+        page.setBeforeImage();
+        assertEquals(new IntField(-1), page.getBeforeImage().getField(slot, 0));
+        assertEquals(free, page.getBeforeImage().getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,110 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class IndexNestedLoopsJoinTest extends SimpleDbTestBase {
+
+    private TransactionId tid;
+    private HeapFile outer;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        outer = SystemTestUtil.createRandomHeapFile(2, 200, 520, null,
+                new ArrayList<ArrayList<Integer>>());
+    }
+
+    /** @return every tuple of it as a list, sorted */
+    private static ArrayList<String> drain(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        while (it.hasNext())
+            rows.add(SystemTestUtil.tupleToList(it.next()).toString());
+        Collections.sort(rows);
+        return rows;
+    }
+
+    /** Check IndexNestedLoopsJoin of outerIn and inner against the nested loops Join. */
+    private void checkJoin(Predicate.Op op, DbIterator outerIn, DbIterator inner,
+            DbIterator innerCopy) throws Exception {
+        JoinPredicate p = new JoinPredicate(0, op, 1);
+        Join nl = new Join(p, new SeqScan(tid, outer.getId(), ""), innerCopy);
+        nl.open();
+        ArrayList<String> expected = drain(nl);
+        nl.close();
+
+        IndexNestedLoopsJoin inl = new IndexNestedLoopsJoin(p, outerIn, inner);
+        inl.open();
+        assertEquals(op.toString(), expected, drain(inl));
+        inl.rewind();
+        assertEquals(op.toString(), expected, drain(inl));
+        inl.close();
+    }
+
+    private void checkJoin(Predicate.Op op, BTreeFile inner) throws Exception {
+        checkJoin(op, new SeqScan(tid, outer.getId(), ""),
+                new SeqScan(tid, inner.getId(), ""), new SeqScan(tid, inner.getId(), ""));
+    }
+
+    /**
+     * Equality joins, with runs of duplicate keys that span leaf pages.
+     */
+    @Test public void eqJoin() throws Exception {
+        BTreeFile inner = BTreeUtility.createRandomBTreeFile(2, 20000, 500, null, null, 1);
+        checkJoin(Predicate.Op.EQUALS, inner);
+    }
+
+    /**
+     * Band joins on each inequality.
+     */
+    @Test public void bandJoins() throws Exception {
+        BTreeFile inner = BTreeUtility.createRandomBTreeFile(2, 2000, 500, null, null, 1);
+        checkJoin(Predicate.Op.LESS_THAN, inner);
+        checkJoin(Predicate.Op.LESS_THAN_OR_EQ, inner);
+        checkJoin(Predicate.Op.GREATER_THAN, inner);
+        checkJoin(Predicate.Op.GREATER_THAN_OR_EQ, inner);
+    }
+
+    /**
+     * Probes with sorted outer keys continue from the leaf of the previous
+     * probe.
+     */
+    @Test public void sortedOuter() throws Exception {
+        BTreeFile inner = BTreeUtility.createRandomBTreeFile(2, 20000, 500, null, null, 1);
+        checkJoin(Predicate.Op.EQUALS,
+                new OrderBy(0, true, new SeqScan(tid, outer.getId(), "")),
+                new SeqScan(tid, inner.getId(), ""), new SeqScan(tid, inner.getId(), ""));
+        BTreeFile small = BTreeUtility.createRandomBTreeFile(2, 2000, 500, null, null, 1);
+        checkJoin(Predicate.Op.LESS_THAN_OR_EQ,
+                new OrderBy(0, true, new SeqScan(tid, outer.getId(), "")),
+                new SeqScan(tid, small.getId(), ""), new SeqScan(tid, small.getId(), ""));
+    }
+
+    /**
+     * Filters over the inner scan are applied to the probed tuples.
+     */
+    @Test public void filteredInner() throws Exception {
+        BTreeFile inner = BTreeUtility.createRandomBTreeFile(2, 20000, 500, null, null, 1);
+        Predicate small = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(100));
+        checkJoin(Predicate.Op.EQUALS, new SeqScan(tid, outer.getId(), ""),
+                new Filter(small, new SeqScan(tid, inner.getId(), "")),
+                new Filter(small, new SeqScan(tid, inner.getId(), "")));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexNestedLoopsJoinTest.class);
+    }
+}
@@ -126,6 +126,91 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test IntegerAggregator over a count, including groups of one tuple
+   */
+  @Test public void mergeCount() throws Exception {
+    scan1.open();
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.COUNT);
+    while (scan1.hasNext())
+      agg.mergeTupleIntoGroup(scan1.next());
+    DbIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1,
+        new int[] { 1, 3, 3, 3, 5, 1 }), it);
+  }
+
+  /**
+   * Sums are kept as longs, so an avg over values whose sum overflows an
+   * int is exact
+   */
+  @Test public void avgDoesNotOverflow() throws Exception {
+    IntegerAggregator agg = new IntegerAggregator(Aggregator.NO_GROUPING, null, 0, Aggregator.Op.AVG);
+    DbIterator big = TestUtil.createTupleList(1,
+        new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE - 3 });
+    big.open();
+    while (big.hasNext())
+      agg.mergeTupleIntoGroup(big.next());
+    DbIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(1, new int[] { Integer.MAX_VALUE - 1 }), it);
+  }
+
+  /**
+   * Test SUM_COUNT over many int groups, merged a batch at a time
+   */
+  @Test public void mergeBatchSumCount() throws Exception {
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM_COUNT);
+    TupleBatch batch = new TupleBatch(Utility.getTupleDesc(2));
+    for (int i = 0; i < 3000; i++)
+      batch.addTuple(Utility.getHeapTuple(new int[] { i % 1000, i }));
+    agg.mergeBatch(batch);
+
+    int[] expected = new int[1000 * 3];
+    for (int k = 0; k < 1000; k++) {
+      expected[3 * k] = k;
+      expected[3 * k + 1] = k + (k + 1000) + (k + 2000);
+      expected[3 * k + 2] = 3;
+    }
+    DbIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(3, expected), it);
+  }
+
+  /**
+   * Test IntegerAggregator.merge(): avgs of two halves merge as sums and
+   * counts, not as an avg of avgs
+   */
+  @Test public void mergePartials() throws Exception {
+    IntegerAggregator first = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    IntegerAggregator second = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    scan1.open();
+    first.mergeTupleIntoGroup(scan1.next());
+    while (scan1.hasNext())
+      second.mergeTupleIntoGroup(scan1.next());
+    first.merge(second);
+    DbIterator it = first.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1,
+        new int[] { 1, 4, 3, 4, 5, 7 }), it);
+  }
+
+  /**
+   * Test IntegerAggregator with string group keys
+   */
+  @Test public void stringGroups() throws Exception {
+    IntegerAggregator agg = new IntegerAggregator(0, Type.STRING_TYPE, 1, Aggregator.Op.MAX);
+    DbIterator scan = TestUtil.createTupleList(2,
+        new Object[] { "a", 1, "b", 5, "a", 7, "b", 2 });
+    scan.open();
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+    DbIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(2,
+        new Object[] { "a", 7, "b", 5 }), it);
+  }
+
   /**
    * Test IntegerAggregator.iterator() for DbIterator behaviour
    */
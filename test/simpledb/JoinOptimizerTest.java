@@ -621,4 +621,145 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * Equality joins between large tables are planned as hash joins and
+     * instantiated as HashEquiJoin; other joins read the outer table in
+     * blocks
+     */
+    @Test
+    public void chooseJoinAlgorithmTest() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(tableName1, stats1);
+        stats.put(tableName2, stats2);
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        filterSelectivities.put("t1", 1.0);
+        filterSelectivities.put("t2", 1.0);
+        Parser p = new Parser();
+        LogicalPlan lp = p.generateLogicalPlan(tid, "SELECT * FROM "
+                + tableName1 + " t1, " + tableName2 + " t2 WHERE t1.c1 = t2.c2;");
+
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.EQUALS));
+        Vector<LogicalJoinNode> result = new JoinOptimizer(lp, nodes).orderJoins(
+                stats, filterSelectivities, false);
+        Assert.assertEquals(LogicalJoinNode.Algorithm.HASH, result.get(0).algorithm);
+        // the node passed in is not changed
+        Assert.assertEquals(LogicalJoinNode.Algorithm.NESTED_LOOPS, nodes.get(0).algorithm);
+
+        DbIterator scan1 = new SeqScan(tid, tableId1, "t1");
+        DbIterator scan2 = new SeqScan(tid, tableId2, "t2");
+        LogicalJoinNode planned = result.get(0);
+        DbIterator join = JoinOptimizer.instantiateJoin(planned,
+                planned.t1Alias.equals("t1") ? scan1 : scan2,
+                planned.t1Alias.equals("t1") ? scan2 : scan1);
+        Assert.assertTrue(join instanceof HashEquiJoin);
+
+        nodes.clear();
+        nodes.add(new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.LESS_THAN));
+        result = new JoinOptimizer(lp, nodes).orderJoins(stats, filterSelectivities, false);
+        Assert.assertEquals(LogicalJoinNode.Algorithm.BLOCK_NESTED_LOOPS, result.get(0).algorithm);
+        planned = result.get(0);
+        join = JoinOptimizer.instantiateJoin(planned,
+                planned.t1Alias.equals("t1") ? scan1 : scan2,
+                planned.t1Alias.equals("t1") ? scan2 : scan1);
+        Assert.assertTrue(join instanceof BlockNestedLoopsJoin);
+    }
+
+    /**
+     * An index nested-loops join whose inner input cannot be probed runs
+     * with the next cheapest algorithm, not a tuple-at-a-time Join
+     */
+    @Test
+    public void instantiateIndexJoinWithoutIndexTest() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        DbIterator scan1 = new SeqScan(tid, tableId1, "t1");
+        DbIterator scan2 = new SeqScan(tid, tableId2, "t2");
+
+        LogicalJoinNode lj = new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.EQUALS)
+                .withAlgorithm(LogicalJoinNode.Algorithm.INDEX_NESTED_LOOPS);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(lj, scan1, scan2) instanceof HashEquiJoin);
+
+        lj = new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.LESS_THAN)
+                .withAlgorithm(LogicalJoinNode.Algorithm.INDEX_NESTED_LOOPS);
+        Assert.assertTrue(JoinOptimizer.instantiateJoin(lj, scan1, scan2) instanceof BlockNestedLoopsJoin);
+    }
+
+    /**
+     * Joins between tables stored in B+ trees keyed on the join fields are
+     * planned as sort-merge joins, since neither side needs a sort
+     */
+    @Test
+    public void chooseSortMergeTest() throws Exception {
+        TransactionId tid = new TransactionId();
+        BTreeFile a = BTreeUtility.createRandomBTreeFile(2, 2000, null, null, 1);
+        BTreeFile b = BTreeUtility.createRandomBTreeFile(2, 3000, null, null, 1);
+        Database.getCatalog().addTable(BTreeUtility.openBTreeFile(2, "c", a.getFile(), 1), "BA");
+        Database.getCatalog().addTable(BTreeUtility.openBTreeFile(2, "c", b.getFile(), 1), "BB");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("BA", new TableStats(Database.getCatalog().getTableId("BA"), 19));
+        stats.put("BB", new TableStats(Database.getCatalog().getTableId("BB"), 19));
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        filterSelectivities.put("a", 1.0);
+        filterSelectivities.put("b", 1.0);
+        Parser p = new Parser();
+
+        LogicalPlan lp = p.generateLogicalPlan(tid,
+                "SELECT * FROM BA a, BB b WHERE a.c1 = b.c1;");
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("a", "b", "c1", "c1", Predicate.Op.EQUALS));
+        Vector<LogicalJoinNode> result = new JoinOptimizer(lp, nodes).orderJoins(
+                stats, filterSelectivities, false);
+        Assert.assertEquals(LogicalJoinNode.Algorithm.SORT_MERGE, result.get(0).algorithm);
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        Assert.assertTrue(plan.getClass() == Project.class
+                && ((Project) plan).getChildren()[0] instanceof SortMergeJoin);
+
+        // a is not sorted on c0
+        lp = p.generateLogicalPlan(tid, "SELECT * FROM BA a, BB b WHERE a.c0 = b.c1;");
+        nodes.clear();
+        nodes.add(new LogicalJoinNode("a", "b", "c0", "c1", Predicate.Op.EQUALS));
+        result = new JoinOptimizer(lp, nodes).orderJoins(stats, filterSelectivities, false);
+        Assert.assertEquals(LogicalJoinNode.Algorithm.HASH, result.get(0).algorithm);
+    }
+
+    /**
+     * A small outer table joined with a large table stored in a BTreeFile
+     * keyed on the join field probes the index
+     */
+    @Test
+    public void chooseIndexNestedLoopsTest() throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapFile a = SystemTestUtil.createRandomHeapFile(2, 20, null, null, "c");
+        BTreeFile b = BTreeUtility.createRandomBTreeFile(2, 20000, null, null, 1);
+        Database.getCatalog().addTable(a, "IA");
+        Database.getCatalog().addTable(BTreeUtility.openBTreeFile(2, "c", b.getFile(), 1), "IB");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put("IA", new TableStats(Database.getCatalog().getTableId("IA"), 19));
+        stats.put("IB", new TableStats(Database.getCatalog().getTableId("IB"), 19));
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        filterSelectivities.put("a", 1.0);
+        filterSelectivities.put("b", 1.0);
+        Parser p = new Parser();
+
+        LogicalPlan lp = p.generateLogicalPlan(tid,
+                "SELECT * FROM IA a, IB b WHERE a.c0 = b.c1;");
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("a", "b", "c0", "c1", Predicate.Op.EQUALS));
+        Vector<LogicalJoinNode> result = new JoinOptimizer(lp, nodes).orderJoins(
+                stats, filterSelectivities, false);
+        Assert.assertEquals(LogicalJoinNode.Algorithm.INDEX_NESTED_LOOPS, result.get(0).algorithm);
+        Assert.assertEquals("b", result.get(0).t2Alias);
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        Assert.assertTrue(plan.getClass() == Project.class
+                && ((Project) plan).getChildren()[0] instanceof IndexNestedLoopsJoin);
+
+        // b is not indexed on c0
+        lp = p.generateLogicalPlan(tid, "SELECT * FROM IA a, IB b WHERE a.c0 = b.c0;");
+        nodes.clear();
+        nodes.add(new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS));
+        result = new JoinOptimizer(lp, nodes).orderJoins(stats, filterSelectivities, false);
+        Assert.assertEquals(LogicalJoinNode.Algorithm.HASH, result.get(0).algorithm);
+    }
 }
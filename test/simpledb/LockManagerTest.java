@@ -0,0 +1,155 @@
+package simpledb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private LockManager lm;
+    private TransactionId tid1, tid2;
+    private PageId p0, p1;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        lm = new LockManager();
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+    }
+
+    /** Starts a thread that acquires a lock and records any failure. */
+    private Thread acquireInBackground(final TransactionId tid, final PageId pid,
+            final Permissions perm, final AtomicReference<Exception> error) {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    lm.acquireLock(tid, pid, perm);
+                } catch (Exception e) {
+                    error.set(e);
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    /**
+     * Shared locks are compatible with each other, and the only holder of a
+     * shared lock can upgrade it.
+     */
+    @Test public void sharedAndUpgrade() throws Exception {
+        lm.acquireLock(tid1, p0, Permissions.READ_ONLY);
+        lm.acquireLock(tid2, p0, Permissions.READ_ONLY);
+        assertTrue(lm.holdsLock(tid1, p0));
+        assertTrue(lm.holdsLock(tid2, p0));
+
+        lm.releaseLock(tid2, p0);
+        assertFalse(lm.holdsLock(tid2, p0));
+        lm.acquireLock(tid1, p0, Permissions.READ_WRITE);
+        assertTrue(lm.holdsExclusiveLock(tid1, p0));
+
+        // re-requesting a weaker lock keeps the exclusive one
+        lm.acquireLock(tid1, p0, Permissions.READ_ONLY);
+        assertTrue(lm.holdsExclusiveLock(tid1, p0));
+    }
+
+    /**
+     * An exclusive lock blocks other transactions until it is released.
+     */
+    @Test public void exclusiveBlocks() throws Exception {
+        lm.acquireLock(tid1, p0, Permissions.READ_WRITE);
+        AtomicReference<Exception> error = new AtomicReference<Exception>();
+        Thread t = acquireInBackground(tid2, p0, Permissions.READ_ONLY, error);
+        t.join(200);
+        assertTrue(t.isAlive());
+        assertFalse(lm.holdsLock(tid2, p0));
+
+        lm.releaseAllLocks(tid1);
+        t.join(5000);
+        assertFalse(t.isAlive());
+        assertTrue(error.get() == null);
+        assertTrue(lm.holdsLock(tid2, p0));
+        assertTrue(lm.getLockedPages(tid1).isEmpty());
+    }
+
+    /**
+     * Two transactions each waiting for the other's page: the second request
+     * closes the cycle and is rejected without blocking.
+     */
+    @Test public void deadlockDetected() throws Exception {
+        lm.acquireLock(tid1, p0, Permissions.READ_WRITE);
+        lm.acquireLock(tid2, p1, Permissions.READ_WRITE);
+
+        AtomicReference<Exception> error = new AtomicReference<Exception>();
+        Thread t = acquireInBackground(tid1, p1, Permissions.READ_WRITE, error);
+        t.join(200);
+        assertTrue(t.isAlive());
+
+        try {
+            lm.acquireLock(tid2, p0, Permissions.READ_WRITE);
+            fail("expected a deadlock");
+        } catch (DeadlockException e) {
+            // expected
+        }
+        lm.releaseAllLocks(tid2);
+        t.join(5000);
+        assertTrue(error.get() == null);
+        assertTrue(lm.holdsExclusiveLock(tid1, p1));
+    }
+
+    /**
+     * Two readers upgrading the same page deadlock on each other.
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        lm.acquireLock(tid1, p0, Permissions.READ_ONLY);
+        lm.acquireLock(tid2, p0, Permissions.READ_ONLY);
+
+        AtomicReference<Exception> error = new AtomicReference<Exception>();
+        Thread t = acquireInBackground(tid1, p0, Permissions.READ_WRITE, error);
+        t.join(200);
+        try {
+            lm.acquireLock(tid2, p0, Permissions.READ_WRITE);
+            fail("expected a deadlock");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        lm.releaseAllLocks(tid2);
+        t.join(5000);
+        assertTrue(lm.holdsExclusiveLock(tid1, p0));
+    }
+
+    /**
+     * A lock that would have to wait is refused at once, and a shared lock
+     * taken that way keeps writers out.
+     */
+    @Test public void tryAcquire() throws Exception {
+        lm.acquireLock(tid1, p0, Permissions.READ_WRITE);
+        assertFalse(lm.tryAcquireLock(tid2, p0, Permissions.READ_ONLY));
+        assertFalse(lm.holdsLock(tid2, p0));
+        lm.releaseAllLocks(tid1);
+
+        assertTrue(lm.tryAcquireLock(tid2, p0, Permissions.READ_ONLY));
+        assertFalse(lm.tryAcquireLock(tid1, p0, Permissions.READ_WRITE));
+        assertTrue(lm.tryAcquireLock(tid1, p0, Permissions.READ_ONLY));
+        lm.releaseLock(tid2, p0);
+        assertTrue(lm.tryAcquireLock(tid1, p0, Permissions.READ_WRITE));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,370 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+    // BEGIN and COMMIT records: type, tid and start offset
+    private static final int RECORD_BYTES = LogFile.INT_SIZE + 2 * LogFile.LONG_SIZE;
+
+    private File f;
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        f = File.createTempFile("logtest", ".log");
+        f.deleteOnExit();
+        log = new LogFile(f);
+    }
+
+    @After public void tearDown() {
+        f.delete();
+    }
+
+    /**
+     * A commit returns once its record is forced to the file.
+     */
+    @Test public void commitIsForced() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        assertEquals(0, log.getForces());
+        log.logCommit(tid);
+        assertEquals(1, log.getForces());
+        assertEquals(1, log.getGroupCommits());
+        assertEquals(LogFile.LONG_SIZE + 2 * RECORD_BYTES, f.length());
+    }
+
+    /**
+     * Commits of concurrent transactions share forces of the log.
+     */
+    @Test public void commitsShareForces() throws Exception {
+        final int threads = 8, perThread = 20;
+        log.setGroupCommit(20000, threads);
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        Thread[] committers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            committers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < perThread; j++) {
+                            TransactionId tid = new TransactionId();
+                            log.logXactionBegin(tid);
+                            log.logCommit(tid);
+                        }
+                    } catch (Exception e) {
+                        error.set(e);
+                    }
+                }
+            };
+            committers[i].start();
+        }
+        for (Thread t : committers)
+            t.join();
+        if (error.get() != null)
+            throw error.get();
+
+        assertEquals(threads * perThread, log.getGroupCommits());
+        assertTrue(log.getForces() < threads * perThread);
+        assertTrue(log.getCommitsPerForce() > 1);
+        assertEquals(LogFile.LONG_SIZE + 2 * threads * perThread * RECORD_BYTES, f.length());
+    }
+
+    /**
+     * An update of one tuple logs the bytes it changed, not whole pages,
+     * and the delta redoes and undoes the change exactly.
+     */
+    @Test public void updateLogsDelta() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        Tuple t = Utility.getHeapTuple(new int[] { 7, 8 });
+        page.insertTuple(t);
+        HeapPage before = page.getBeforeImage();
+
+        PageDelta delta = PageDelta.diff(before, page);
+        // the slot's header bit and the tuple's fields
+        assertEquals(2, delta.numRanges());
+        assertTrue(delta.changedBytes() <= 1 + 2 * Type.INT_TYPE.getLen());
+        assertTrue(Arrays.equals(page.getPageData(), delta.redo(before).getPageData()));
+        assertTrue(Arrays.equals(before.getPageData(), delta.undo(page).getPageData()));
+
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, before, page);
+        log.force();
+        assertTrue(log.getBytesWritten() < 150);
+        assertTrue(log.getBytesWritten() < BufferPool.getPageSize() / 20);
+    }
+
+    /**
+     * Aborting a transaction undoes the logged changes of the pages it
+     * wrote to disk.
+     */
+    @Test public void abortUndoesWrittenPages() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 500, null, tuples);
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 10; i++)
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { i, i }));
+        Database.getBufferPool().flushPages(t.getId());
+        t.abort();
+
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /** @return the contents of f */
+    private static byte[] readFile(File f) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        byte[] data = new byte[(int) raf.length()];
+        raf.readFully(data);
+        raf.close();
+        return data;
+    }
+
+    /** Overwrite the start of f with data, as if later writes were lost. */
+    private static void writeFile(File f, byte[] data) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.write(data);
+        raf.close();
+    }
+
+    /** Insert rows (i, i) for i in [from, to) on behalf of tid, adding them to tuples. */
+    private static void insert(TransactionId tid, HeapFile hf, int from, int to,
+            ArrayList<ArrayList<Integer>> tuples) throws Exception {
+        for (int i = from; i < to; i++) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { i, i }));
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(i);
+            row.add(i);
+            if (tuples != null)
+                tuples.add(row);
+        }
+    }
+
+    /**
+     * Restart the database after a crash, without closing the log, and
+     * recover with the tables of files.
+     *
+     * @return the tables, reopened
+     */
+    private static HeapFile[] crashAndRecover(HeapFile... files) throws Exception {
+        // nothing more reaches the disk from the old pool
+        Database.getBufferPool().getCleaner().setEnabled(false);
+        Database.getLogFile().force();
+        Database.reset();
+        HeapFile[] reopened = new HeapFile[files.length];
+        for (int i = 0; i < files.length; i++) {
+            reopened[i] = new HeapFile(files[i].getFile(), files[i].getTupleDesc());
+            Database.getCatalog().addTable(reopened[i]);
+        }
+        Database.getLogFile().recover();
+        return reopened;
+    }
+
+    /**
+     * Recovery redoes committed updates whose pages were not written and
+     * undoes the updates of transactions that did not finish.
+     */
+    @Test public void recoverRedoesAndUndoes() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 500, null, tuples);
+        byte[] stale = readFile(hf.getFile());
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1.getId(), hf, 0, 2000, tuples);
+        t1.commit();
+        writeFile(hf.getFile(), stale);
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2.getId(), hf, 5000, 5100, null);
+        Database.getBufferPool().flushPages(t2.getId());
+
+        hf = crashAndRecover(hf)[0];
+        assertTrue(Database.getLogFile().getRedoneUpdates() > 1);
+        assertTrue(Database.getLogFile().getUndoneUpdates() > 0);
+        SystemTestUtil.matchTuples(hf, tuples);
+
+        // recovering again finds nothing to do
+        hf = crashAndRecover(hf)[0];
+        assertEquals(0, Database.getLogFile().getRedoneUpdates());
+        assertEquals(0, Database.getLogFile().getUndoneUpdates());
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * A checkpoint records the transactions active across it, so recovery
+     * starts from it and still undoes them.
+     */
+    @Test public void recoverFromCheckpoint() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> otherTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 500, null, tuples);
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 500, null, otherTuples);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1.getId(), hf, 0, 1000, tuples);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2.getId(), other, 5000, 5100, null);
+        // with every page written, the checkpoint's dirty page table is empty
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+
+        byte[] stale = readFile(hf.getFile());
+        Transaction t3 = new Transaction();
+        t3.start();
+        insert(t3.getId(), hf, 1000, 1100, tuples);
+        t3.commit();
+        writeFile(hf.getFile(), stale);
+
+        HeapFile[] files = crashAndRecover(hf, other);
+        // only t3's updates follow the checkpoint
+        assertTrue(Database.getLogFile().getRedoneUpdates() > 0);
+        assertTrue(Database.getLogFile().getRedoneUpdates() <= 2);
+        assertTrue(Database.getLogFile().getUndoneUpdates() > 0);
+        SystemTestUtil.matchTuples(files[0], tuples);
+        SystemTestUtil.matchTuples(files[1], otherTuples);
+    }
+
+    /**
+     * A commit forces the log but leaves its pages unwritten; recovery
+     * redoes them.
+     */
+    @Test public void commitDoesNotForcePages() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 500, null, tuples);
+        byte[] before = readFile(hf.getFile());
+
+        Transaction t = new Transaction();
+        t.start();
+        insert(t.getId(), hf, 0, 10, tuples);
+        t.commit();
+        // new pages may have been allocated, but none written
+        assertTrue(Arrays.equals(before, Arrays.copyOf(readFile(hf.getFile()), before.length)));
+        assertTrue(Database.getLogFile().getForces() > 0);
+
+        hf = crashAndRecover(hf)[0];
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * A transaction may dirty more pages than the buffer pool holds; the
+     * pages it steals are rolled back on abort and redone after a crash
+     * once it commits.
+     */
+    @Test public void stealDirtyPages() throws Exception {
+        Database.resetBufferPool(4);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 500, null, tuples);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1.getId(), hf, 0, 5000, null);
+        t1.abort();
+        SystemTestUtil.matchTuples(hf, tuples);
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2.getId(), hf, 0, 5000, tuples);
+        t2.commit();
+        SystemTestUtil.matchTuples(hf, tuples);
+
+        hf = crashAndRecover(hf)[0];
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * An abort logs a CLR for each update it takes back, so recovery
+     * repeats the abort even if the pages it restored never reached the
+     * disk.
+     */
+    @Test public void recoverRepeatsAbort() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 500, null, tuples);
+
+        Transaction t = new Transaction();
+        t.start();
+        insert(t.getId(), hf, 5000, 5100, null);
+        Database.getBufferPool().flushPages(t.getId());
+        byte[] stolen = readFile(hf.getFile());
+        t.abort();
+        SystemTestUtil.matchTuples(hf, tuples);
+        writeFile(hf.getFile(), stolen);
+
+        hf = crashAndRecover(hf)[0];
+        assertEquals(0, Database.getLogFile().getUndoneUpdates());
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * A transaction that never logged a BEGIN record, but whose updates
+     * were stolen to disk, is undone by recovery.
+     */
+    @Test public void recoverUndoesWithoutBegin() throws Exception {
+        Database.resetBufferPool(4);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 500, null, tuples);
+
+        TransactionId tid = new TransactionId();
+        insert(tid, hf, 0, 5000, null);
+
+        hf = crashAndRecover(hf)[0];
+        assertTrue(Database.getLogFile().getUndoneUpdates() > 0);
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * A checkpoint that truncates the log keeps the place of the first
+     * record of a transaction that never logged a BEGIN, so it can still
+     * roll back.
+     */
+    @Test public void abortAfterTruncateWithoutBegin() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 500, null, tuples);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1.getId(), hf, 0, 1000, tuples);
+        t1.commit();
+        Database.getBufferPool().flushAllPages();
+
+        TransactionId tid = new TransactionId();
+        insert(tid, hf, 5000, 5100, null);
+        Database.getBufferPool().flushPages(tid);
+        // drops t1's records from the front of the log
+        Database.getLogFile().logCheckpoint();
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
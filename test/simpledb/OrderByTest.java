@@ -0,0 +1,126 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+    private TransactionId tid;
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(3, 10000, 50, null, tuples);
+    }
+
+    /** @return every tuple of it, as lists */
+    private static ArrayList<ArrayList<Integer>> drain(DbIterator it) throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        while (it.hasNext())
+            rows.add(SystemTestUtil.tupleToList(it.next()));
+        return rows;
+    }
+
+    /** @return tuples sorted by field 1 descending, then field 0 ascending */
+    private ArrayList<ArrayList<Integer>> expected() {
+        ArrayList<ArrayList<Integer>> sorted = new ArrayList<ArrayList<Integer>>(tuples);
+        Collections.sort(sorted, new Comparator<ArrayList<Integer>>() {
+            public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+                int c = b.get(1).compareTo(a.get(1));
+                return c != 0 ? c : a.get(0).compareTo(b.get(0));
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Sorting in memory on two fields keeps rows with equal keys in the
+     * order of the child.
+     */
+    @Test public void sortInMemory() throws Exception {
+        OrderBy op = new OrderBy(new int[] { 1, 0 }, new boolean[] { false, true },
+                new SeqScan(tid, hf.getId(), "t"), OrderBy.DEFAULT_MEMORY_BUDGET);
+        op.open();
+        assertEquals(expected(), drain(op));
+        assertEquals(0, op.getSpilledRuns());
+        op.close();
+    }
+
+    /**
+     * With a small memory budget the sort merges runs from disk, in more
+     * than one pass, and gives the same result, also after a rewind.
+     */
+    @Test public void externalSort() throws Exception {
+        int rowsPerRun = 100;
+        OrderBy op = new OrderBy(new int[] { 1, 0 }, new boolean[] { false, true },
+                new SeqScan(tid, hf.getId(), "t"), rowsPerRun * hf.getTupleDesc().getSize());
+        op.open();
+        assertEquals(expected(), drain(op));
+        assertTrue(op.getSpilledRuns() > tuples.size() / rowsPerRun);
+        op.rewind();
+        assertEquals(expected(), drain(op));
+        op.close();
+    }
+
+    /**
+     * Strings sort like String.compareTo, including prefixes and negative
+     * ints sort before positive ones.
+     */
+    @Test public void sortStringsAndNegatives() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+        String[] strings = { "b", "ab", "", "a", "a\u0000", "abc", "a" };
+        int[] ints = { 3, -5, 0, Integer.MIN_VALUE, 7, -1, Integer.MAX_VALUE };
+        ArrayList<Tuple> in = new ArrayList<Tuple>();
+        for (int i = 0; i < strings.length; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new StringField(strings[i], Type.STRING_LEN));
+            t.setField(1, new IntField(ints[i]));
+            in.add(t);
+        }
+
+        OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false },
+                new TupleIterator(td, in), 1);
+        op.open();
+        String[] order = { "", "a", "a", "a\u0000", "ab", "abc", "b" };
+        int[] intOrder = { 0, Integer.MAX_VALUE, Integer.MIN_VALUE, 7, -5, -1, 3 };
+        for (int i = 0; i < order.length; i++) {
+            Tuple t = op.next();
+            assertEquals(new StringField(order[i], Type.STRING_LEN), t.getField(0));
+            assertEquals(new IntField(intOrder[i]), t.getField(1));
+        }
+        assertTrue(!op.hasNext());
+        op.close();
+
+        op = new OrderBy(1, true, new TupleIterator(td, in));
+        op.open();
+        int last = Integer.MIN_VALUE;
+        while (op.hasNext()) {
+            int v = ((IntField) op.next().getField(1)).getValue();
+            assertTrue(v >= last);
+            last = v;
+        }
+        op.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+}
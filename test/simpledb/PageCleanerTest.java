@@ -0,0 +1,128 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageCleanerTest extends SimpleDbTestBase {
+
+    private BufferPool bp;
+    private PageCleaner cleaner;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        bp = Database.resetBufferPool(20);
+        cleaner = bp.getCleaner();
+    }
+
+    /** Waits for the cleaner to have written at least n pages. */
+    private void awaitWritten(long n) throws InterruptedException {
+        for (int i = 0; i < 500 && cleaner.getWrittenCount() < n; i++)
+            Thread.sleep(10);
+        assertTrue(cleaner.toString(), cleaner.getWrittenCount() >= n);
+    }
+
+    /** @return the resident pages of hf that are dirty */
+    private ArrayList<PageId> dirtyPages(HeapFile hf) {
+        ArrayList<PageId> dirty = new ArrayList<PageId>();
+        for (Page p : bp.pages.values()) {
+            if (p.getId().getTableId() == hf.getId() && p.isDirty() != null)
+                dirty.add(p.getId());
+        }
+        return dirty;
+    }
+
+    private static void insert(Transaction t, HeapFile hf, int n) throws Exception {
+        for (int i = 0; i < n; i++)
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { i, i }));
+    }
+
+    /**
+     * The cleaner writes the committed pages in the background, and leaves
+     * the pages of running transactions alone.
+     */
+    @Test public void writesCommittedPages() throws Exception {
+        cleaner.setEnabled(false);
+        cleaner.setTargetCleanFraction(1.0);
+        HeapFile committed = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        HeapFile running = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, committed, 504 * 3);
+        t1.commit();
+        assertEquals(3, dirtyPages(committed).size());
+
+        // t2's inserts wake the cleaner
+        cleaner.setEnabled(true);
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, running, 504 * 2);
+
+        awaitWritten(3);
+        assertEquals(0, dirtyPages(committed).size());
+        assertEquals(2, dirtyPages(running).size());
+        assertEquals(3, cleaner.getWrittenCount());
+        t2.commit();
+
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 504 * 3; i++) {
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(i);
+            row.add(i);
+            tuples.add(row);
+        }
+        Database.resetBufferPool(20);
+        SystemTestUtil.matchTuples(committed, tuples);
+    }
+
+    /**
+     * Pages are cleaned in file order, lowest page numbers first, up to the
+     * target.
+     */
+    @Test public void writesInFileOrder() throws Exception {
+        cleaner.setEnabled(false);
+        cleaner.setTargetCleanFraction(0.5);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, hf, 504 * 15);
+        t.commit();
+        assertEquals(15, dirtyPages(hf).size());
+
+        // 5 free frames and 15 dirty ones: 5 more make half the pool clean
+        cleaner.setEnabled(true);
+        assertEquals(5, cleaner.clean());
+        ArrayList<PageId> dirty = dirtyPages(hf);
+        assertEquals(10, dirty.size());
+        for (int pg = 0; pg < 15; pg++) {
+            Page p = bp.pages.get(new HeapPageId(hf.getId(), pg));
+            if (pg < 5)
+                assertNull(p.isDirty());
+            else
+                assertNotNull(p.isDirty());
+        }
+        // the pages were locked only while written
+        assertTrue(bp.getLockManager().tryAcquireLock(new TransactionId(),
+                new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE));
+        assertEquals(0, cleaner.clean());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
@@ -0,0 +1,129 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PagePrefetcherTest extends SimpleDbTestBase {
+
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+    }
+
+    /** Waits for the prefetcher to have read at least n pages. */
+    private static void awaitIssued(PagePrefetcher pf, long n) throws InterruptedException {
+        for (int i = 0; i < 500 && pf.getIssuedCount() < n; i++)
+            Thread.sleep(10);
+        assertTrue(pf.toString(), pf.getIssuedCount() >= n);
+    }
+
+    /**
+     * After two sequential heap pages the next window of pages is read in
+     * the background, and the scan then finds them resident.
+     */
+    @Test public void heapScan() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        BufferPool bp = Database.getBufferPool();
+        PagePrefetcher pf = bp.getPrefetcher();
+
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        for (int i = 0; i < 504 + 1; i++)
+            it.next();
+        awaitIssued(pf, PagePrefetcher.DEFAULT_WINDOW);
+
+        bp.getReplacementPolicy().resetStats();
+        for (int pg = 2; pg < 2 + PagePrefetcher.DEFAULT_WINDOW; pg++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), pg), Permissions.READ_ONLY);
+        assertEquals(0, bp.getReplacementPolicy().getMissCount());
+        assertEquals(PagePrefetcher.DEFAULT_WINDOW, pf.getUsedCount());
+        assertEquals(0, pf.getWastedCount());
+        it.close();
+    }
+
+    /**
+     * Read-ahead stops at its share of the pool.
+     */
+    @Test public void cappedByPoolSize() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 20, null, null);
+        BufferPool bp = Database.resetBufferPool(8);
+        PagePrefetcher pf = bp.getPrefetcher();
+        assertEquals(2, pf.getMaxPages());
+
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        for (int i = 0; i < 504 + 1; i++)
+            it.next();
+        awaitIssued(pf, 2);
+        Thread.sleep(100);
+        assertEquals(2, pf.getIssuedCount());
+        assertTrue(pf.getDroppedCount() > 0);
+        it.close();
+    }
+
+    /**
+     * Read-ahead does not write a dirty page to make room; with every frame
+     * dirty the read is dropped.
+     */
+    @Test public void droppedWhenPoolIsDirty() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        HeapFile empty = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        BufferPool bp = Database.resetBufferPool(4);
+        bp.getCleaner().setEnabled(false);
+        for (int i = 0; i < 504 * 3 + 1; i++)
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(new int[] { i, i }));
+        assertEquals(4, bp.pages.size());
+
+        assertNull(bp.prefetchPage(new HeapPageId(hf.getId(), 0)));
+        assertEquals(1, bp.getPrefetcher().getDroppedCount());
+        assertEquals(0, bp.getCleaner().getStolenCount());
+        assertEquals(4, bp.pages.size());
+    }
+
+    /**
+     * B+ tree read-ahead follows the right sibling pointers of the leaves.
+     */
+    @Test public void btreeLeaves() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 5000, null, null, 0);
+        BufferPool bp = Database.getBufferPool();
+        PagePrefetcher pf = bp.getPrefetcher();
+
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getPage(tid,
+                BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        BTreeLeafPage leaf = bf.findLeafPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY, null);
+        PagePrefetcher.Scan scan = pf.newScan();
+        scan.leafRead(leaf);
+        leaf = (BTreeLeafPage) bp.getPage(tid, leaf.getRightSiblingId(), Permissions.READ_ONLY);
+        scan.leafRead(leaf);
+
+        int ahead = 0;
+        for (BTreeLeafPage p = leaf; p.getRightSiblingId() != null && ahead < pf.getWindow(); ahead++)
+            p = (BTreeLeafPage) bf.readPage(p.getRightSiblingId());
+        assertTrue(ahead > 0);
+        awaitIssued(pf, ahead);
+
+        bp.getReplacementPolicy().resetStats();
+        for (int i = 0; i < ahead; i++)
+            leaf = (BTreeLeafPage) bp.getPage(tid, leaf.getRightSiblingId(), Permissions.READ_ONLY);
+        assertEquals(0, bp.getReplacementPolicy().getMissCount());
+        assertEquals(ahead, pf.getUsedCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PagePrefetcherTest.class);
+    }
+}
@@ -0,0 +1,190 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final ReplacementPolicy.EvictionFilter ANY =
+        new ReplacementPolicy.EvictionFilter() {
+            public boolean canEvict(PageId pid) {
+                return true;
+            }
+        };
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+     * Unit test for LRUReplacementPolicy: the least recently used page goes
+     * first, and pages rejected by the filter are skipped.
+     */
+    @Test public void lru() {
+        ReplacementPolicy p = new LRUReplacementPolicy();
+        p.pageMiss(pid(0));
+        p.pageMiss(pid(1));
+        p.pageMiss(pid(2));
+        p.pageHit(pid(0));
+        assertEquals(pid(1), p.chooseVictim(ANY));
+
+        p.pageRemoved(pid(1));
+        assertEquals(pid(2), p.chooseVictim(ANY));
+        assertEquals(pid(0), p.chooseVictim(new ReplacementPolicy.EvictionFilter() {
+            public boolean canEvict(PageId pid) {
+                return !pid.equals(pid(2));
+            }
+        }));
+    }
+
+    /**
+     * Unit test for ClockReplacementPolicy: referenced pages get a second
+     * chance before being evicted.
+     */
+    @Test public void clock() {
+        ReplacementPolicy p = new ClockReplacementPolicy();
+        p.pageMiss(pid(0));
+        p.pageMiss(pid(1));
+        p.pageMiss(pid(2));
+        // first sweep clears every bit, so frame 0 is the first victim
+        assertEquals(pid(0), p.chooseVictim(ANY));
+        p.pageRemoved(pid(0));
+
+        p.pageHit(pid(1));
+        assertEquals(pid(2), p.chooseVictim(ANY));
+
+        // the freed frame is reused
+        p.pageMiss(pid(3));
+        p.pageRemoved(pid(1));
+        p.pageRemoved(pid(2));
+        p.pageRemoved(pid(3));
+        assertNull(p.chooseVictim(ANY));
+    }
+
+    /**
+     * Unit test for LRUKReplacementPolicy: pages referenced fewer than K
+     * times are evicted before pages with a full history.
+     */
+    @Test public void lruK() {
+        ReplacementPolicy p = new LRUKReplacementPolicy(2, 16);
+        p.pageMiss(pid(0));
+        p.pageHit(pid(0));
+        p.pageMiss(pid(1));
+        p.pageMiss(pid(2));
+        p.pageHit(pid(2));
+        // page 1 has only one reference, even though page 0 is older
+        assertEquals(pid(1), p.chooseVictim(ANY));
+        p.pageRemoved(pid(1));
+        assertEquals(pid(0), p.chooseVictim(ANY));
+
+        // history survives eviction
+        p.pageRemoved(pid(0));
+        p.pageMiss(pid(0));
+        p.pageMiss(pid(3));
+        assertEquals(pid(3), p.chooseVictim(ANY));
+    }
+
+    /**
+     * Unit test for TwoQReplacementPolicy: a scan only churns A1in, and a
+     * page re-referenced after leaving A1in is promoted to Am.
+     */
+    @Test public void twoQ() {
+        ReplacementPolicy p = new TwoQReplacementPolicy(1, 4);
+        p.pageMiss(pid(0));
+        p.pageRemoved(pid(0));
+        p.pageMiss(pid(0)); // back from A1out, now in Am
+        for (int i = 1; i <= 3; i++)
+            p.pageMiss(pid(i));
+        assertEquals(pid(1), p.chooseVictim(ANY));
+        p.pageRemoved(pid(1));
+        assertEquals(pid(2), p.chooseVictim(ANY));
+        p.pageRemoved(pid(2));
+        // A1in is now at its target size, so Am gives up its page
+        assertEquals(pid(0), p.chooseVictim(ANY));
+    }
+
+    /**
+     * Hits are recorded while another thread is choosing a victim, and are
+     * taken into account by the next choice.  No more than a fixed number
+     * of them are queued meanwhile.
+     */
+    @Test(timeout = 10000) public void hitsDoNotWaitForVictimSelection() throws Exception {
+        final ReplacementPolicy p = new LRUReplacementPolicy();
+        p.pageMiss(pid(0));
+        p.pageMiss(pid(1));
+
+        final CountDownLatch choosing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread chooser = new Thread() {
+            public void run() {
+                p.chooseVictim(new ReplacementPolicy.EvictionFilter() {
+                    public boolean canEvict(PageId pid) {
+                        choosing.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                        return true;
+                    }
+                });
+            }
+        };
+        chooser.start();
+        choosing.await();
+        for (int i = 0; i < 1000; i++)
+            p.pageHit(pid(0));
+        assertEquals(1000, p.getHitCount());
+        assertTrue(((AbstractReplacementPolicy) p).pendingHits()
+                <= AbstractReplacementPolicy.HIT_BUFFER_SIZE);
+        release.countDown();
+        chooser.join();
+
+        assertEquals(pid(1), p.chooseVictim(ANY));
+    }
+
+    /**
+     * Hit and miss counters are maintained by the BufferPool, and the pool
+     * never holds more pages than it was given.
+     */
+    @Test public void bufferPoolCounters() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        ReplacementPolicy[] policies = new ReplacementPolicy[] {
+            new LRUReplacementPolicy(), new ClockReplacementPolicy(),
+            new LRUKReplacementPolicy(), new TwoQReplacementPolicy(2),
+        };
+        for (ReplacementPolicy policy : policies) {
+            BufferPool bp = Database.resetBufferPool(2, policy);
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < 4; i++) {
+                bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+                bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+            }
+            assertEquals(policy.getName(), 4, policy.getHitCount());
+            assertEquals(policy.getName(), 4, policy.getMissCount());
+            assertTrue(bp.pages.size() <= 2);
+            bp.transactionComplete(tid);
+
+            policy.resetStats();
+            assertEquals(0, policy.getHitCount());
+            assertEquals(0, policy.getMissCount());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,112 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+    private TransactionId tid;
+    private HeapFile outer;
+    private HeapFile inner;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        outer = SystemTestUtil.createRandomHeapFile(2, 300, 40, null,
+                new ArrayList<ArrayList<Integer>>());
+        inner = SystemTestUtil.createRandomHeapFile(2, 200, 40, null,
+                new ArrayList<ArrayList<Integer>>());
+    }
+
+    /** @return every tuple of it as a list, sorted */
+    private static ArrayList<String> drain(DbIterator it) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        while (it.hasNext())
+            rows.add(SystemTestUtil.tupleToList(it.next()).toString());
+        Collections.sort(rows);
+        return rows;
+    }
+
+    /** @return the scan of f, sorted on field */
+    private DbIterator sorted(HeapFile f, int field) {
+        return new OrderBy(field, true, new SeqScan(tid, f.getId(), ""));
+    }
+
+    /** Check SortMergeJoin against the nested loops Join for op. */
+    private void checkJoin(Predicate.Op op, long memoryBudget) throws Exception {
+        JoinPredicate p = new JoinPredicate(0, op, 1);
+        Join nl = new Join(p, new SeqScan(tid, outer.getId(), ""),
+                new SeqScan(tid, inner.getId(), ""));
+        nl.open();
+        ArrayList<String> expected = drain(nl);
+        nl.close();
+
+        SortMergeJoin op2 = new SortMergeJoin(p, sorted(outer, 0), sorted(inner, 1), memoryBudget);
+        op2.open();
+        assertEquals(op.toString(), expected, drain(op2));
+        op2.rewind();
+        assertEquals(op.toString(), expected, drain(op2));
+        op2.close();
+    }
+
+    /**
+     * Equality joins with runs of duplicate keys on both sides.
+     */
+    @Test public void eqJoin() throws Exception {
+        checkJoin(Predicate.Op.EQUALS, SortMergeJoin.DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Band joins on each inequality.
+     */
+    @Test public void bandJoins() throws Exception {
+        checkJoin(Predicate.Op.LESS_THAN, SortMergeJoin.DEFAULT_MEMORY_BUDGET);
+        checkJoin(Predicate.Op.LESS_THAN_OR_EQ, SortMergeJoin.DEFAULT_MEMORY_BUDGET);
+        checkJoin(Predicate.Op.GREATER_THAN, SortMergeJoin.DEFAULT_MEMORY_BUDGET);
+        checkJoin(Predicate.Op.GREATER_THAN_OR_EQ, SortMergeJoin.DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * With a tiny memory budget the window spills to disk and the result is
+     * the same.
+     */
+    @Test public void spilledWindow() throws Exception {
+        checkJoin(Predicate.Op.EQUALS, 16);
+        checkJoin(Predicate.Op.GREATER_THAN_OR_EQ, 16);
+        checkJoin(Predicate.Op.LESS_THAN, 16);
+    }
+
+    /**
+     * The output of an equality join is sorted on the join key.
+     */
+    @Test public void outputSorted() throws Exception {
+        SortMergeJoin op = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+                sorted(outer, 0), sorted(inner, 1));
+        op.open();
+        int last = Integer.MIN_VALUE;
+        while (op.hasNext()) {
+            int v = ((IntField) op.next().getField(0)).getValue();
+            assertTrue(v >= last);
+            last = v;
+        }
+        op.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
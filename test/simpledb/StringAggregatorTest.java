@@ -53,6 +53,24 @@ public class StringAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test StringAggregator.merge() adds the counts of each group
+   */
+  @Test public void mergePartials() throws Exception {
+    scan1.open();
+    StringAggregator first = new StringAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.COUNT);
+    StringAggregator second = new StringAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.COUNT);
+    for (int i = 0; i < 4; i++)
+      first.mergeTupleIntoGroup(scan1.next());
+    while (scan1.hasNext())
+      second.mergeTupleIntoGroup(scan1.next());
+    first.merge(second);
+    DbIterator it = first.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1,
+        new int[] { 1, 3, 3, 3, 5, 1 }), it);
+  }
+
   /**
    * Test StringAggregator.iterator() for DbIterator behaviour
    */
@@ -0,0 +1,122 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TopNTest extends SimpleDbTestBase {
+
+    private TransactionId tid;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        hf = SystemTestUtil.createRandomHeapFile(2, 5000, 100, null,
+                new ArrayList<ArrayList<Integer>>());
+    }
+
+    /** @return every tuple of it, as lists */
+    private static ArrayList<ArrayList<Integer>> drain(DbIterator it) throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        while (it.hasNext())
+            rows.add(SystemTestUtil.tupleToList(it.next()));
+        return rows;
+    }
+
+    /**
+     * TopN returns the first n tuples OrderBy returns, ties included in the
+     * same order.
+     */
+    @Test public void matchesOrderBy() throws Exception {
+        for (boolean asc : new boolean[] { true, false }) {
+            for (int n : new int[] { 0, 1, 10, 100, 5000, 6000 }) {
+                OrderBy sort = new OrderBy(1, asc, new SeqScan(tid, hf.getId(), "t"));
+                sort.open();
+                ArrayList<ArrayList<Integer>> expected = drain(sort);
+                sort.close();
+
+                TopN op = new TopN(new int[] { 1 }, new boolean[] { asc }, n,
+                        new SeqScan(tid, hf.getId(), "t"));
+                op.open();
+                assertEquals(expected.subList(0, Math.min(n, expected.size())), drain(op));
+                op.rewind();
+                assertEquals(Math.min(n, expected.size()), drain(op).size());
+                op.close();
+            }
+        }
+    }
+
+    /**
+     * Limit returns the first n tuples of its child.
+     */
+    @Test public void limit() throws Exception {
+        SeqScan scan = new SeqScan(tid, hf.getId(), "t");
+        scan.open();
+        ArrayList<ArrayList<Integer>> all = drain(scan);
+        scan.close();
+
+        Limit op = new Limit(4100, new SeqScan(tid, hf.getId(), "t"));
+        op.open();
+        assertEquals(all.subList(0, 4100), drain(op));
+        op.rewind();
+        assertEquals(all.subList(0, 4100), drain(op));
+        op.close();
+    }
+
+    /**
+     * The planner uses TopN for ORDER BY ... LIMIT, and for a table whose
+     * B+ tree is keyed on the order by field it scans the tree in order and
+     * stops after LIMIT tuples instead of sorting.
+     */
+    @Test public void planLimit() throws Exception {
+        Database.getCatalog().addTable(Utility.openHeapFile(2, "c", hf.getFile()), "topn_heap");
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 5000, null, null, 0);
+        Database.getCatalog().addTable(BTreeUtility.openBTreeFile(2, "c", bf.getFile(), 0), "topn_btree");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        Parser p = new Parser();
+
+        DbIterator plan = p.generateLogicalPlan(tid,
+                "SELECT * FROM topn_heap t ORDER BY t.c1 DESC LIMIT 7;")
+                .physicalPlan(tid, stats, false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof TopN);
+        plan.open();
+        assertEquals(7, drain(plan).size());
+        plan.close();
+
+        plan = p.generateLogicalPlan(tid,
+                "SELECT * FROM topn_btree b ORDER BY b.c0 LIMIT 5;")
+                .physicalPlan(tid, stats, false);
+        DbIterator limit = ((Operator) plan).getChildren()[0];
+        assertTrue(limit instanceof Limit);
+        assertTrue(((Operator) limit).getChildren()[0] instanceof SeqScan);
+        plan.open();
+        ArrayList<ArrayList<Integer>> rows = drain(plan);
+        plan.close();
+        assertEquals(5, rows.size());
+        for (int i = 1; i < rows.size(); i++)
+            assertTrue(rows.get(i - 1).get(0) <= rows.get(i).get(0));
+
+        plan = p.generateLogicalPlan(tid, "SELECT * FROM topn_heap t;")
+                .physicalPlan(tid, stats, false);
+        assertFalse(((Operator) plan).getChildren()[0] instanceof Limit);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TopNTest.class);
+    }
+}
@@ -1,6 +1,9 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Test;
@@ -57,6 +60,23 @@ public class TupleTest extends SimpleDbTestBase {
 	}
     }
 
+    /**
+     * A tuple decoded on demand keeps a copy of its own bytes, not the
+     * buffer it was read from.
+     */
+    @Test public void lazyTupleCopiesItsBytes() {
+        TupleDesc td = Utility.getTupleDesc(2);
+        ByteBuffer page = ByteBuffer.allocate(100);
+        page.putInt(40, 7);
+        page.putInt(44, 8);
+
+        Tuple tup = new Tuple(td, page, 40);
+        page.putInt(40, -1);
+        page.putInt(44, -1);
+        assertEquals(new IntField(7), tup.getField(0));
+        assertEquals(new IntField(8), tup.getField(1));
+    }
+
     /**
      * JUnit suite target
      */